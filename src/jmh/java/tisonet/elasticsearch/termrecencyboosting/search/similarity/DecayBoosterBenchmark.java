@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import org.elasticsearch.index.query.functionscore.DecayFunction;
+import org.elasticsearch.index.query.functionscore.ExponentialDecayFunctionBuilder;
+import org.elasticsearch.index.query.functionscore.GaussDecayFunctionBuilder;
+import org.elasticsearch.index.query.functionscore.LinearDecayFunctionBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of term recency boost of a single term timestamp: recency computation, precomputed boost lookup and, for
+ * comparison, evaluation of the decay function the way function_score decay functions do it for every document.
+ */
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class DecayBoosterBenchmark {
+    private static final int TIMESTAMPS = 4096;
+
+    @Param({"linear", "exp", "gauss"})
+    public String decayFunction;
+
+    private DecayBooster booster;
+    private DecayFunction function;
+    private double processedScale;
+    private long nowInMillis;
+    private long[] timestamps;
+    private double[] recencies;
+
+    @Setup
+    public void setUp() {
+        booster = new DecayBooster(decayFunction, TermRecencyBoosting.DEFAULT_SCALE, TermRecencyBoosting.DEFAULT_DECAY,
+                TermRecencyBoosting.DEFAULT_WEIGHT);
+        function = decayFunction(decayFunction);
+        processedScale = function.processScale(TermRecencyBoosting.DEFAULT_SCALE, TermRecencyBoosting.DEFAULT_DECAY);
+
+        // Terms up to a week old with minute precision, a part of them beyond the horizon.
+        Random random = new Random(0);
+        nowInMillis = System.currentTimeMillis();
+        timestamps = new long[TIMESTAMPS];
+        recencies = new double[TIMESTAMPS];
+        for (int i = 0; i < TIMESTAMPS; i++) {
+            timestamps[i] = nowInMillis - TimeUnit.MINUTES.toMillis(random.nextInt(7 * 24 * 60));
+            recencies[i] = RecencyCalculator.calculateRecency(nowInMillis, timestamps[i]);
+        }
+    }
+
+    private static DecayFunction decayFunction(String name) {
+        switch (name) {
+            case GaussDecayFunctionBuilder.NAME:
+                return GaussDecayFunctionBuilder.GAUSS_DECAY_FUNCTION;
+            case ExponentialDecayFunctionBuilder.NAME:
+                return ExponentialDecayFunctionBuilder.EXP_DECAY_FUNCTION;
+            default:
+                return LinearDecayFunctionBuilder.LINEAR_DECAY_FUNCTION;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TIMESTAMPS)
+    public double calculateRecency() {
+        double sum = 0;
+        for (long timestamp : timestamps) {
+            sum += RecencyCalculator.calculateRecency(nowInMillis, timestamp);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TIMESTAMPS)
+    public float precomputedBoost() {
+        float sum = 0;
+        for (double recency : recencies) {
+            sum += booster.getBoost(recency);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TIMESTAMPS)
+    public double evaluatedDecayFunction() {
+        double sum = 0;
+        for (double recency : recencies) {
+            sum += TermRecencyBoosting.DEFAULT_WEIGHT * function.evaluate(recency, processedScale);
+        }
+        return sum;
+    }
+}
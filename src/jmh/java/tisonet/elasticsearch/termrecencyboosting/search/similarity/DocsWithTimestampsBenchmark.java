@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.IntegerEncoder;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the first search of a field in a segment, which scans its postings payloads for the documents with
+ * timestamps (see {@link DocsWithTimestamps}). The scan is repeated after the segment is evicted from the cache.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class DocsWithTimestampsBenchmark {
+    private static final int VOCABULARY = 100;
+    private static final int TERMS_PER_DOC = 20;
+    private static final int MAX_AGE_IN_HOURS = 60 * 24;
+    private static final String FIELD = "field";
+
+    @Param({"10000", "100000"})
+    public int docCount;
+
+    @Param({"1", "4"})
+    public int termRepetitions;
+
+    // Percentage of documents indexed with timestamps, the other ones were indexed before timestamps were added.
+    @Param({"50", "100"})
+    public int docsWithTimestamps;
+
+    private Directory directory;
+    private DirectoryReader reader;
+    private LeafReader leaf;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = new RAMDirectory();
+        Analyzer analyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                return new TokenStreamComponents(tokenizer, new DelimitedPayloadTokenFilter(tokenizer, '|', new IntegerEncoder()));
+            }
+        };
+
+        Random random = new Random(0);
+        long nowInHours = TimeUnit.MILLISECONDS.toHours(System.currentTimeMillis());
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(analyzer).setRAMBufferSizeMB(256))) {
+            for (int i = 0; i < docCount; i++) {
+                boolean withTimestamps = random.nextInt(100) < docsWithTimestamps;
+                long docTimestamp = nowInHours - (long) MAX_AGE_IN_HOURS * (docCount - i) / docCount;
+                StringBuilder content = new StringBuilder();
+                for (int t = 0; t < TERMS_PER_DOC; t++) {
+                    String term = "term" + random.nextInt(VOCABULARY);
+                    for (int r = 0; r < termRepetitions; r++) {
+                        content.append(term);
+                        if (withTimestamps) {
+                            content.append('|').append(docTimestamp - random.nextInt(24));
+                        }
+                        content.append(' ');
+                    }
+                }
+
+                Document document = new Document();
+                document.add(new TextField(FIELD, content.toString(), Field.Store.NO));
+                writer.addDocument(document);
+            }
+            writer.forceMerge(1);
+        }
+
+        reader = DirectoryReader.open(directory);
+        leaf = reader.leaves().get(0).reader();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        IOUtils.close(reader, directory);
+    }
+
+    @Benchmark
+    public DocsWithTimestamps build() throws IOException {
+        return DocsWithTimestamps.build(leaf, FIELD, TimestampPayloadCodec.DEFAULT);
+    }
+}
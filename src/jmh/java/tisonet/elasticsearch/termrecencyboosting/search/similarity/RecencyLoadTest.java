@@ -0,0 +1,423 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.IntegerEncoder;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import tisonet.elasticsearch.termrecencyboosting.index.mapper.TermTimestamps;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test of a realistic single shard, scored by plain BM25 and by term recency. Every mode indexes the same
+ * synthetic corpus into its own on-disk index, with only the data the mode needs: bm25 - plain text,
+ * recency_term_vectors - term vectors with timestamp payloads, recency_doc_values - term timestamps doc values,
+ * recency_query - postings payloads searched by term_recency queries. Then it runs the same random queries from
+ * concurrent threads and reports throughput, 50th and 99th percentile latency, index size and heap used by the open
+ * index and its caches.
+ *
+ * Corpus terms are drawn from a vocabulary with Zipf distribution, query terms too, so frequent terms have long
+ * postings. Arguments are name=value pairs, see {@link Options}, e.g.
+ *
+ *     ./gradlew loadTest -PloadTestArgs='docs=1000000 threads=4 timestamps=exponential'
+ */
+public class RecencyLoadTest {
+    private static final String FIELD = "content";
+    private static final int TOP_K = 20;
+
+    private static final FieldType VECTORS_FIELD_TYPE = new FieldType(TextField.TYPE_NOT_STORED);
+
+    static {
+        VECTORS_FIELD_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+        VECTORS_FIELD_TYPE.setStoreTermVectors(true);
+        VECTORS_FIELD_TYPE.setStoreTermVectorPositions(true);
+        VECTORS_FIELD_TYPE.setStoreTermVectorPayloads(true);
+        VECTORS_FIELD_TYPE.freeze();
+    }
+
+    private final Options options;
+    private final ZipfDistribution vocabulary;
+    private final long nowInHours = TimeUnit.MILLISECONDS.toHours(System.currentTimeMillis());
+
+    RecencyLoadTest(Options options) {
+        this.options = options;
+        this.vocabulary = new ZipfDistribution(options.vocabulary, options.zipf);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        System.out.println(options);
+        System.out.println(String.format(Locale.ROOT, "%-22s %10s %10s %10s %12s %12s %8s",
+                "mode", "qps", "p50 ms", "p99 ms", "index MB", "heap MB", "hits"));
+
+        RecencyLoadTest loadTest = new RecencyLoadTest(options);
+        for (String mode : options.modes) {
+            System.out.println(loadTest.run(mode));
+        }
+    }
+
+    Result run(String mode) throws Exception {
+        Path path = Files.createTempDirectory("recency-load-test");
+        try (Directory directory = FSDirectory.open(path)) {
+            index(directory, mode);
+            long indexSize = 0;
+            for (String file : directory.listAll()) {
+                indexSize += directory.fileLength(file);
+            }
+
+            long heapBefore = usedHeap();
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                TermRecencyBoosting recency = new TermRecencyBoosting(new BM25Similarity(1.2F, 0.0F),
+                        new DecayBooster(options.decayFunction, TermRecencyBoosting.DEFAULT_SCALE,
+                                TermRecencyBoosting.DEFAULT_DECAY, TermRecencyBoosting.DEFAULT_WEIGHT));
+                searcher.setSimilarity(mode.equals("bm25") ? recency.getSimilarity() : recency);
+
+                // Queries are the same for all modes.
+                List<Query> queries = buildQueries(mode, recency, new Random(options.seed + 1));
+                search(searcher, queries.subList(0, options.warmupQueries));
+                long heapUsed = usedHeap() - heapBefore;
+
+                return search(searcher, queries.subList(options.warmupQueries, queries.size()))
+                        .withIndex(mode, indexSize, heapUsed);
+            }
+        } finally {
+            IOUtils.rm(path);
+        }
+    }
+
+    private void index(Directory directory, String mode) throws IOException {
+        Analyzer analyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                return new TokenStreamComponents(tokenizer,
+                        new DelimitedPayloadTokenFilter(tokenizer, '|', new IntegerEncoder()));
+            }
+        };
+
+        // The same seed gives all modes the same corpus.
+        Random random = new Random(options.seed);
+        IndexWriterConfig config = new IndexWriterConfig(analyzer).setRAMBufferSizeMB(256);
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            StringBuilder content = new StringBuilder();
+            for (int i = 0; i < options.docs; i++) {
+                long docTimestamp = nowInHours - options.timestamps.age(i, options, random);
+                content.setLength(0);
+                SortedMap<BytesRef, Long> timestamps = new TreeMap<>();
+                for (int t = 0; t < options.termsPerDoc; t++) {
+                    String term = "t" + vocabulary.sample(random);
+                    for (int r = 0; r < options.repetitions; r++) {
+                        // Repeated occurrences are up to a day older than the document.
+                        long timestamp = docTimestamp - random.nextInt(24);
+                        content.append(term);
+                        if (!mode.equals("bm25")) {
+                            content.append('|').append(timestamp);
+                        }
+                        content.append(' ');
+                        timestamps.merge(new BytesRef(term), TimeUnit.HOURS.toMillis(timestamp), Math::max);
+                    }
+                }
+
+                Document document = new Document();
+                if (mode.equals("recency_term_vectors")) {
+                    document.add(new Field(FIELD, content.toString(), VECTORS_FIELD_TYPE));
+                } else {
+                    document.add(new TextField(FIELD, content.toString(), Field.Store.NO));
+                }
+                if (mode.equals("recency_doc_values")) {
+                    document.add(new BinaryDocValuesField(FIELD, TermTimestamps.encode(timestamps)));
+                }
+                writer.addDocument(document);
+            }
+            writer.forceMerge(options.segments);
+        }
+    }
+
+    private List<Query> buildQueries(String mode, TermRecencyBoosting recency, Random random) {
+        long nowInMillis = System.currentTimeMillis();
+        List<Query> queries = new ArrayList<>();
+        for (int i = 0; i < options.warmupQueries + options.queries; i++) {
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            for (int t = 0; t < options.termsPerQuery; t++) {
+                Term term = new Term(FIELD, "t" + vocabulary.sample(random));
+                Query query = mode.equals("recency_query")
+                        ? new TermRecencyQuery(term, recency, nowInMillis)
+                        : new TermQuery(term);
+                builder.add(query, BooleanClause.Occur.SHOULD);
+            }
+            queries.add(builder.build());
+        }
+
+        return queries;
+    }
+
+    private Result search(IndexSearcher searcher, List<Query> queries) throws Exception {
+        long[] latencies = new long[queries.size()];
+        AtomicInteger next = new AtomicInteger();
+        long totalHits = 0;
+
+        ExecutorService executor = Executors.newFixedThreadPool(options.threads);
+        try {
+            long start = System.nanoTime();
+            List<Future<Long>> threads = new ArrayList<>();
+            for (int t = 0; t < options.threads; t++) {
+                threads.add(executor.submit(() -> {
+                    long hits = 0;
+                    for (int i = next.getAndIncrement(); i < latencies.length; i = next.getAndIncrement()) {
+                        long queryStart = System.nanoTime();
+                        hits += searcher.search(queries.get(i), TOP_K).totalHits;
+                        latencies[i] = System.nanoTime() - queryStart;
+                    }
+                    return hits;
+                }));
+            }
+            for (Future<Long> thread : threads) {
+                totalHits += thread.get();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            Arrays.sort(latencies);
+            return new Result(latencies.length * (double) TimeUnit.SECONDS.toNanos(1) / elapsed,
+                    percentile(latencies, 0.50), percentile(latencies, 0.99),
+                    latencies.length == 0 ? 0 : totalHits / latencies.length);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static long percentile(long[] sortedLatencies, double percentile) {
+        if (sortedLatencies.length == 0) {
+            return 0;
+        }
+
+        int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.min(sortedLatencies.length - 1, index)];
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        // A few collections, a single one doesn't have to collect everything.
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Samples ranks of a vocabulary with Zipf distribution, rank 0 is the most frequent one.
+     */
+    static final class ZipfDistribution {
+        private final double[] cumulativeProbabilities;
+
+        ZipfDistribution(int size, double exponent) {
+            cumulativeProbabilities = new double[size];
+            double sum = 0;
+            for (int rank = 0; rank < size; rank++) {
+                sum += 1 / Math.pow(rank + 1, exponent);
+                cumulativeProbabilities[rank] = sum;
+            }
+            for (int rank = 0; rank < size; rank++) {
+                cumulativeProbabilities[rank] /= sum;
+            }
+        }
+
+        int sample(Random random) {
+            int rank = Arrays.binarySearch(cumulativeProbabilities, random.nextDouble());
+            return Math.min(rank < 0 ? -rank - 1 : rank, cumulativeProbabilities.length - 1);
+        }
+    }
+
+    /**
+     * Distribution of document ages in hours.
+     */
+    enum Timestamps {
+        /**
+         * Documents are indexed in order of their age, the newest last, as they are in a time based index.
+         */
+        APPEND {
+            @Override
+            long age(int doc, Options options, Random random) {
+                return (long) options.maxAgeInHours * (options.docs - doc) / options.docs;
+            }
+        },
+        /**
+         * Ages are uniform up to the max age, in random order.
+         */
+        UNIFORM {
+            @Override
+            long age(int doc, Options options, Random random) {
+                return random.nextInt(options.maxAgeInHours);
+            }
+        },
+        /**
+         * Most documents are recent, the mean age is a tenth of the max age, in random order.
+         */
+        EXPONENTIAL {
+            @Override
+            long age(int doc, Options options, Random random) {
+                double age = -Math.log(1 - random.nextDouble()) * options.maxAgeInHours / 10;
+                return Math.min(options.maxAgeInHours, (long) age);
+            }
+        };
+
+        abstract long age(int doc, Options options, Random random);
+    }
+
+    static final class Options {
+        int docs = 100_000;
+        int vocabulary = 10_000;
+        double zipf = 1.0;
+        int termsPerDoc = 20;
+        int repetitions = 2;
+        Timestamps timestamps = Timestamps.APPEND;
+        int maxAgeInHours = 60 * 24;
+        int segments = 1;
+        int termsPerQuery = 2;
+        int warmupQueries = 1_000;
+        int queries = 10_000;
+        int threads = 1;
+        long seed = 0;
+        String decayFunction = TermRecencyBoosting.DEFAULT_DECAY_FUNCTION;
+        List<String> modes = Arrays.asList("bm25", "recency_term_vectors", "recency_doc_values", "recency_query");
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            Map<String, String> values = new HashMap<>();
+            for (String arg : args) {
+                String[] nameAndValue = arg.split("=", 2);
+                if (nameAndValue.length != 2) {
+                    throw new IllegalArgumentException("argument must be in the name=value format, got [" + arg + "]");
+                }
+                values.put(nameAndValue[0], nameAndValue[1]);
+            }
+
+            options.docs = intValue(values, "docs", options.docs);
+            options.vocabulary = intValue(values, "vocabulary", options.vocabulary);
+            options.zipf = Double.parseDouble(values.getOrDefault("zipf", String.valueOf(options.zipf)));
+            options.termsPerDoc = intValue(values, "terms_per_doc", options.termsPerDoc);
+            options.repetitions = intValue(values, "repetitions", options.repetitions);
+            String timestamps = values.getOrDefault("timestamps", options.timestamps.name());
+            options.timestamps = Timestamps.valueOf(timestamps.toUpperCase(Locale.ROOT));
+            options.maxAgeInHours = intValue(values, "max_age_hours", options.maxAgeInHours);
+            options.segments = intValue(values, "segments", options.segments);
+            options.termsPerQuery = intValue(values, "terms_per_query", options.termsPerQuery);
+            options.warmupQueries = intValue(values, "warmup_queries", options.warmupQueries);
+            options.queries = intValue(values, "queries", options.queries);
+            options.threads = intValue(values, "threads", options.threads);
+            options.seed = Long.parseLong(values.getOrDefault("seed", String.valueOf(options.seed)));
+            options.decayFunction = values.getOrDefault("decay_function", options.decayFunction);
+            if (values.containsKey("modes")) {
+                options.modes = Arrays.asList(values.get("modes").split(","));
+            }
+
+            values.keySet().removeAll(Arrays.asList("docs", "vocabulary", "zipf", "terms_per_doc", "repetitions",
+                    "timestamps", "max_age_hours", "segments", "terms_per_query", "warmup_queries", "queries",
+                    "threads", "seed", "decay_function", "modes"));
+            if (!values.isEmpty()) {
+                throw new IllegalArgumentException("unknown arguments " + values.keySet());
+            }
+
+            return options;
+        }
+
+        private static int intValue(Map<String, String> values, String name, int defaultValue) {
+            return Integer.parseInt(values.getOrDefault(name, String.valueOf(defaultValue)));
+        }
+
+        @Override
+        public String toString() {
+            return "docs=" + docs + " vocabulary=" + vocabulary + " zipf=" + zipf + " terms_per_doc=" + termsPerDoc
+                    + " repetitions=" + repetitions + " timestamps=" + timestamps.name().toLowerCase(Locale.ROOT)
+                    + " max_age_hours=" + maxAgeInHours + " segments=" + segments + " terms_per_query=" + termsPerQuery
+                    + " warmup_queries=" + warmupQueries + " queries=" + queries + " threads=" + threads
+                    + " seed=" + seed + " decay_function=" + decayFunction + " modes=" + String.join(",", modes);
+        }
+    }
+
+    static final class Result {
+        private final double qps;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long averageHits;
+        private String mode;
+        private long indexSize;
+        private long heapUsed;
+
+        Result(double qps, long p50Nanos, long p99Nanos, long averageHits) {
+            this.qps = qps;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.averageHits = averageHits;
+        }
+
+        Result withIndex(String mode, long indexSize, long heapUsed) {
+            this.mode = mode;
+            this.indexSize = indexSize;
+            this.heapUsed = heapUsed;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-22s %10.1f %10.3f %10.3f %12.1f %12.1f %8d", mode, qps,
+                    p50Nanos / 1e6, p99Nanos / 1e6, indexSize / 1024.0 / 1024.0, heapUsed / 1024.0 / 1024.0,
+                    averageHits);
+        }
+    }
+}
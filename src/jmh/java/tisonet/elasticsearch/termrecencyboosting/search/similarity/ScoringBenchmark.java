@@ -0,0 +1,221 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.IntegerEncoder;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tisonet.elasticsearch.termrecencyboosting.index.mapper.TermTimestamps;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Top 20 search over a synthetic segment, scored by plain BM25 and by term recency with timestamps read from term
+ * vectors, doc values or postings payloads. Documents are indexed in order of their age, as they are in a time based
+ * index, and hold random terms of a small vocabulary, each repeated with its own timestamp.
+ */
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ScoringBenchmark {
+    private static final int VOCABULARY = 100;
+    private static final int TERMS_PER_DOC = 20;
+    private static final int TOP_K = 20;
+    // Documents span two months, so most of them are beyond the default horizon.
+    private static final int MAX_AGE_IN_HOURS = 60 * 24;
+
+    private static final String VECTORS_FIELD = "vectors";
+    private static final String DOC_VALUES_FIELD = "doc_values";
+    private static final FieldType VECTORS_FIELD_TYPE = new FieldType(TextField.TYPE_NOT_STORED);
+
+    static {
+        VECTORS_FIELD_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+        VECTORS_FIELD_TYPE.setStoreTermVectors(true);
+        VECTORS_FIELD_TYPE.setStoreTermVectorPositions(true);
+        VECTORS_FIELD_TYPE.setStoreTermVectorPayloads(true);
+        VECTORS_FIELD_TYPE.freeze();
+    }
+
+    @Param({"10000", "100000"})
+    public int docCount;
+
+    @Param({"1", "3"})
+    public int termsPerQuery;
+
+    @Param({"1", "4"})
+    public int termRepetitions;
+
+    @Param({"linear", "exp", "gauss"})
+    public String decayFunction;
+
+    /**
+     * bm25 - plain BM25 similarity, recency_term_vectors and recency_doc_values - the similarity reading timestamps
+     * from term vectors or doc values, recency_query and recency_query_top_k - term_recency queries reading postings
+     * payloads, the latter skipping non-competitive blocks (top hits are exact only for a single term).
+     */
+    @Param({"bm25", "recency_term_vectors", "recency_doc_values", "recency_query", "recency_query_top_k"})
+    public String mode;
+
+    @Param({"ram", "fs"})
+    public String directoryType;
+
+    private Path path;
+    private Directory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private Query query;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if ("fs".equals(directoryType)) {
+            path = Files.createTempDirectory("recency-benchmark");
+            directory = FSDirectory.open(path);
+        } else {
+            directory = new RAMDirectory();
+        }
+
+        index();
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+
+        BM25Similarity bm25 = new BM25Similarity(1.2F, 0.0F);
+        DecayBooster booster = new DecayBooster(decayFunction, TermRecencyBoosting.DEFAULT_SCALE,
+                TermRecencyBoosting.DEFAULT_DECAY, TermRecencyBoosting.DEFAULT_WEIGHT);
+        TermRecencyBoosting recency = new TermRecencyBoosting(bm25, booster);
+        searcher.setSimilarity("bm25".equals(mode) ? bm25 : recency);
+        query = buildQuery(recency);
+
+        // Warm the segment caches of the query terms, they are built only once per segment.
+        searcher.search(query, TOP_K);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        IOUtils.close(reader, directory);
+        if (path != null) {
+            IOUtils.rm(path);
+        }
+    }
+
+    private void index() throws IOException {
+        Analyzer analyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                return new TokenStreamComponents(tokenizer, new DelimitedPayloadTokenFilter(tokenizer, '|', new IntegerEncoder()));
+            }
+        };
+
+        Random random = new Random(0);
+        long nowInHours = TimeUnit.MILLISECONDS.toHours(System.currentTimeMillis());
+        IndexWriterConfig config = new IndexWriterConfig(analyzer).setRAMBufferSizeMB(256);
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            for (int i = 0; i < docCount; i++) {
+                long docTimestamp = nowInHours - (long) MAX_AGE_IN_HOURS * (docCount - i) / docCount;
+                StringBuilder content = new StringBuilder();
+                SortedMap<BytesRef, Long> timestamps = new TreeMap<>();
+                for (int t = 0; t < TERMS_PER_DOC; t++) {
+                    String term = "term" + random.nextInt(VOCABULARY);
+                    for (int r = 0; r < termRepetitions; r++) {
+                        // Repeated occurrences are up to a day older than the document.
+                        long timestamp = docTimestamp - random.nextInt(24);
+                        content.append(term).append('|').append(timestamp).append(' ');
+                        timestamps.merge(new BytesRef(term), TimeUnit.HOURS.toMillis(timestamp), Math::max);
+                    }
+                }
+
+                Document document = new Document();
+                document.add(new Field(VECTORS_FIELD, content.toString(), VECTORS_FIELD_TYPE));
+                document.add(new TextField(DOC_VALUES_FIELD, content.toString(), Field.Store.NO));
+                document.add(new BinaryDocValuesField(DOC_VALUES_FIELD, TermTimestamps.encode(timestamps)));
+                writer.addDocument(document);
+            }
+            writer.forceMerge(1);
+        }
+    }
+
+    private Query buildQuery(TermRecencyBoosting recency) {
+        long nowInMillis = System.currentTimeMillis();
+        String field = mode.equals("recency_term_vectors") || mode.equals("bm25") ? VECTORS_FIELD : DOC_VALUES_FIELD;
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (int i = 0; i < termsPerQuery; i++) {
+            Term term = new Term(field, "term" + i);
+            switch (mode) {
+                case "recency_query":
+                    builder.add(new TermRecencyQuery(term, recency, nowInMillis), BooleanClause.Occur.SHOULD);
+                    break;
+                case "recency_query_top_k":
+                    builder.add(new TermRecencyQuery(term, recency, nowInMillis, TOP_K), BooleanClause.Occur.SHOULD);
+                    break;
+                default:
+                    builder.add(new TermQuery(term), BooleanClause.Occur.SHOULD);
+            }
+        }
+
+        return builder.build();
+    }
+
+    @Benchmark
+    public TopDocs search() throws IOException {
+        return searcher.search(query, TOP_K);
+    }
+}
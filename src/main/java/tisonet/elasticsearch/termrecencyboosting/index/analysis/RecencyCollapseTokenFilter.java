@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.index.analysis;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collapses all occurrences of a term within the field into a single token carrying the latest timestamp payload.
+ *
+ * The token is emitted at the position of the first occurrence of the term. With keepFrequency the remaining
+ * occurrences are emitted too, at their original positions and without payloads, so the term frequency and phrases
+ * are kept while only one timestamp is stored. Without it the later occurrences are dropped, leaving gaps in positions,
+ * so phrases can't match them.
+ *
+ * With histogram buckets the payload of the token is followed by a {@link TermHistogram} of timestamps of all the
+ * occurrences, so the trend of the term in the field can be scored from the single payload.
+ */
+public final class RecencyCollapseTokenFilter extends TokenFilter {
+    private final boolean keepFrequency;
+    private final TimestampPayloadCodec codec;
+    // Zero when no histogram is added to the payloads.
+    private final int histogramBuckets;
+    private final long histogramBucketWidthInMillis;
+
+    private final TermToBytesRefAttribute termAttribute = addAttribute(TermToBytesRefAttribute.class);
+    private final PayloadAttribute payloadAttribute = addAttribute(PayloadAttribute.class);
+    private final PositionIncrementAttribute positionIncrementAttribute = addAttribute(PositionIncrementAttribute.class);
+
+    // Ids of distinct terms of the field, given in order of their first occurrence, index the collapsed terms.
+    private final BytesRefHash termIds = new BytesRefHash();
+    private final List<CollapsedTerm> collapsedTerms = new ArrayList<>();
+    // Buffered tokens to emit with their positions and term ids.
+    private final List<State> tokenStates = new ArrayList<>();
+    private int[] tokenPositions = new int[0];
+    private int[] tokenTermIds = new int[0];
+
+    private boolean collapsed;
+    private State finalState;
+
+    private int nextToken;
+    private int lastPosition = -1;
+
+    public RecencyCollapseTokenFilter(TokenStream input, boolean keepFrequency, TimestampPayloadCodec codec) {
+        this(input, keepFrequency, codec, 0, 0);
+    }
+
+    /**
+     * @param histogramBuckets number of buckets of the term histogram added to the payloads, 0 for no histogram
+     */
+    public RecencyCollapseTokenFilter(TokenStream input, boolean keepFrequency, TimestampPayloadCodec codec,
+                                      int histogramBuckets, long histogramBucketWidthInMillis) {
+        super(input);
+        if (histogramBuckets < 0 || histogramBuckets > TermHistogram.MAX_BUCKETS) {
+            throw new IllegalArgumentException("histogram buckets must be in the range [0.." + TermHistogram.MAX_BUCKETS
+                    + "], got " + histogramBuckets);
+        }
+        if (histogramBuckets > 0 && histogramBucketWidthInMillis < 1) {
+            throw new IllegalArgumentException("histogram bucket width must be positive, got " + histogramBucketWidthInMillis + "ms");
+        }
+
+        this.keepFrequency = keepFrequency;
+        this.codec = codec;
+        this.histogramBuckets = histogramBuckets;
+        this.histogramBucketWidthInMillis = histogramBucketWidthInMillis;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (!collapsed) {
+            collapse();
+            collapsed = true;
+        }
+
+        if (nextToken == tokenStates.size()) {
+            return false;
+        }
+
+        int token = nextToken++;
+        CollapsedTerm term = collapsedTerms.get(tokenTermIds[token]);
+        restoreState(tokenStates.get(token));
+        positionIncrementAttribute.setPositionIncrement(tokenPositions[token] - lastPosition);
+        lastPosition = tokenPositions[token];
+        // Only the first occurrence carries the collapsed payload.
+        payloadAttribute.setPayload(term.firstToken == token ? term.payload : null);
+
+        return true;
+    }
+
+    private void collapse() throws IOException {
+        int position = -1;
+
+        while (input.incrementToken()) {
+            position += positionIncrementAttribute.getPositionIncrement();
+
+            int termId = termIds.add(termAttribute.getBytesRef());
+            CollapsedTerm term;
+            if (termId >= 0) {
+                term = new CollapsedTerm(tokenStates.size());
+                collapsedTerms.add(term);
+            } else {
+                termId = -termId - 1;
+                term = collapsedTerms.get(termId);
+            }
+            if (term.frequency == 0 || keepFrequency) {
+                addToken(position, termId);
+            }
+
+            term.frequency++;
+            // The payload of the latest occurrence is kept as it is, so it doesn't have to be encoded again.
+            long timestamp = codec.decode(payloadAttribute.getPayload());
+            if (timestamp != TimestampPayloadCodec.MISSING_TIMESTAMP && (term.payload == null || timestamp > term.timestamp)) {
+                term.timestamp = timestamp;
+                term.payload = BytesRef.deepCopyOf(payloadAttribute.getPayload());
+            }
+            if (histogramBuckets > 0) {
+                term.timestamps = ArrayUtil.grow(term.timestamps, term.frequency);
+                term.timestamps[term.frequency - 1] = timestamp;
+            }
+        }
+
+        if (histogramBuckets > 0) {
+            for (CollapsedTerm term : collapsedTerms) {
+                if (term.payload != null) {
+                    term.payload = TermHistogram.append(term.payload, term.timestamps, term.frequency, histogramBuckets,
+                            histogramBucketWidthInMillis);
+                }
+            }
+        }
+
+        input.end();
+        finalState = captureState();
+    }
+
+    private void addToken(int position, int termId) {
+        int token = tokenStates.size();
+        tokenStates.add(captureState());
+        tokenPositions = ArrayUtil.grow(tokenPositions, token + 1);
+        tokenPositions[token] = position;
+        tokenTermIds = ArrayUtil.grow(tokenTermIds, token + 1);
+        tokenTermIds[token] = termId;
+    }
+
+    @Override
+    public void end() throws IOException {
+        if (finalState != null) {
+            restoreState(finalState);
+        } else {
+            super.end();
+        }
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        termIds.clear();
+        termIds.reinit();
+        collapsedTerms.clear();
+        tokenStates.clear();
+        collapsed = false;
+        finalState = null;
+        nextToken = 0;
+        lastPosition = -1;
+    }
+
+    private static final class CollapsedTerm {
+        // Index of the buffered token of the first occurrence.
+        private final int firstToken;
+        private int frequency;
+        private long timestamp;
+        private BytesRef payload;
+        // Timestamps of all occurrences, collected only for the histogram.
+        private long[] timestamps = new long[0];
+
+        CollapsedTerm(int firstToken) {
+            this.firstToken = firstToken;
+        }
+    }
+}
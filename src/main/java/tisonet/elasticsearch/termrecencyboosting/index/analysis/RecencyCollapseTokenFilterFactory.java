@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.index.analysis;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AbstractTokenFilterFactory;
+
+/**
+ * Factory of the recency_collapse token filter, which merges repeated terms into one token with the latest timestamp.
+ */
+public class RecencyCollapseTokenFilterFactory extends AbstractTokenFilterFactory {
+    public static final String NAME = "recency_collapse";
+
+    private final boolean keepFrequency;
+    private final TimestampPayloadCodec codec;
+    private final int histogramBuckets;
+    private final long histogramBucketWidthInMillis;
+
+    public RecencyCollapseTokenFilterFactory(IndexSettings indexSettings, Environment environment, String name, Settings settings) {
+        super(indexSettings, name, settings);
+        this.keepFrequency = settings.getAsBoolean("keep_frequency", false);
+        this.codec = TimestampPayloadCodec.fromSettings(settings);
+        this.histogramBuckets = settings.getAsInt("histogram_buckets", 0);
+        this.histogramBucketWidthInMillis = settings.getAsTime("histogram_bucket_width", TimeValue.timeValueHours(24)).millis();
+        if (histogramBuckets < 0 || histogramBuckets > TermHistogram.MAX_BUCKETS) {
+            throw new IllegalArgumentException("[histogram_buckets] must be in the range [0.." + TermHistogram.MAX_BUCKETS
+                    + "], got [" + histogramBuckets + "]");
+        }
+        if (histogramBucketWidthInMillis < 1) {
+            throw new IllegalArgumentException("[histogram_bucket_width] must be positive, got [" + histogramBucketWidthInMillis
+                    + "ms]");
+        }
+    }
+
+    @Override
+    public TokenStream create(TokenStream tokenStream) {
+        return new RecencyCollapseTokenFilter(tokenStream, keepFrequency, codec, histogramBuckets, histogramBucketWidthInMillis);
+    }
+}
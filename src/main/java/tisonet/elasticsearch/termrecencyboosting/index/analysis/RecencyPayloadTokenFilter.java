@@ -0,0 +1,49 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tisonet.elasticsearch.termrecencyboosting.index.analysis;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+
+/**
+ * Splits term|timestamp tokens of any tokenizer and stores the timestamp into the token payload.
+ */
+public final class RecencyPayloadTokenFilter extends TokenFilter {
+    private final TimestampPayloadParser parser;
+    private final BytesRef payload = TimestampPayloadParser.newPayload();
+
+    private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+    private final PayloadAttribute payloadAttribute = addAttribute(PayloadAttribute.class);
+
+    RecencyPayloadTokenFilter(TokenStream input, TimestampPayloadParser parser) {
+        super(input);
+        this.parser = parser;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (!input.incrementToken()) {
+            return false;
+        }
+
+        termAttribute.setLength(parser.parse(termAttribute.buffer(), termAttribute.length(), payload, payloadAttribute));
+        return true;
+    }
+}
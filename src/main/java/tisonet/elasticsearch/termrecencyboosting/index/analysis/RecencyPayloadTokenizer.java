@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tisonet.elasticsearch.termrecencyboosting.index.analysis;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+
+/**
+ * Whitespace tokenizer of term|timestamp tokens, which stores the timestamp into the token payload in the same pass.
+ * Offsets of a token cover only the term, not the delimiter and timestamp.
+ */
+public final class RecencyPayloadTokenizer extends Tokenizer {
+    private static final int IO_BUFFER_SIZE = 4096;
+
+    private final TimestampPayloadParser parser;
+    private final BytesRef payload = TimestampPayloadParser.newPayload();
+
+    private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+    private final OffsetAttribute offsetAttribute = addAttribute(OffsetAttribute.class);
+    private final PayloadAttribute payloadAttribute = addAttribute(PayloadAttribute.class);
+
+    private final char[] ioBuffer = new char[IO_BUFFER_SIZE];
+    private int bufferIndex;
+    private int dataLength;
+    // Number of chars read before the current buffer.
+    private int offset;
+    private int finalOffset;
+
+    RecencyPayloadTokenizer(TimestampPayloadParser parser) {
+        this.parser = parser;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        clearAttributes();
+
+        char[] termBuffer = termAttribute.buffer();
+        int length = 0;
+        int start = -1;
+
+        while (true) {
+            if (bufferIndex >= dataLength) {
+                offset += dataLength;
+                dataLength = Math.max(0, input.read(ioBuffer));
+                bufferIndex = 0;
+                if (dataLength == 0) {
+                    finalOffset = correctOffset(offset);
+                    if (length == 0) {
+                        return false;
+                    }
+                    break;
+                }
+            }
+
+            char c = ioBuffer[bufferIndex++];
+            if (Character.isWhitespace(c)) {
+                if (length > 0) {
+                    break;
+                }
+                continue;
+            }
+
+            if (length == 0) {
+                start = offset + bufferIndex - 1;
+            }
+            if (length == termBuffer.length) {
+                termBuffer = termAttribute.resizeBuffer(length + 1);
+            }
+            termBuffer[length++] = c;
+        }
+
+        int termLength = parser.parse(termBuffer, length, payload, payloadAttribute);
+        termAttribute.setLength(termLength);
+        offsetAttribute.setOffset(correctOffset(start), correctOffset(start + termLength));
+        return true;
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        offsetAttribute.setOffset(finalOffset, finalOffset);
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        bufferIndex = 0;
+        dataLength = 0;
+        offset = 0;
+        finalOffset = 0;
+    }
+}
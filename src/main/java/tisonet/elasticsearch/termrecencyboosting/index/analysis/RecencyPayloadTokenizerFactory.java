@@ -0,0 +1,41 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tisonet.elasticsearch.termrecencyboosting.index.analysis;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AbstractTokenizerFactory;
+
+/**
+ * Factory of the recency_payload tokenizer, a whitespace tokenizer of term|timestamp tokens storing timestamps
+ * into payloads with a {@link TimestampPayloadCodec} configured by the tokenizer settings.
+ */
+public class RecencyPayloadTokenizerFactory extends AbstractTokenizerFactory {
+    public static final String NAME = "recency_payload";
+
+    private final TimestampPayloadParser parser;
+
+    public RecencyPayloadTokenizerFactory(IndexSettings indexSettings, Environment environment, String name, Settings settings) {
+        super(indexSettings, name, settings);
+        this.parser = TimestampPayloadParser.fromSettings(name, settings);
+    }
+
+    @Override
+    public Tokenizer create() {
+        return new RecencyPayloadTokenizer(parser);
+    }
+}
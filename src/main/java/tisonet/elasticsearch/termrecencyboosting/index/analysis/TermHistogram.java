@@ -0,0 +1,153 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.index.analysis;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Histogram of occurrences of a term in a document over time, stored in the payload right after the term timestamp.
+ *
+ * Buckets are aligned to multiples of the bucket width since 1970, so histograms of all documents and the reference
+ * time of a query share the same buckets. Bucket 0 counts the occurrences within the bucket of the latest timestamp of
+ * the term, bucket i the ones i buckets older, occurrences older than the last bucket and occurrences without
+ * a timestamp are not counted. The histogram is written as the bucket width in millis (varint) followed by one byte
+ * per bucket with the count saturated at 255. Timestamps are decoded from the beginning of the payload only, so readers
+ * not interested in the histogram are not affected by it.
+ *
+ * An instance reads histograms from payloads and can be reused for any number of them.
+ */
+public final class TermHistogram {
+    public static final int MAX_BUCKETS = 32;
+
+    private static final int MAX_COUNT = 0xFF;
+    // Longest varint of a positive long.
+    private static final int MAX_WIDTH_LENGTH = 9;
+
+    private final int[] counts = new int[MAX_BUCKETS];
+    private int buckets;
+    private long bucketWidthInMillis;
+
+    /**
+     * Returns the payload of the latest timestamp followed by the histogram of the given timestamps.
+     *
+     * @param timestampPayload encoded latest timestamp of the term
+     * @param timestamps occurrence timestamps in millis since 1970, {@link TimestampPayloadCodec#MISSING_TIMESTAMP} for
+     *                   occurrences without a timestamp
+     */
+    public static BytesRef append(BytesRef timestampPayload, long[] timestamps, int count, int buckets, long bucketWidthInMillis) {
+        if (buckets < 1 || buckets > MAX_BUCKETS) {
+            throw new IllegalArgumentException("histogram buckets must be in the range [1.." + MAX_BUCKETS + "], got " + buckets);
+        }
+        if (bucketWidthInMillis < 1) {
+            throw new IllegalArgumentException("histogram bucket width must be positive, got " + bucketWidthInMillis + "ms");
+        }
+
+        long latestTimestamp = TimestampPayloadCodec.MISSING_TIMESTAMP;
+        for (int i = 0; i < count; i++) {
+            latestTimestamp = Math.max(latestTimestamp, timestamps[i]);
+        }
+        long latestBucket = bucket(latestTimestamp, bucketWidthInMillis);
+
+        byte[] bytes = new byte[timestampPayload.length + MAX_WIDTH_LENGTH + buckets];
+        System.arraycopy(timestampPayload.bytes, timestampPayload.offset, bytes, 0, timestampPayload.length);
+        int length = timestampPayload.length;
+        long width = bucketWidthInMillis;
+        while ((width & ~0x7FL) != 0) {
+            bytes[length++] = (byte) ((width & 0x7F) | 0x80);
+            width >>>= 7;
+        }
+        bytes[length++] = (byte) width;
+
+        for (int i = 0; i < count; i++) {
+            if (timestamps[i] == TimestampPayloadCodec.MISSING_TIMESTAMP) {
+                continue;
+            }
+
+            long bucket = latestBucket - bucket(timestamps[i], bucketWidthInMillis);
+            if (bucket >= buckets) {
+                continue;
+            }
+            int offset = length + (int) bucket;
+            if ((bytes[offset] & 0xFF) < MAX_COUNT) {
+                bytes[offset]++;
+            }
+        }
+
+        return new BytesRef(bytes, 0, length + buckets);
+    }
+
+    /**
+     * Returns the number of the bucket holding the timestamp, counted from 1970.
+     */
+    public static long bucket(long timestampInMillis, long bucketWidthInMillis) {
+        return Math.floorDiv(timestampInMillis, bucketWidthInMillis);
+    }
+
+    /**
+     * Reads the histogram following the timestamp of the payload. Returns false, leaving no buckets, when the payload
+     * has no histogram.
+     */
+    public boolean read(BytesRef payload, TimestampPayloadCodec codec) {
+        buckets = 0;
+        bucketWidthInMillis = 0;
+
+        int offset = codec.length(payload);
+        if (offset == 0) {
+            return false;
+        }
+
+        long width = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (offset >= payload.length || shift >= 7 * MAX_WIDTH_LENGTH) {
+                return false;
+            }
+            b = payload.bytes[payload.offset + offset++];
+            width |= (b & 0x7FL) << shift;
+            shift += 7;
+        } while (b < 0);
+        if (width < 1 || offset == payload.length) {
+            return false;
+        }
+
+        buckets = Math.min(payload.length - offset, MAX_BUCKETS);
+        bucketWidthInMillis = width;
+        for (int i = 0; i < buckets; i++) {
+            counts[i] = payload.bytes[payload.offset + offset + i] & 0xFF;
+        }
+
+        return true;
+    }
+
+    /**
+     * Number of buckets of the last read histogram, 0 when it had none.
+     */
+    public int getBuckets() {
+        return buckets;
+    }
+
+    public long getBucketWidthInMillis() {
+        return bucketWidthInMillis;
+    }
+
+    /**
+     * Count of occurrences in the bucket of the last read histogram, bucket 0 holds the latest timestamp.
+     */
+    public int getCount(int bucket) {
+        return counts[bucket];
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.index.analysis;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.settings.Settings;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of term timestamps into payloads.
+ *
+ * A timestamp is stored as a number of time units since the codec epoch, either as a fixed 4 byte int, limited to
+ * {@link Integer#MAX_VALUE} units, or as a variable length long taking 1 to 10 bytes, just a few for recent timestamps.
+ * The default codec (int, hours since 1970) is the format written by the delimited_payload_filter with int encoding.
+ * All computations are done with longs, decoded timestamps are millis since 1970.
+ */
+public final class TimestampPayloadCodec {
+    public static final String ENCODING_SETTING = "payload_encoding";
+    public static final String EPOCH_SETTING = "payload_epoch";
+    public static final String UNIT_SETTING = "payload_unit";
+
+    // Returned for terms without a timestamp payload.
+    public static final long MISSING_TIMESTAMP = 0;
+
+    // Longest payload of both encodings, a variable length long takes at most 10 bytes.
+    public static final int MAX_PAYLOAD_LENGTH = 10;
+
+    public static final TimestampPayloadCodec DEFAULT = new TimestampPayloadCodec(Encoding.INT, 0, TimeUnit.HOURS);
+
+    public enum Encoding {
+        INT, VINT
+    }
+
+    private final Encoding encoding;
+    private final long epochInMillis;
+    private final TimeUnit unit;
+    private final long epochInUnits;
+
+    public TimestampPayloadCodec(Encoding encoding, long epochInMillis, TimeUnit unit) {
+        if (unit != TimeUnit.HOURS && unit != TimeUnit.MINUTES && unit != TimeUnit.SECONDS) {
+            throw new IllegalArgumentException("payload unit must be hours, minutes or seconds, got " + unit);
+        }
+
+        this.encoding = Objects.requireNonNull(encoding);
+        this.epochInMillis = epochInMillis;
+        this.unit = unit;
+        this.epochInUnits = unit.convert(epochInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static TimestampPayloadCodec fromSettings(Settings settings) {
+        String encoding = settings.get(ENCODING_SETTING);
+        String epoch = settings.get(EPOCH_SETTING);
+        String unit = settings.get(UNIT_SETTING);
+        if (encoding == null && epoch == null && unit == null) {
+            return DEFAULT;
+        }
+
+        return new TimestampPayloadCodec(
+                encoding == null ? Encoding.INT : parseEnum(Encoding.class, ENCODING_SETTING, encoding),
+                epoch == null ? 0 : parseEpoch(epoch),
+                unit == null ? TimeUnit.HOURS : parseEnum(TimeUnit.class, UNIT_SETTING, unit));
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String setting, String value) {
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("unknown value [" + value + "] of [" + setting + "]", ex);
+        }
+    }
+
+    private static long parseEpoch(String epoch) {
+        try {
+            return Long.parseLong(epoch);
+        } catch (NumberFormatException ignored) {
+            // Not millis since 1970, so it has to be an ISO-8601 instant.
+        }
+
+        try {
+            return Instant.parse(epoch).toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            throw new IllegalArgumentException("[" + EPOCH_SETTING + "] must be millis since 1970 or an ISO-8601 instant, got ["
+                    + epoch + "]", ex);
+        }
+    }
+
+    public TimeUnit getUnit() {
+        return unit;
+    }
+
+    /**
+     * Encodes a timestamp given as a number of codec units since 1970.
+     */
+    public BytesRef encode(long timestampInUnits) {
+        byte[] bytes = new byte[MAX_PAYLOAD_LENGTH];
+        return new BytesRef(bytes, 0, encode(timestampInUnits, bytes));
+    }
+
+    /**
+     * Encodes a timestamp given as a number of codec units since 1970 into the beginning of the given array, which has
+     * to hold at least {@link #MAX_PAYLOAD_LENGTH} bytes. Returns the number of written bytes.
+     */
+    public int encode(long timestampInUnits, byte[] bytes) {
+        long value = timestampInUnits - epochInUnits;
+        long maxValue = encoding == Encoding.INT ? Integer.MAX_VALUE : Long.MAX_VALUE;
+        if (value < 0 || value > maxValue) {
+            throw new IllegalArgumentException("term timestamp [" + timestampInUnits + "] " + unit.name().toLowerCase(Locale.ROOT)
+                    + " must be within " + maxValue + " units after the payload epoch [" + epochInMillis + "]");
+        }
+
+        if (encoding == Encoding.INT) {
+            bytes[0] = (byte) (value >>> 24);
+            bytes[1] = (byte) (value >>> 16);
+            bytes[2] = (byte) (value >>> 8);
+            bytes[3] = (byte) value;
+            return Integer.BYTES;
+        }
+
+        int length = 0;
+        while ((value & ~0x7FL) != 0) {
+            bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[length++] = (byte) value;
+
+        return length;
+    }
+
+    /**
+     * Decodes a payload into millis since 1970, returns {@link #MISSING_TIMESTAMP} for null or malformed payloads.
+     */
+    public long decode(BytesRef payload) {
+        if (payload == null) {
+            return MISSING_TIMESTAMP;
+        }
+
+        final byte[] bytes = payload.bytes;
+        final int offset = payload.offset;
+        long value;
+        if (encoding == Encoding.INT) {
+            if (payload.length < Integer.BYTES) {
+                return MISSING_TIMESTAMP;
+            }
+            value = ((bytes[offset] & 0xFFL) << 24) | ((bytes[offset + 1] & 0xFFL) << 16)
+                    | ((bytes[offset + 2] & 0xFFL) << 8) | (bytes[offset + 3] & 0xFFL);
+        } else {
+            value = 0;
+            int shift = 0;
+            int i = 0;
+            byte b;
+            do {
+                if (i >= payload.length || i >= MAX_PAYLOAD_LENGTH) {
+                    return MISSING_TIMESTAMP;
+                }
+                b = bytes[offset + i++];
+                value |= (b & 0x7FL) << shift;
+                shift += 7;
+            } while (b < 0);
+            // Values above Long.MAX_VALUE are never written.
+            if (value < 0) {
+                return MISSING_TIMESTAMP;
+            }
+        }
+
+        return unit.toMillis(epochInUnits + value);
+    }
+
+    /**
+     * Returns the number of bytes of the timestamp at the beginning of the payload, 0 for null or malformed payloads.
+     * Payloads may hold more data after the timestamp, see {@link TermHistogram}.
+     */
+    public int length(BytesRef payload) {
+        if (payload == null) {
+            return 0;
+        }
+        if (encoding == Encoding.INT) {
+            return payload.length < Integer.BYTES ? 0 : Integer.BYTES;
+        }
+
+        for (int i = 0; i < payload.length && i < MAX_PAYLOAD_LENGTH; i++) {
+            if (payload.bytes[payload.offset + i] >= 0) {
+                return i + 1;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Packs a decoded timestamp into an int holding the number of codec units since the epoch, -1 for a missing timestamp
+     * or a timestamp the codec can't encode.
+     */
+    public int pack(long timestampInMillis) {
+        long value = unit.convert(timestampInMillis, TimeUnit.MILLISECONDS) - epochInUnits;
+        if (timestampInMillis == MISSING_TIMESTAMP || value < 0 || value > Integer.MAX_VALUE) {
+            return -1;
+        }
+
+        return (int) value;
+    }
+
+    /**
+     * Unpacks a timestamp packed by {@link #pack(long)} into millis since 1970.
+     */
+    public long unpack(int packedTimestamp) {
+        return packedTimestamp < 0 ? MISSING_TIMESTAMP : unit.toMillis(epochInUnits + packedTimestamp);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        TimestampPayloadCodec that = (TimestampPayloadCodec) o;
+        return encoding == that.encoding && epochInMillis == that.epochInMillis && unit == that.unit;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(encoding, epochInMillis, unit);
+    }
+
+    @Override
+    public String toString() {
+        return encoding.name().toLowerCase(Locale.ROOT) + " " + unit.name().toLowerCase(Locale.ROOT)
+                + " since " + Instant.ofEpochMilli(epochInMillis);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.index.analysis;
+
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits term|timestamp tokens and encodes the timestamp into a payload right from the token chars.
+ *
+ * Parsing doesn't allocate, the encoded payload is written into a {@link BytesRef} reused by the token stream. It is
+ * safe, because the indexing chain copies payloads and captured token states hold their own copy. The parser itself
+ * is immutable and shared by all token streams of an analysis component.
+ */
+final class TimestampPayloadParser {
+    static final char DEFAULT_DELIMITER = '|';
+
+    enum TimestampFormat {
+        // Number of payload units since 1970.
+        EPOCH,
+        EPOCH_HOURS,
+        EPOCH_SECONDS,
+        ISO8601
+    }
+
+    private final char delimiter;
+    private final TimestampFormat format;
+    private final TimestampPayloadCodec codec;
+
+    TimestampPayloadParser(char delimiter, TimestampFormat format, TimestampPayloadCodec codec) {
+        this.delimiter = delimiter;
+        this.format = format;
+        this.codec = codec;
+    }
+
+    static TimestampPayloadParser fromSettings(String name, Settings settings) {
+        String delimiter = settings.get("delimiter", String.valueOf(DEFAULT_DELIMITER));
+        if (delimiter.length() != 1) {
+            throw new IllegalArgumentException("[delimiter] of [" + name + "] must be a single character, got [" + delimiter + "]");
+        }
+
+        String format = settings.get("timestamp_format", TimestampFormat.EPOCH.name());
+        TimestampFormat timestampFormat;
+        try {
+            timestampFormat = TimestampFormat.valueOf(format.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("unknown [timestamp_format] [" + format + "] of [" + name + "]", ex);
+        }
+
+        return new TimestampPayloadParser(delimiter.charAt(0), timestampFormat, TimestampPayloadCodec.fromSettings(settings));
+    }
+
+    /**
+     * Returns a payload buffer to be reused for all tokens of a token stream.
+     */
+    static BytesRef newPayload() {
+        return new BytesRef(new byte[TimestampPayloadCodec.MAX_PAYLOAD_LENGTH]);
+    }
+
+    /**
+     * Sets payload of the token from the timestamp after the last delimiter and returns length of the term without it.
+     * Tokens without the delimiter are kept as they are, without a payload.
+     */
+    int parse(char[] buffer, int length, BytesRef payload, PayloadAttribute payloadAttribute) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[i] == delimiter) {
+                long timestamp = parseTimestamp(buffer, i + 1, length - i - 1);
+                payload.length = codec.encode(timestamp, payload.bytes);
+                payloadAttribute.setPayload(payload);
+                return i;
+            }
+        }
+
+        payloadAttribute.setPayload(null);
+        return length;
+    }
+
+    private long parseTimestamp(char[] buffer, int offset, int length) {
+        TimeUnit unit = codec.getUnit();
+        switch (format) {
+            case EPOCH:
+                return parseNumber(buffer, offset, length);
+            case EPOCH_HOURS:
+                return unit.convert(parseNumber(buffer, offset, length), TimeUnit.HOURS);
+            case EPOCH_SECONDS:
+                return unit.convert(parseNumber(buffer, offset, length), TimeUnit.SECONDS);
+            default:
+                return unit.convert(parseIsoInstant(buffer, offset, length), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static long parseNumber(char[] buffer, int offset, int length) {
+        if (length == 0) {
+            throw invalidTimestamp(buffer, offset, length);
+        }
+
+        long number = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9 || number > (Long.MAX_VALUE - digit) / 10) {
+                throw invalidTimestamp(buffer, offset, length);
+            }
+            number = number * 10 + digit;
+        }
+
+        return number;
+    }
+
+    /**
+     * Parses yyyy-MM-dd['T'HH:mm[:ss[.SSS]]][Z|+HH:mm|-HH:mm] into millis since 1970, time defaults to midnight UTC.
+     */
+    private static long parseIsoInstant(char[] buffer, int offset, int length) {
+        int end = offset + length;
+        if (length < 10 || buffer[offset + 4] != '-' || buffer[offset + 7] != '-') {
+            throw invalidTimestamp(buffer, offset, length);
+        }
+
+        int year = parseDigits(buffer, offset, 4, offset, length);
+        int month = parseDigits(buffer, offset + 5, 2, offset, length);
+        int day = parseDigits(buffer, offset + 8, 2, offset, length);
+        if (month < 1 || month > 12 || day < 1 || day > 31) {
+            throw invalidTimestamp(buffer, offset, length);
+        }
+
+        long millis = 0;
+        int i = offset + 10;
+        if (i < end && (buffer[i] == 'T' || buffer[i] == 't')) {
+            if (i + 6 > end || buffer[i + 3] != ':') {
+                throw invalidTimestamp(buffer, offset, length);
+            }
+            int hour = parseDigits(buffer, i + 1, 2, offset, length);
+            int minute = parseDigits(buffer, i + 4, 2, offset, length);
+            int second = 0;
+            i += 6;
+            if (i < end && buffer[i] == ':') {
+                second = parseDigits(buffer, i + 1, 2, offset, length);
+                i += 3;
+                if (i < end && buffer[i] == '.') {
+                    int fractionEnd = i + 1;
+                    while (fractionEnd < end && buffer[fractionEnd] >= '0' && buffer[fractionEnd] <= '9') {
+                        fractionEnd++;
+                    }
+                    // Only millis are kept from the fraction of a second.
+                    int digits = Math.min(fractionEnd - i - 1, 3);
+                    if (digits == 0) {
+                        throw invalidTimestamp(buffer, offset, length);
+                    }
+                    int fraction = parseDigits(buffer, i + 1, digits, offset, length);
+                    for (int d = digits; d < 3; d++) {
+                        fraction *= 10;
+                    }
+                    millis += fraction;
+                    i = fractionEnd;
+                }
+            }
+            if (hour > 23 || minute > 59 || second > 59) {
+                throw invalidTimestamp(buffer, offset, length);
+            }
+            millis += ((hour * 60L + minute) * 60L + second) * 1000L;
+        }
+
+        if (i < end) {
+            char sign = buffer[i];
+            if ((sign == 'Z' || sign == 'z') && i + 1 == end) {
+                i++;
+            } else if ((sign == '+' || sign == '-') && (i + 6 == end && buffer[i + 3] == ':' || i + 5 == end)) {
+                int offsetHours = parseDigits(buffer, i + 1, 2, offset, length);
+                int offsetMinutes = parseDigits(buffer, end - 2, 2, offset, length);
+                long zoneOffset = (offsetHours * 60L + offsetMinutes) * 60_000L;
+                millis -= sign == '+' ? zoneOffset : -zoneOffset;
+                i = end;
+            } else {
+                throw invalidTimestamp(buffer, offset, length);
+            }
+        }
+
+        return daysSinceEpoch(year, month, day) * 86_400_000L + millis;
+    }
+
+    private static int parseDigits(char[] buffer, int start, int count, int offset, int length) {
+        if (start + count > offset + length) {
+            throw invalidTimestamp(buffer, offset, length);
+        }
+
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw invalidTimestamp(buffer, offset, length);
+            }
+            value = value * 10 + digit;
+        }
+
+        return value;
+    }
+
+    // Days from 1970-01-01 to the proleptic Gregorian date.
+    private static long daysSinceEpoch(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static IllegalArgumentException invalidTimestamp(char[] buffer, int offset, int length) {
+        return new IllegalArgumentException("invalid term timestamp [" + new String(buffer, offset, length) + "]");
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.index.mapper;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.sinks.TeeSinkTokenFilter;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.analysis.NamedAnalyzer;
+import org.elasticsearch.index.mapper.DocumentMapperParser;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.mapper.ParseContext;
+import org.elasticsearch.index.mapper.TextFieldMapper;
+import org.elasticsearch.index.mapper.TypeParsers;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+import tisonet.elasticsearch.termrecencyboosting.search.similarity.BM25SimilarityWithTermRecencyBoosting;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Text field, which besides indexing its terms stores the latest timestamp of every term into binary doc values
+ * of the same name (see {@link TermTimestamps}). Term timestamps are read from payloads produced by the field
+ * index analyzer, decoded by the payload codec of the field similarity, so the similarity can score term recency
+ * without term vectors.
+ *
+ * Every value is analyzed just once, tokens are indexed from the same analysis which the timestamps are read from.
+ * The field accepts all parameters of the text field.
+ */
+public class RecencyTextFieldMapper extends TextFieldMapper {
+    public static final String CONTENT_TYPE = "recency_text";
+
+    // Keeps the position increment gap of the analyzer, same as in the text field.
+    private static final int POSITION_INCREMENT_GAP_USE_ANALYZER = -1;
+
+    protected RecencyTextFieldMapper(String simpleName, MappedFieldType fieldType, MappedFieldType defaultFieldType,
+                                     int positionIncrementGap, Boolean includeInAll, Settings indexSettings,
+                                     MultiFields multiFields, CopyTo copyTo) {
+        super(simpleName, fieldType, defaultFieldType, positionIncrementGap, includeInAll, indexSettings, multiFields, copyTo);
+    }
+
+    @Override
+    protected void parseCreateField(ParseContext context, List<IndexableField> fields) throws IOException {
+        int firstField = fields.size();
+        super.parseCreateField(context, fields);
+
+        String value = context.externalValueSet() ? context.externalValue().toString() : context.parser().textOrNull();
+        if (value == null) {
+            return;
+        }
+
+        SortedMap<BytesRef, Long> timestamps = new TreeMap<>();
+        readTermTimestamps(value, findIndexedField(fields, firstField), timestamps);
+        if (timestamps.isEmpty()) {
+            return;
+        }
+
+        // Every value of a multi valued field is parsed separately, but a document can hold a single doc value.
+        BinaryDocValuesField docValuesField = findDocValuesField(context.doc());
+        if (docValuesField == null) {
+            fields.add(new BinaryDocValuesField(fieldType().name(), TermTimestamps.encode(timestamps)));
+        } else {
+            TermTimestamps.decode(docValuesField.binaryValue(), timestamps);
+            docValuesField.setBytesValue(TermTimestamps.encode(timestamps));
+        }
+    }
+
+    private void readTermTimestamps(String value, Field indexedField, Map<BytesRef, Long> timestamps) throws IOException {
+        TimestampPayloadCodec codec = payloadCodec();
+        TokenStream analyzedTokens = fieldType().indexAnalyzer().tokenStream(fieldType().name(), value);
+        TermToBytesRefAttribute termAttribute = analyzedTokens.addAttribute(TermToBytesRefAttribute.class);
+        PayloadAttribute payloadAttribute = analyzedTokens.addAttribute(PayloadAttribute.class);
+        try (TokenStream tokens = indexedField == null ? analyzedTokens : tee(analyzedTokens, indexedField)) {
+            tokens.reset();
+            while (tokens.incrementToken()) {
+                long timestamp = codec.decode(payloadAttribute.getPayload());
+                if (timestamp == TimestampPayloadCodec.MISSING_TIMESTAMP) {
+                    continue;
+                }
+
+                Long previousTimestamp = timestamps.get(termAttribute.getBytesRef());
+                if (previousTimestamp == null) {
+                    timestamps.put(BytesRef.deepCopyOf(termAttribute.getBytesRef()), timestamp);
+                } else if (timestamp > previousTimestamp) {
+                    timestamps.put(termAttribute.getBytesRef(), timestamp);
+                }
+            }
+            tokens.end();
+        }
+    }
+
+    /**
+     * Caches the analyzed tokens for the indexed field while the timestamps are read, so the field indexes them
+     * without analyzing the value again.
+     */
+    private static TokenStream tee(TokenStream analyzedTokens, Field indexedField) {
+        TeeSinkTokenFilter teeTokens = new TeeSinkTokenFilter(analyzedTokens);
+        indexedField.setTokenStream(teeTokens.newSinkTokenStream());
+        return teeTokens;
+    }
+
+    private TimestampPayloadCodec payloadCodec() {
+        if (fieldType().similarity() instanceof BM25SimilarityWithTermRecencyBoosting) {
+            return ((BM25SimilarityWithTermRecencyBoosting) fieldType().similarity()).get().getPayloadCodec();
+        }
+
+        return TimestampPayloadCodec.DEFAULT;
+    }
+
+    private Field findIndexedField(List<IndexableField> fields, int firstField) {
+        for (int i = firstField; i < fields.size(); i++) {
+            IndexableField field = fields.get(i);
+            if (field instanceof Field && field.name().equals(fieldType().name())
+                    && field.fieldType().indexOptions() != IndexOptions.NONE && field.fieldType().tokenized()) {
+                return (Field) field;
+            }
+        }
+
+        return null;
+    }
+
+    private BinaryDocValuesField findDocValuesField(ParseContext.Document document) {
+        for (IndexableField field : document.getFields(fieldType().name())) {
+            if (field instanceof BinaryDocValuesField) {
+                return (BinaryDocValuesField) field;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    protected String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    /**
+     * Parses the same parameters as the text field type parser.
+     */
+    public static class TypeParser implements Mapper.TypeParser {
+        @Override
+        public Mapper.Builder<?, ?> parse(String fieldName, Map<String, Object> node, ParserContext parserContext)
+                throws MapperParsingException {
+            Builder builder = new Builder(fieldName);
+            builder.fieldType().setIndexAnalyzer(parserContext.getIndexAnalyzers().getDefaultIndexAnalyzer());
+            builder.fieldType().setSearchAnalyzer(parserContext.getIndexAnalyzers().getDefaultSearchAnalyzer());
+            builder.fieldType().setSearchQuoteAnalyzer(parserContext.getIndexAnalyzers().getDefaultSearchQuoteAnalyzer());
+            TypeParsers.parseTextField(builder, fieldName, node, parserContext);
+            for (Iterator<Map.Entry<String, Object>> iterator = node.entrySet().iterator(); iterator.hasNext();) {
+                Map.Entry<String, Object> entry = iterator.next();
+                String propName = entry.getKey();
+                Object propNode = entry.getValue();
+                if (propName.equals("position_increment_gap")) {
+                    builder.positionIncrementGap(XContentMapValues.nodeIntegerValue(propNode, POSITION_INCREMENT_GAP_USE_ANALYZER));
+                    iterator.remove();
+                } else if (propName.equals("fielddata")) {
+                    builder.fielddata(XContentMapValues.nodeBooleanValue(propNode));
+                    iterator.remove();
+                } else if (propName.equals("eager_global_ordinals")) {
+                    builder.eagerGlobalOrdinals(XContentMapValues.nodeBooleanValue(propNode));
+                    iterator.remove();
+                } else if (propName.equals("fielddata_frequency_filter")) {
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> frequencyFilter = (Map<String, Object>) propNode;
+                    double minFrequency = XContentMapValues.nodeDoubleValue(frequencyFilter.remove("min"), 0);
+                    double maxFrequency = XContentMapValues.nodeDoubleValue(frequencyFilter.remove("max"), Integer.MAX_VALUE);
+                    int minSegmentSize = XContentMapValues.nodeIntegerValue(frequencyFilter.remove("min_segment_size"), 0);
+                    builder.fielddataFrequencyFilter(minFrequency, maxFrequency, minSegmentSize);
+                    DocumentMapperParser.checkNoRemainingFields(propName, frequencyFilter, parserContext.indexVersionCreated());
+                    iterator.remove();
+                }
+            }
+
+            return builder;
+        }
+    }
+
+    public static class Builder extends TextFieldMapper.Builder {
+        // The text field builder keeps its gap private, the mapper needs it too.
+        private int positionIncrementGap = POSITION_INCREMENT_GAP_USE_ANALYZER;
+
+        public Builder(String name) {
+            super(name);
+        }
+
+        @Override
+        public Builder positionIncrementGap(int positionIncrementGap) {
+            super.positionIncrementGap(positionIncrementGap);
+            this.positionIncrementGap = positionIncrementGap;
+            return this;
+        }
+
+        @Override
+        public RecencyTextFieldMapper build(BuilderContext context) {
+            if (positionIncrementGap != POSITION_INCREMENT_GAP_USE_ANALYZER) {
+                if (fieldType.indexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) < 0) {
+                    throw new IllegalArgumentException("Cannot set position_increment_gap on field ["
+                            + name + "] without positions enabled");
+                }
+                fieldType.setIndexAnalyzer(new NamedAnalyzer(fieldType.indexAnalyzer(), positionIncrementGap));
+                fieldType.setSearchAnalyzer(new NamedAnalyzer(fieldType.searchAnalyzer(), positionIncrementGap));
+                fieldType.setSearchQuoteAnalyzer(new NamedAnalyzer(fieldType.searchQuoteAnalyzer(), positionIncrementGap));
+            }
+            if (fieldType.similarity() instanceof BM25SimilarityWithTermRecencyBoosting
+                    && ((BM25SimilarityWithTermRecencyBoosting) fieldType.similarity()).get().isVelocityMode()) {
+                throw new IllegalArgumentException("Cannot use the velocity recency_mode of the similarity on field ["
+                        + name + "], term timestamps doc values hold no term histograms");
+            }
+            setupFieldType(context);
+            return new RecencyTextFieldMapper(name, fieldType, defaultFieldType, positionIncrementGap, includeInAll,
+                    context.indexSettings(), multiFieldsBuilder.build(this, context), copyTo);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.index.mapper;
+import org.apache.lucene.util.BytesRef;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Binary doc value format holding the latest timestamp of every term of a document.
+ *
+ * Terms are stored in their index order as length prefixed bytes, so a term is found exactly without any hash
+ * collisions, and the lookup of the terms of a query sorted in the same order takes a single scan of the value.
+ * Timestamps are variable length multiples of a unit since the earliest timestamp of the document, the unit is the
+ * greatest common divisor of the differences, so timestamps of a few hours apart take one or two bytes. The value
+ * starts with the number of terms, the earliest timestamp in millis since 1970 and the unit in millis.
+ */
+public final class TermTimestamps {
+    public static final long MISSING_TIMESTAMP = TimestampPayloadCodec.MISSING_TIMESTAMP;
+
+    // Longest variable length long of the value header and term entries.
+    private static final int MAX_VLONG_BYTES = 10;
+
+    private TermTimestamps() {
+    }
+
+    /**
+     * Encodes terms with their timestamps, the map has to be sorted in natural order of the terms.
+     */
+    public static BytesRef encode(SortedMap<BytesRef, Long> timestamps) {
+        if (timestamps.isEmpty()) {
+            return new BytesRef();
+        }
+
+        long minTimestamp = Long.MAX_VALUE;
+        int maxLength = 3 * MAX_VLONG_BYTES;
+        for (Map.Entry<BytesRef, Long> entry : timestamps.entrySet()) {
+            minTimestamp = Math.min(entry.getValue(), minTimestamp);
+            maxLength += 2 * MAX_VLONG_BYTES + entry.getKey().length;
+        }
+        long unit = 0;
+        for (long timestamp : timestamps.values()) {
+            unit = greatestCommonDivisor(timestamp - minTimestamp, unit);
+        }
+        unit = Math.max(1, unit);
+
+        BytesRef value = new BytesRef(maxLength);
+        writeVLong(value, timestamps.size());
+        writeVLong(value, minTimestamp);
+        writeVLong(value, unit);
+        for (Map.Entry<BytesRef, Long> entry : timestamps.entrySet()) {
+            BytesRef term = entry.getKey();
+            writeVLong(value, term.length);
+            System.arraycopy(term.bytes, term.offset, value.bytes, value.length, term.length);
+            value.length += term.length;
+            writeVLong(value, (entry.getValue() - minTimestamp) / unit);
+        }
+
+        return value;
+    }
+
+    /**
+     * Adds all term timestamps of an encoded value to the map, keeping the latest timestamp of every term.
+     */
+    public static void decode(BytesRef value, Map<BytesRef, Long> timestamps) {
+        if (value.length == 0) {
+            return;
+        }
+
+        Reader reader = new Reader(value);
+        long size = reader.readVLong();
+        long minTimestamp = reader.readVLong();
+        long unit = reader.readVLong();
+        for (long i = 0; i < size; i++) {
+            BytesRef term = BytesRef.deepCopyOf(reader.readTerm(new BytesRef()));
+            timestamps.merge(term, minTimestamp + reader.readVLong() * unit, Math::max);
+        }
+    }
+
+    /**
+     * Returns the latest timestamp of any of the terms, or {@link #MISSING_TIMESTAMP} when none of them is in the value.
+     * The terms have to be sorted in their natural order.
+     */
+    public static long latestTimestamp(BytesRef value, BytesRef... sortedTerms) {
+        if (value.length == 0 || sortedTerms.length == 0) {
+            return MISSING_TIMESTAMP;
+        }
+
+        Reader reader = new Reader(value);
+        long size = reader.readVLong();
+        long minTimestamp = reader.readVLong();
+        long unit = reader.readVLong();
+        BytesRef term = new BytesRef();
+        long latestTimestamp = MISSING_TIMESTAMP;
+        int next = 0;
+        for (long i = 0; i < size && next < sortedTerms.length; i++) {
+            reader.readTerm(term);
+            long delta = reader.readVLong();
+
+            // Skips the terms missing in the value, which sort before the current one.
+            int comparison = term.compareTo(sortedTerms[next]);
+            while (comparison > 0 && ++next < sortedTerms.length) {
+                comparison = term.compareTo(sortedTerms[next]);
+            }
+            if (comparison == 0) {
+                latestTimestamp = Math.max(minTimestamp + delta * unit, latestTimestamp);
+                next++;
+            }
+        }
+
+        return latestTimestamp;
+    }
+
+    /**
+     * Returns the value without the terms whose timestamp is older than the given one, the value itself when it has no
+     * such terms.
+     */
+    public static BytesRef prune(BytesRef value, long oldestTimestamp) {
+        SortedMap<BytesRef, Long> timestamps = new TreeMap<>();
+        decode(value, timestamps);
+        if (!timestamps.values().removeIf(timestamp -> timestamp < oldestTimestamp)) {
+            return value;
+        }
+
+        return encode(timestamps);
+    }
+
+    private static long greatestCommonDivisor(long a, long b) {
+        while (b != 0) {
+            long remainder = a % b;
+            a = b;
+            b = remainder;
+        }
+
+        return a;
+    }
+    private static void writeVLong(BytesRef value, long number) {
+        while ((number & ~0x7FL) != 0) {
+            value.bytes[value.length++] = (byte) ((number & 0x7F) | 0x80);
+            number >>>= 7;
+        }
+        value.bytes[value.length++] = (byte) number;
+    }
+
+    /**
+     * Reads variable length longs and terms of an encoded value.
+     */
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        Reader(BytesRef value) {
+            this.bytes = value.bytes;
+            this.position = value.offset;
+        }
+
+        long readVLong() {
+            long number = 0;
+            byte b;
+            int shift = 0;
+            do {
+                b = bytes[position++];
+                number |= (b & 0x7FL) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            return number;
+        }
+
+        /**
+         * Points the given term to the bytes of the next term in the value, without copying them.
+         */
+        BytesRef readTerm(BytesRef term) {
+            term.length = (int) readVLong();
+            term.bytes = bytes;
+            term.offset = position;
+            position += term.length;
+            return term;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.index.merge;
+
+import org.apache.lucene.index.CodecReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeTrigger;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merge policy wrapper dropping timestamp payloads older than the horizon from postings and term vectors, and terms
+ * with such timestamps from term timestamps doc values, of the given fields while segments merge. Such timestamps can't boost any term anymore, the horizon only moves forward, so merged
+ * segments get smaller and segments with only old terms are scored without reading any term timestamps.
+ *
+ * Merges are selected by the wrapped merge policy, only readers of the merged segments are wrapped.
+ */
+public final class RecencyPruningMergePolicy extends MergePolicy {
+    private final MergePolicy in;
+    private final Set<String> fields;
+    private final long horizonInMillis;
+    private final TimestampPayloadCodec payloadCodec;
+
+    /**
+     * @param horizonInHours number of hours since now after which term timestamps are dropped, the same as the horizon
+     *                       of the BM25-recency similarity
+     */
+    public RecencyPruningMergePolicy(MergePolicy in, Set<String> fields, long horizonInHours,
+                                     TimestampPayloadCodec payloadCodec) {
+        if (horizonInHours <= 0) {
+            throw new IllegalArgumentException("horizon must be positive, got [" + horizonInHours + "]");
+        }
+
+        this.in = in;
+        this.fields = Collections.unmodifiableSet(new HashSet<>(fields));
+        this.horizonInMillis = TimeUnit.HOURS.toMillis(horizonInHours);
+        this.payloadCodec = payloadCodec;
+    }
+
+    @Override
+    public MergeSpecification findMerges(MergeTrigger mergeTrigger, SegmentInfos segmentInfos, IndexWriter writer)
+            throws IOException {
+        return wrap(in.findMerges(mergeTrigger, segmentInfos, writer));
+    }
+
+    @Override
+    public MergeSpecification findForcedMerges(SegmentInfos segmentInfos, int maxSegmentCount,
+                                               Map<SegmentCommitInfo, Boolean> segmentsToMerge, IndexWriter writer)
+            throws IOException {
+        return wrap(in.findForcedMerges(segmentInfos, maxSegmentCount, segmentsToMerge, writer));
+    }
+
+    @Override
+    public MergeSpecification findForcedDeletesMerges(SegmentInfos segmentInfos, IndexWriter writer) throws IOException {
+        return wrap(in.findForcedDeletesMerges(segmentInfos, writer));
+    }
+
+    @Override
+    public boolean useCompoundFile(SegmentInfos infos, SegmentCommitInfo mergedInfo, IndexWriter writer) throws IOException {
+        return in.useCompoundFile(infos, mergedInfo, writer);
+    }
+
+    @Override
+    public double getNoCFSRatio() {
+        return in.getNoCFSRatio();
+    }
+
+    @Override
+    public void setNoCFSRatio(double noCFSRatio) {
+        in.setNoCFSRatio(noCFSRatio);
+    }
+
+    @Override
+    public void setMaxCFSSegmentSizeMB(double maxCFSSegmentSizeMB) {
+        in.setMaxCFSSegmentSizeMB(maxCFSSegmentSizeMB);
+    }
+
+    private MergeSpecification wrap(MergeSpecification specification) {
+        if (specification == null) {
+            return null;
+        }
+
+        MergeSpecification pruningSpecification = new MergeSpecification();
+        for (OneMerge merge : specification.merges) {
+            pruningSpecification.add(new PruningMerge(merge));
+        }
+
+        return pruningSpecification;
+    }
+
+    private final class PruningMerge extends OneMerge {
+        private final OneMerge in;
+
+        PruningMerge(OneMerge in) {
+            super(in.segments);
+            this.in = in;
+        }
+
+        @Override
+        public CodecReader wrapForMerge(CodecReader reader) throws IOException {
+            // The horizon is relative to the time of the merge, timestamps dropped now would be beyond it for any later query.
+            long oldestTimestamp = System.currentTimeMillis() - horizonInMillis;
+            return new TimestampPruningCodecReader(in.wrapForMerge(reader), fields, oldestTimestamp, payloadCodec);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[" + getClass().getSimpleName() + "->" + in + "]";
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.index.merge;
+
+import org.apache.lucene.codecs.DocValuesProducer;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.codecs.TermVectorsReader;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.CodecReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.FilterCodecReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+import tisonet.elasticsearch.termrecencyboosting.index.mapper.TermTimestamps;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Codec reader of a merged segment hiding timestamp payloads older than the given timestamp in postings and term
+ * vectors of the given fields, so they are not written to the merged segment. Positions of the pruned occurrences are
+ * kept, only their payload is dropped, and the terms read as terms without any timestamp. Term histograms are stored
+ * in the same payloads, so they are dropped with them. Terms with older timestamps are dropped from the binary term
+ * timestamps doc values of the fields (see {@link TermTimestamps}) as well.
+ */
+final class TimestampPruningCodecReader extends FilterCodecReader {
+    private final Set<String> fields;
+    private final long oldestTimestamp;
+    private final TimestampPayloadCodec payloadCodec;
+
+    TimestampPruningCodecReader(CodecReader in, Set<String> fields, long oldestTimestamp, TimestampPayloadCodec payloadCodec) {
+        super(in);
+        this.fields = fields;
+        this.oldestTimestamp = oldestTimestamp;
+        this.payloadCodec = payloadCodec;
+    }
+
+    @Override
+    public FieldsProducer getPostingsReader() {
+        FieldsProducer postingsReader = in.getPostingsReader();
+        return postingsReader == null ? null : new PruningFieldsProducer(postingsReader);
+    }
+
+    @Override
+    public TermVectorsReader getTermVectorsReader() {
+        TermVectorsReader termVectorsReader = in.getTermVectorsReader();
+        return termVectorsReader == null ? null : new PruningTermVectorsReader(termVectorsReader);
+    }
+
+    @Override
+    public DocValuesProducer getDocValuesReader() {
+        DocValuesProducer docValuesReader = in.getDocValuesReader();
+        return docValuesReader == null ? null : new PruningDocValuesProducer(docValuesReader);
+    }
+
+    @Override
+    public Object getCoreCacheKey() {
+        return in.getCoreCacheKey();
+    }
+
+    @Override
+    public Object getCombinedCoreAndDeletesKey() {
+        return in.getCombinedCoreAndDeletesKey();
+    }
+
+    @Override
+    public String toString() {
+        return "TimestampPruningCodecReader(" + in + ")";
+    }
+
+    private Terms prune(String field, Terms terms) {
+        return terms == null || !fields.contains(field) || !terms.hasPayloads() ? terms : new PruningTerms(terms);
+    }
+
+    private final class PruningFieldsProducer extends FieldsProducer {
+        private final FieldsProducer in;
+
+        PruningFieldsProducer(FieldsProducer in) {
+            this.in = in;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return in.iterator();
+        }
+
+        @Override
+        public Terms terms(String field) throws IOException {
+            return prune(field, in.terms(field));
+        }
+
+        @Override
+        public int size() {
+            return in.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        @Override
+        public void checkIntegrity() throws IOException {
+            in.checkIntegrity();
+        }
+
+        @Override
+        public FieldsProducer getMergeInstance() throws IOException {
+            return new PruningFieldsProducer(in.getMergeInstance());
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return in.ramBytesUsed();
+        }
+
+        @Override
+        public Collection<Accountable> getChildResources() {
+            return in.getChildResources();
+        }
+    }
+
+    private final class PruningDocValuesProducer extends DocValuesProducer {
+        private final DocValuesProducer in;
+
+        PruningDocValuesProducer(DocValuesProducer in) {
+            this.in = in;
+        }
+
+        @Override
+        public NumericDocValues getNumeric(FieldInfo field) throws IOException {
+            return in.getNumeric(field);
+        }
+
+        @Override
+        public BinaryDocValues getBinary(FieldInfo field) throws IOException {
+            BinaryDocValues values = in.getBinary(field);
+            if (!fields.contains(field.name)) {
+                return values;
+            }
+
+            return new BinaryDocValues() {
+                @Override
+                public BytesRef get(int docID) {
+                    return TermTimestamps.prune(values.get(docID), oldestTimestamp);
+                }
+            };
+        }
+
+        @Override
+        public SortedDocValues getSorted(FieldInfo field) throws IOException {
+            return in.getSorted(field);
+        }
+
+        @Override
+        public SortedNumericDocValues getSortedNumeric(FieldInfo field) throws IOException {
+            return in.getSortedNumeric(field);
+        }
+
+        @Override
+        public SortedSetDocValues getSortedSet(FieldInfo field) throws IOException {
+            return in.getSortedSet(field);
+        }
+
+        @Override
+        public Bits getDocsWithField(FieldInfo field) throws IOException {
+            return in.getDocsWithField(field);
+        }
+
+        @Override
+        public void checkIntegrity() throws IOException {
+            in.checkIntegrity();
+        }
+
+        @Override
+        public DocValuesProducer getMergeInstance() throws IOException {
+            return new PruningDocValuesProducer(in.getMergeInstance());
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return in.ramBytesUsed();
+        }
+
+        @Override
+        public Collection<Accountable> getChildResources() {
+            return in.getChildResources();
+        }
+    }
+
+    private final class PruningTermVectorsReader extends TermVectorsReader {
+        private final TermVectorsReader in;
+
+        PruningTermVectorsReader(TermVectorsReader in) {
+            this.in = in;
+        }
+
+        @Override
+        public Fields get(int doc) throws IOException {
+            Fields termVectors = in.get(doc);
+            if (termVectors == null) {
+                return null;
+            }
+
+            return new FilterLeafReader.FilterFields(termVectors) {
+                @Override
+                public Terms terms(String field) throws IOException {
+                    return prune(field, in.terms(field));
+                }
+            };
+        }
+
+        @Override
+        public void checkIntegrity() throws IOException {
+            in.checkIntegrity();
+        }
+
+        @Override
+        public TermVectorsReader clone() {
+            return new PruningTermVectorsReader(in.clone());
+        }
+
+        @Override
+        public TermVectorsReader getMergeInstance() throws IOException {
+            return new PruningTermVectorsReader(in.getMergeInstance());
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return in.ramBytesUsed();
+        }
+
+        @Override
+        public Collection<Accountable> getChildResources() {
+            return in.getChildResources();
+        }
+    }
+
+    private final class PruningTerms extends FilterLeafReader.FilterTerms {
+        PruningTerms(Terms in) {
+            super(in);
+        }
+
+        @Override
+        public TermsEnum iterator() throws IOException {
+            return new FilterLeafReader.FilterTermsEnum(in.iterator()) {
+                @Override
+                public PostingsEnum postings(PostingsEnum reuse, int flags) throws IOException {
+                    PostingsEnum inReuse = reuse instanceof PruningPostingsEnum ? ((PruningPostingsEnum) reuse).unwrap() : reuse;
+                    return new PruningPostingsEnum(in.postings(inReuse, flags));
+                }
+            };
+        }
+    }
+
+    private final class PruningPostingsEnum extends FilterLeafReader.FilterPostingsEnum {
+        PruningPostingsEnum(PostingsEnum in) {
+            super(in);
+        }
+
+        PostingsEnum unwrap() {
+            return in;
+        }
+
+        @Override
+        public BytesRef getPayload() throws IOException {
+            BytesRef payload = in.getPayload();
+            if (payload == null) {
+                return null;
+            }
+
+            long timestamp = payloadCodec.decode(payload);
+            return timestamp != TimestampPayloadCodec.MISSING_TIMESTAMP && timestamp < oldestTimestamp ? null : payload;
+        }
+    }
+}
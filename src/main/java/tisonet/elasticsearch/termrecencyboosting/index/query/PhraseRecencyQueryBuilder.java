@@ -0,0 +1,290 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.index.query;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryRewriteContext;
+import org.elasticsearch.index.query.QueryShardContext;
+import tisonet.elasticsearch.termrecencyboosting.search.similarity.RecencyReferenceTime;
+import tisonet.elasticsearch.termrecencyboosting.search.similarity.SpanRecencyQuery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Phrase query boosted by recency of the phrase occurrences, which reads term timestamps from payloads of the matched
+ * positions only. The queried field has to use the BM25-recency similarity, its settings are used for recency scoring.
+ */
+public class PhraseRecencyQueryBuilder extends AbstractQueryBuilder<PhraseRecencyQueryBuilder> {
+    public static final String NAME = "phrase_recency";
+
+    private static final ParseField QUERY_FIELD = new ParseField("query");
+    private static final ParseField SLOP_FIELD = new ParseField("slop");
+    private static final ParseField NOW_FIELD = new ParseField("now");
+
+    private final String fieldName;
+    private final String text;
+    // Maximum number of positions the phrase terms may be moved by to match.
+    private int slop = 0;
+    // Reference time of term recency in millis since epoch, search request time is used when not set.
+    private Long now;
+
+    public PhraseRecencyQueryBuilder(String fieldName, String text) {
+        if (Strings.isEmpty(fieldName)) {
+            throw new IllegalArgumentException("field name is null or empty");
+        }
+        if (text == null) {
+            throw new IllegalArgumentException("query cannot be null");
+        }
+        this.fieldName = fieldName;
+        this.text = text;
+    }
+
+    public PhraseRecencyQueryBuilder(StreamInput in) throws IOException {
+        super(in);
+        this.fieldName = in.readString();
+        this.text = in.readString();
+        this.slop = in.readVInt();
+        this.now = in.readOptionalLong();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(fieldName);
+        out.writeString(text);
+        out.writeVInt(slop);
+        out.writeOptionalLong(now);
+    }
+
+    public String fieldName() {
+        return fieldName;
+    }
+
+    public String text() {
+        return text;
+    }
+
+    public PhraseRecencyQueryBuilder slop(int slop) {
+        if (slop < 0) {
+            throw new IllegalArgumentException("[" + SLOP_FIELD.getPreferredName() + "] must not be negative, got [" + slop + "]");
+        }
+        this.slop = slop;
+        return this;
+    }
+
+    public int slop() {
+        return slop;
+    }
+
+    public PhraseRecencyQueryBuilder now(Long now) {
+        this.now = now;
+        return this;
+    }
+
+    public Long now() {
+        return now;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.startObject(fieldName);
+        builder.field(QUERY_FIELD.getPreferredName(), text);
+        builder.field(SLOP_FIELD.getPreferredName(), slop);
+        if (now != null) {
+            builder.field(NOW_FIELD.getPreferredName(), now);
+        }
+        printBoostAndQueryName(builder);
+        builder.endObject();
+        builder.endObject();
+    }
+
+    public static Optional<PhraseRecencyQueryBuilder> fromXContent(QueryParseContext parseContext) throws IOException {
+        XContentParser parser = parseContext.parser();
+        String queryName = null;
+        String fieldName = null;
+        String text = null;
+        int slop = 0;
+        Long now = null;
+        float boost = AbstractQueryBuilder.DEFAULT_BOOST;
+        String currentFieldName = null;
+        XContentParser.Token token;
+
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_OBJECT) {
+                throwParsingExceptionOnMultipleFields(NAME, parser.getTokenLocation(), fieldName, currentFieldName);
+                fieldName = currentFieldName;
+                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                    if (token == XContentParser.Token.FIELD_NAME) {
+                        currentFieldName = parser.currentName();
+                    } else if (QUERY_FIELD.match(currentFieldName)) {
+                        text = parser.text();
+                    } else if (SLOP_FIELD.match(currentFieldName)) {
+                        slop = parser.intValue();
+                    } else if (NOW_FIELD.match(currentFieldName)) {
+                        now = parser.longValue();
+                    } else if (AbstractQueryBuilder.NAME_FIELD.match(currentFieldName)) {
+                        queryName = parser.text();
+                    } else if (AbstractQueryBuilder.BOOST_FIELD.match(currentFieldName)) {
+                        boost = parser.floatValue();
+                    } else {
+                        throw new ParsingException(parser.getTokenLocation(),
+                                "[" + NAME + "] query does not support [" + currentFieldName + "]");
+                    }
+                }
+            } else if (token.isValue()) {
+                throwParsingExceptionOnMultipleFields(NAME, parser.getTokenLocation(), fieldName, currentFieldName);
+                fieldName = currentFieldName;
+                text = parser.text();
+            } else {
+                throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] query does not support array of values");
+            }
+        }
+
+        if (fieldName == null || text == null) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] query requires a field and a query");
+        }
+
+        PhraseRecencyQueryBuilder builder = new PhraseRecencyQueryBuilder(fieldName, text);
+        builder.slop(slop);
+        builder.now(now);
+        builder.boost(boost);
+        if (queryName != null) {
+            builder.queryName(queryName);
+        }
+
+        return Optional.of(builder);
+    }
+
+    @Override
+    protected QueryBuilder doRewrite(QueryRewriteContext context) throws IOException {
+        Long rewrittenNow = TermRecencyQueryBuilder.rewriteNow(context, fieldName, now);
+        if (!Objects.equals(rewrittenNow, now)) {
+            return new PhraseRecencyQueryBuilder(fieldName, text).slop(slop).now(rewrittenNow).boost(boost).queryName(queryName);
+        }
+
+        return this;
+    }
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException {
+        MappedFieldType fieldType = context.fieldMapper(fieldName);
+        if (fieldType == null) {
+            return new MatchNoDocsQuery("unmapped field [" + fieldName + "]");
+        }
+
+        SpanQuery phrase = analyzePhrase(fieldType, context);
+        if (phrase == null) {
+            return new MatchNoDocsQuery("no terms in phrase [" + text + "]");
+        }
+
+        long nowInMillis = now != null ? now : RecencyReferenceTime.nowInMillis();
+        return new SpanRecencyQuery(phrase, TermRecencyQueryBuilder.latestRecencySimilarity(NAME, fieldType, context),
+                nowInMillis);
+    }
+
+    /**
+     * Builds an ordered span near query of the analyzed terms, terms at the same position are alternatives.
+     */
+    private SpanQuery analyzePhrase(MappedFieldType fieldType, QueryShardContext context) throws IOException {
+        String field = fieldType.name();
+        Analyzer analyzer = context.getSearchAnalyzer(fieldType);
+        List<List<SpanQuery>> positions = new ArrayList<>();
+        List<Integer> gaps = new ArrayList<>();
+        try (TokenStream tokenStream = analyzer.tokenStream(field, text)) {
+            TermToBytesRefAttribute termAttribute = tokenStream.addAttribute(TermToBytesRefAttribute.class);
+            PositionIncrementAttribute positionAttribute = tokenStream.addAttribute(PositionIncrementAttribute.class);
+            tokenStream.reset();
+            while (tokenStream.incrementToken()) {
+                SpanQuery termQuery = new SpanTermQuery(new Term(field, BytesRef.deepCopyOf(termAttribute.getBytesRef())));
+                int increment = positionAttribute.getPositionIncrement();
+                if (increment == 0 && !positions.isEmpty()) {
+                    positions.get(positions.size() - 1).add(termQuery);
+                } else {
+                    List<SpanQuery> alternatives = new ArrayList<>();
+                    alternatives.add(termQuery);
+                    positions.add(alternatives);
+                    gaps.add(positions.size() == 1 ? 0 : Math.max(0, increment - 1));
+                }
+            }
+            tokenStream.end();
+        }
+
+        if (positions.isEmpty()) {
+            return null;
+        }
+        if (positions.size() == 1) {
+            return spanOr(positions.get(0));
+        }
+
+        SpanNearQuery.Builder builder = new SpanNearQuery.Builder(field, true).setSlop(slop);
+        for (int i = 0; i < positions.size(); i++) {
+            if (gaps.get(i) > 0) {
+                builder.addGap(gaps.get(i));
+            }
+            builder.addClause(spanOr(positions.get(i)));
+        }
+
+        return builder.build();
+    }
+
+    private static SpanQuery spanOr(List<SpanQuery> alternatives) {
+        return alternatives.size() == 1 ? alternatives.get(0) : new SpanOrQuery(alternatives.toArray(new SpanQuery[0]));
+    }
+
+    @Override
+    protected boolean doEquals(PhraseRecencyQueryBuilder other) {
+        return Objects.equals(fieldName, other.fieldName) && Objects.equals(text, other.text) && slop == other.slop &&
+                Objects.equals(now, other.now);
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(fieldName, text, slop, now);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+}
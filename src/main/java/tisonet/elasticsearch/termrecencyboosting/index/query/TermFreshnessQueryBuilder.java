@@ -0,0 +1,233 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.index.query;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryRewriteContext;
+import org.elasticsearch.index.query.QueryShardContext;
+import tisonet.elasticsearch.termrecencyboosting.search.similarity.RecencyReferenceTime;
+import tisonet.elasticsearch.termrecencyboosting.search.similarity.TermFreshnessQuery;
+import tisonet.elasticsearch.termrecencyboosting.search.similarity.TermRecencyBoosting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Filter of documents in which any of the terms has a timestamp payload within the max age in hours. Recency of the
+ * terms is computed the same way as by term recency scoring, the queried field has to use the BM25-recency similarity,
+ * its payload encoding and reference time granularity are used.
+ */
+public class TermFreshnessQueryBuilder extends AbstractQueryBuilder<TermFreshnessQueryBuilder> {
+    public static final String NAME = "term_freshness";
+
+    private static final ParseField TERMS_FIELD = new ParseField("terms");
+    private static final ParseField MAX_AGE_FIELD = new ParseField("max_age");
+    private static final ParseField NOW_FIELD = new ParseField("now");
+
+    private final String fieldName;
+    private final List<String> values;
+    // Max term recency in hours of matching documents.
+    private final double maxAge;
+    // Reference time of term recency in millis since epoch, search request time is used when not set.
+    private Long now;
+
+    public TermFreshnessQueryBuilder(String fieldName, List<String> values, double maxAge) {
+        if (Strings.isEmpty(fieldName)) {
+            throw new IllegalArgumentException("field name is null or empty");
+        }
+        if (values == null || values.isEmpty()) {
+            throw new IllegalArgumentException("[" + TERMS_FIELD.getPreferredName() + "] cannot be null or empty");
+        }
+        if (!(maxAge >= 0) || Double.isInfinite(maxAge)) {
+            throw new IllegalArgumentException("[" + MAX_AGE_FIELD.getPreferredName() + "] must be finite and not negative, got ["
+                    + maxAge + "]");
+        }
+        this.fieldName = fieldName;
+        this.values = values;
+        this.maxAge = maxAge;
+    }
+
+    public TermFreshnessQueryBuilder(StreamInput in) throws IOException {
+        super(in);
+        this.fieldName = in.readString();
+        this.values = in.readList(StreamInput::readString);
+        this.maxAge = in.readDouble();
+        this.now = in.readOptionalLong();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(fieldName);
+        out.writeStringList(values);
+        out.writeDouble(maxAge);
+        out.writeOptionalLong(now);
+    }
+
+    public String fieldName() {
+        return fieldName;
+    }
+
+    public List<String> values() {
+        return values;
+    }
+
+    public double maxAge() {
+        return maxAge;
+    }
+
+    public TermFreshnessQueryBuilder now(Long now) {
+        this.now = now;
+        return this;
+    }
+
+    public Long now() {
+        return now;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.startObject(fieldName);
+        builder.field(TERMS_FIELD.getPreferredName(), values);
+        builder.field(MAX_AGE_FIELD.getPreferredName(), maxAge);
+        if (now != null) {
+            builder.field(NOW_FIELD.getPreferredName(), now);
+        }
+        printBoostAndQueryName(builder);
+        builder.endObject();
+        builder.endObject();
+    }
+
+    public static Optional<TermFreshnessQueryBuilder> fromXContent(QueryParseContext parseContext) throws IOException {
+        XContentParser parser = parseContext.parser();
+        String queryName = null;
+        String fieldName = null;
+        List<String> values = null;
+        Double maxAge = null;
+        Long now = null;
+        float boost = AbstractQueryBuilder.DEFAULT_BOOST;
+        String currentFieldName = null;
+        XContentParser.Token token;
+
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_OBJECT) {
+                throwParsingExceptionOnMultipleFields(NAME, parser.getTokenLocation(), fieldName, currentFieldName);
+                fieldName = currentFieldName;
+                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                    if (token == XContentParser.Token.FIELD_NAME) {
+                        currentFieldName = parser.currentName();
+                    } else if (TERMS_FIELD.match(currentFieldName)) {
+                        values = new ArrayList<>();
+                        if (token == XContentParser.Token.START_ARRAY) {
+                            while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                                values.add(parser.text());
+                            }
+                        } else {
+                            values.add(parser.text());
+                        }
+                    } else if (MAX_AGE_FIELD.match(currentFieldName)) {
+                        maxAge = parser.doubleValue();
+                    } else if (NOW_FIELD.match(currentFieldName)) {
+                        now = parser.longValue();
+                    } else if (AbstractQueryBuilder.NAME_FIELD.match(currentFieldName)) {
+                        queryName = parser.text();
+                    } else if (AbstractQueryBuilder.BOOST_FIELD.match(currentFieldName)) {
+                        boost = parser.floatValue();
+                    } else {
+                        throw new ParsingException(parser.getTokenLocation(),
+                                "[" + NAME + "] query does not support [" + currentFieldName + "]");
+                    }
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(),
+                        "[" + NAME + "] query requires an object with terms and max age of the field");
+            }
+        }
+
+        if (fieldName == null || values == null || maxAge == null) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] query requires a field, terms and a max age");
+        }
+
+        TermFreshnessQueryBuilder builder = new TermFreshnessQueryBuilder(fieldName, values, maxAge);
+        builder.now(now);
+        builder.boost(boost);
+        if (queryName != null) {
+            builder.queryName(queryName);
+        }
+
+        return Optional.of(builder);
+    }
+
+    @Override
+    protected QueryBuilder doRewrite(QueryRewriteContext context) throws IOException {
+        Long rewrittenNow = TermRecencyQueryBuilder.rewriteNow(context, fieldName, now);
+        if (!Objects.equals(rewrittenNow, now)) {
+            return new TermFreshnessQueryBuilder(fieldName, values, maxAge).now(rewrittenNow).boost(boost).queryName(queryName);
+        }
+
+        return this;
+    }
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException {
+        MappedFieldType fieldType = context.fieldMapper(fieldName);
+        if (fieldType == null) {
+            return new MatchNoDocsQuery("unmapped field [" + fieldName + "]");
+        }
+
+        List<Term> terms = new ArrayList<>(values.size());
+        for (String value : values) {
+            terms.add(MappedFieldType.extractTerm(fieldType.termQuery(value, context)));
+        }
+        long nowInMillis = now != null ? now : RecencyReferenceTime.nowInMillis();
+        TermRecencyBoosting similarity = TermRecencyQueryBuilder.recencySimilarity(fieldType, context);
+        return new TermFreshnessQuery(terms, similarity, nowInMillis, maxAge);
+    }
+
+    @Override
+    protected boolean doEquals(TermFreshnessQueryBuilder other) {
+        return Objects.equals(fieldName, other.fieldName) && Objects.equals(values, other.values) &&
+                Double.compare(maxAge, other.maxAge) == 0 && Objects.equals(now, other.now);
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(fieldName, values, maxAge, now);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.index.query;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.lucene.search.function.ScoreFunction;
+import org.elasticsearch.common.lucene.search.function.WeightFactorFunction;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilder;
+import tisonet.elasticsearch.termrecencyboosting.search.similarity.TermRecencyBoosting;
+import tisonet.elasticsearch.termrecencyboosting.search.similarity.TermRecencyFunction;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Function score function multiplying the score by the term recency score of the given terms, read the same way as
+ * the BM25-recency similarity of the field reads them. Used in a rescore query the term timestamps are read only for
+ * the rescored window of top hits, while the main query scores the terms by plain BM25.
+ */
+public class TermRecencyFunctionBuilder extends ScoreFunctionBuilder<TermRecencyFunctionBuilder> {
+    public static final String NAME = "term_recency";
+
+    private static final ParseField FIELD_FIELD = new ParseField("field");
+    private static final ParseField VALUE_FIELD = new ParseField("value");
+    private static final ParseField NOW_FIELD = new ParseField("now");
+
+    private final String fieldName;
+    // Text analyzed by the field search analyzer into the terms whose timestamps are read.
+    private final String value;
+    // Reference time of term recency in millis since epoch, search request time is used when not set.
+    private Long now;
+
+    public TermRecencyFunctionBuilder(String fieldName, String value) {
+        if (Strings.isEmpty(fieldName)) {
+            throw new IllegalArgumentException("field name is null or empty");
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("value cannot be null");
+        }
+        this.fieldName = fieldName;
+        this.value = value;
+    }
+
+    public TermRecencyFunctionBuilder(StreamInput in) throws IOException {
+        super(in);
+        this.fieldName = in.readString();
+        this.value = in.readString();
+        this.now = in.readOptionalLong();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(fieldName);
+        out.writeString(value);
+        out.writeOptionalLong(now);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    public String fieldName() {
+        return fieldName;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public TermRecencyFunctionBuilder now(Long now) {
+        this.now = now;
+        return this;
+    }
+
+    public Long now() {
+        return now;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(FIELD_FIELD.getPreferredName(), fieldName);
+        builder.field(VALUE_FIELD.getPreferredName(), value);
+        if (now != null) {
+            builder.field(NOW_FIELD.getPreferredName(), now);
+        }
+        builder.endObject();
+    }
+
+    public static TermRecencyFunctionBuilder fromXContent(QueryParseContext parseContext) throws IOException {
+        XContentParser parser = parseContext.parser();
+        String fieldName = null;
+        String value = null;
+        Long now = null;
+        String currentFieldName = null;
+        XContentParser.Token token;
+
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue() && FIELD_FIELD.match(currentFieldName)) {
+                fieldName = parser.text();
+            } else if (token.isValue() && VALUE_FIELD.match(currentFieldName)) {
+                value = parser.text();
+            } else if (token.isValue() && NOW_FIELD.match(currentFieldName)) {
+                now = parser.longValue();
+            } else {
+                throw new ParsingException(parser.getTokenLocation(),
+                        "[" + NAME + "] function does not support [" + currentFieldName + "]");
+            }
+        }
+
+        if (fieldName == null || value == null) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] function requires a field and a value");
+        }
+
+        return new TermRecencyFunctionBuilder(fieldName, value).now(now);
+    }
+
+    @Override
+    protected ScoreFunction doToFunction(QueryShardContext context) throws IOException {
+        MappedFieldType fieldType = context.fieldMapper(fieldName);
+        if (fieldType == null) {
+            // Unmapped field has no term timestamps, its documents keep their score.
+            return new WeightFactorFunction(1.0f);
+        }
+
+        TermRecencyBoosting similarity = TermRecencyQueryBuilder.recencySimilarity(fieldType, context);
+        if (now == null) {
+            return new TermRecencyFunction(fieldType.name(), analyze(fieldType, context), similarity);
+        }
+
+        return new TermRecencyFunction(fieldType.name(), analyze(fieldType, context), similarity, now);
+    }
+
+    private BytesRef[] analyze(MappedFieldType fieldType, QueryShardContext context) throws IOException {
+        Analyzer analyzer = context.getSearchAnalyzer(fieldType);
+        Set<BytesRef> terms = new LinkedHashSet<>();
+        try (TokenStream tokenStream = analyzer.tokenStream(fieldType.name(), value)) {
+            TermToBytesRefAttribute termAttribute = tokenStream.addAttribute(TermToBytesRefAttribute.class);
+            tokenStream.reset();
+            while (tokenStream.incrementToken()) {
+                terms.add(BytesRef.deepCopyOf(termAttribute.getBytesRef()));
+            }
+            tokenStream.end();
+        }
+
+        return terms.toArray(new BytesRef[terms.size()]);
+    }
+
+    @Override
+    protected boolean doEquals(TermRecencyFunctionBuilder other) {
+        return Objects.equals(fieldName, other.fieldName) && Objects.equals(value, other.value) &&
+                Objects.equals(now, other.now);
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(fieldName, value, now);
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.index.query;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryRewriteContext;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.query.QueryShardException;
+import org.elasticsearch.index.query.functionscore.ExponentialDecayFunctionBuilder;
+import org.elasticsearch.index.query.functionscore.GaussDecayFunctionBuilder;
+import org.elasticsearch.index.query.functionscore.LinearDecayFunctionBuilder;
+import tisonet.elasticsearch.termrecencyboosting.search.similarity.BM25SimilarityWithTermRecencyBoosting;
+import tisonet.elasticsearch.termrecencyboosting.search.similarity.RecencyReferenceTime;
+import tisonet.elasticsearch.termrecencyboosting.search.similarity.TermRecencyBoosting;
+import tisonet.elasticsearch.termrecencyboosting.search.similarity.TermRecencyQuery;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Term query boosted by term recency, which reads term timestamps from its own postings payloads.
+ * The queried field has to use the BM25-recency similarity, its settings are used for recency scoring.
+ */
+public class TermRecencyQueryBuilder extends AbstractQueryBuilder<TermRecencyQueryBuilder> {
+    public static final String NAME = "term_recency";
+
+    private static final ParseField VALUE_FIELD = new ParseField("value");
+    private static final ParseField NOW_FIELD = new ParseField("now");
+    private static final ParseField TOP_K_FIELD = new ParseField("top_k");
+    private static final ParseField DECAY_FUNCTION_FIELD = new ParseField("decay_function");
+    private static final ParseField SCALE_FIELD = new ParseField("scale");
+    private static final ParseField DECAY_FIELD = new ParseField("decay");
+    private static final ParseField WEIGHT_FIELD = new ParseField("weight");
+
+    private static final Set<String> DECAY_FUNCTIONS = new HashSet<>(Arrays.asList(LinearDecayFunctionBuilder.NAME,
+            ExponentialDecayFunctionBuilder.NAME, GaussDecayFunctionBuilder.NAME));
+
+    private final String fieldName;
+    private final String value;
+    // Reference time of term recency in millis since epoch, search request time is used when not set.
+    private Long now;
+    // Number of top hits the query has to find exactly, other documents may be skipped.
+    private Integer topK;
+    // Decay parameters overriding the similarity settings, the similarity ones are used when not set.
+    private String decayFunction;
+    private Double scale;
+    private Double decay;
+    private Double weight;
+
+    public TermRecencyQueryBuilder(String fieldName, String value) {
+        if (Strings.isEmpty(fieldName)) {
+            throw new IllegalArgumentException("field name is null or empty");
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("value cannot be null");
+        }
+        this.fieldName = fieldName;
+        this.value = value;
+    }
+
+    public TermRecencyQueryBuilder(StreamInput in) throws IOException {
+        super(in);
+        this.fieldName = in.readString();
+        this.value = in.readString();
+        this.now = in.readOptionalLong();
+        this.topK = in.readOptionalVInt();
+        this.decayFunction = in.readOptionalString();
+        this.scale = in.readOptionalDouble();
+        this.decay = in.readOptionalDouble();
+        this.weight = in.readOptionalDouble();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(fieldName);
+        out.writeString(value);
+        out.writeOptionalLong(now);
+        out.writeOptionalVInt(topK);
+        out.writeOptionalString(decayFunction);
+        out.writeOptionalDouble(scale);
+        out.writeOptionalDouble(decay);
+        out.writeOptionalDouble(weight);
+    }
+
+    public String fieldName() {
+        return fieldName;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public TermRecencyQueryBuilder now(Long now) {
+        this.now = now;
+        return this;
+    }
+
+    public Long now() {
+        return now;
+    }
+
+    public TermRecencyQueryBuilder topK(Integer topK) {
+        if (topK != null && topK < 1) {
+            throw new IllegalArgumentException("[" + TOP_K_FIELD.getPreferredName() + "] must be positive, got [" + topK + "]");
+        }
+        this.topK = topK;
+        return this;
+    }
+
+    public Integer topK() {
+        return topK;
+    }
+
+    public TermRecencyQueryBuilder decayFunction(String decayFunction) {
+        if (decayFunction != null && !DECAY_FUNCTIONS.contains(decayFunction)) {
+            throw new IllegalArgumentException("[" + DECAY_FUNCTION_FIELD.getPreferredName() + "] must be one of "
+                    + DECAY_FUNCTIONS + ", got [" + decayFunction + "]");
+        }
+        this.decayFunction = decayFunction;
+        return this;
+    }
+
+    public String decayFunction() {
+        return decayFunction;
+    }
+
+    public TermRecencyQueryBuilder scale(Double scale) {
+        if (scale != null && !(scale > 0)) {
+            throw new IllegalArgumentException("[" + SCALE_FIELD.getPreferredName() + "] must be positive, got [" + scale + "]");
+        }
+        this.scale = scale;
+        return this;
+    }
+
+    public Double scale() {
+        return scale;
+    }
+
+    public TermRecencyQueryBuilder decay(Double decay) {
+        if (decay != null && !(decay > 0 && decay < 1)) {
+            throw new IllegalArgumentException("[" + DECAY_FIELD.getPreferredName() + "] must be in the range (0..1), got ["
+                    + decay + "]");
+        }
+        this.decay = decay;
+        return this;
+    }
+
+    public Double decay() {
+        return decay;
+    }
+
+    public TermRecencyQueryBuilder weight(Double weight) {
+        if (weight != null && !Double.isFinite(weight)) {
+            throw new IllegalArgumentException("[" + WEIGHT_FIELD.getPreferredName() + "] must be finite, got [" + weight + "]");
+        }
+        this.weight = weight;
+        return this;
+    }
+
+    public Double weight() {
+        return weight;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.startObject(fieldName);
+        builder.field(VALUE_FIELD.getPreferredName(), value);
+        if (now != null) {
+            builder.field(NOW_FIELD.getPreferredName(), now);
+        }
+        if (topK != null) {
+            builder.field(TOP_K_FIELD.getPreferredName(), topK);
+        }
+        if (decayFunction != null) {
+            builder.field(DECAY_FUNCTION_FIELD.getPreferredName(), decayFunction);
+        }
+        if (scale != null) {
+            builder.field(SCALE_FIELD.getPreferredName(), scale);
+        }
+        if (decay != null) {
+            builder.field(DECAY_FIELD.getPreferredName(), decay);
+        }
+        if (weight != null) {
+            builder.field(WEIGHT_FIELD.getPreferredName(), weight);
+        }
+        printBoostAndQueryName(builder);
+        builder.endObject();
+        builder.endObject();
+    }
+
+    public static Optional<TermRecencyQueryBuilder> fromXContent(QueryParseContext parseContext) throws IOException {
+        XContentParser parser = parseContext.parser();
+        String queryName = null;
+        String fieldName = null;
+        String value = null;
+        Long now = null;
+        Integer topK = null;
+        String decayFunction = null;
+        Double scale = null;
+        Double decay = null;
+        Double weight = null;
+        float boost = AbstractQueryBuilder.DEFAULT_BOOST;
+        String currentFieldName = null;
+        XContentParser.Token token;
+
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_OBJECT) {
+                throwParsingExceptionOnMultipleFields(NAME, parser.getTokenLocation(), fieldName, currentFieldName);
+                fieldName = currentFieldName;
+                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                    if (token == XContentParser.Token.FIELD_NAME) {
+                        currentFieldName = parser.currentName();
+                    } else if (VALUE_FIELD.match(currentFieldName)) {
+                        value = parser.text();
+                    } else if (NOW_FIELD.match(currentFieldName)) {
+                        now = parser.longValue();
+                    } else if (TOP_K_FIELD.match(currentFieldName)) {
+                        topK = parser.intValue();
+                    } else if (DECAY_FUNCTION_FIELD.match(currentFieldName)) {
+                        decayFunction = parser.text();
+                    } else if (SCALE_FIELD.match(currentFieldName)) {
+                        scale = parser.doubleValue();
+                    } else if (DECAY_FIELD.match(currentFieldName)) {
+                        decay = parser.doubleValue();
+                    } else if (WEIGHT_FIELD.match(currentFieldName)) {
+                        weight = parser.doubleValue();
+                    } else if (AbstractQueryBuilder.NAME_FIELD.match(currentFieldName)) {
+                        queryName = parser.text();
+                    } else if (AbstractQueryBuilder.BOOST_FIELD.match(currentFieldName)) {
+                        boost = parser.floatValue();
+                    } else {
+                        throw new ParsingException(parser.getTokenLocation(),
+                                "[" + NAME + "] query does not support [" + currentFieldName + "]");
+                    }
+                }
+            } else if (token.isValue()) {
+                throwParsingExceptionOnMultipleFields(NAME, parser.getTokenLocation(), fieldName, currentFieldName);
+                fieldName = currentFieldName;
+                value = parser.text();
+            } else {
+                throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] query does not support array of values");
+            }
+        }
+
+        if (fieldName == null || value == null) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] query requires a field and a value");
+        }
+
+        TermRecencyQueryBuilder builder = new TermRecencyQueryBuilder(fieldName, value);
+        builder.now(now);
+        builder.topK(topK);
+        builder.decayFunction(decayFunction).scale(scale).decay(decay).weight(weight);
+        builder.boost(boost);
+        if (queryName != null) {
+            builder.queryName(queryName);
+        }
+
+        return Optional.of(builder);
+    }
+
+    @Override
+    protected QueryBuilder doRewrite(QueryRewriteContext context) throws IOException {
+        Long rewrittenNow = rewriteNow(context, fieldName, now);
+        if (!Objects.equals(rewrittenNow, now)) {
+            return new TermRecencyQueryBuilder(fieldName, value).now(rewrittenNow).topK(topK).decayFunction(decayFunction)
+                    .scale(scale).decay(decay).weight(weight).boost(boost).queryName(queryName);
+        }
+
+        return this;
+    }
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException {
+        MappedFieldType fieldType = context.fieldMapper(fieldName);
+        if (fieldType == null) {
+            return new MatchNoDocsQuery("unmapped field [" + fieldName + "]");
+        }
+
+        Term term = MappedFieldType.extractTerm(fieldType.termQuery(value, context));
+        long nowInMillis = now != null ? now : RecencyReferenceTime.nowInMillis();
+        TermRecencyBoosting similarity = latestRecencySimilarity(NAME, fieldType, context)
+                .withDecay(decayFunction, scale, decay, weight);
+        return new TermRecencyQuery(term, similarity, nowInMillis, topK != null ? topK : 0);
+    }
+
+    static TermRecencyBoosting recencySimilarity(MappedFieldType fieldType, QueryShardContext context) {
+        if (fieldType.similarity() instanceof BM25SimilarityWithTermRecencyBoosting) {
+            return ((BM25SimilarityWithTermRecencyBoosting) fieldType.similarity()).get();
+        }
+
+        throw new QueryShardException(context, "[" + NAME + "] field [" + fieldType.name() + "] must use a ["
+                + BM25SimilarityWithTermRecencyBoosting.TYPE + "] similarity");
+    }
+
+    /**
+     * Returns the reference time of a recency query on the field resolved in the rewrite: the explicit time or the time
+     * of the search request rounded to the now granularity of the field similarity, so requests within the same period
+     * rewrite to equal queries and the rounded time becomes part of the request cache key. Shards rewrite requests on
+     * a copy of the shard context, so reading the request time here doesn't make the request uncachable, unlike
+     * reading it in toQuery. Fields without the BM25-recency similarity keep the given time.
+     */
+    static Long rewriteNow(QueryRewriteContext context, String fieldName, Long now) {
+        MappedFieldType fieldType = context.getMapperService() != null ? context.getMapperService().fullName(fieldName) : null;
+        if (fieldType == null || !(fieldType.similarity() instanceof BM25SimilarityWithTermRecencyBoosting)) {
+            return now;
+        }
+
+        long nowInMillis = now != null ? now : context.nowInMillis();
+        return ((BM25SimilarityWithTermRecencyBoosting) fieldType.similarity()).get().roundNow(nowInMillis);
+    }
+
+    /**
+     * Returns the recency similarity of the field for queries scoring postings payloads, which are scored by the latest
+     * timestamp only.
+     */
+    static TermRecencyBoosting latestRecencySimilarity(String queryName, MappedFieldType fieldType,
+                                                       QueryShardContext context) {
+        TermRecencyBoosting similarity = recencySimilarity(fieldType, context);
+        if (similarity.isVelocityMode()) {
+            throw new QueryShardException(context, "[" + queryName + "] field [" + fieldType.name()
+                    + "] similarity must not use the velocity recency_mode, term velocity is read from term vectors only");
+        }
+
+        return similarity;
+    }
+
+    @Override
+    protected boolean doEquals(TermRecencyQueryBuilder other) {
+        return Objects.equals(fieldName, other.fieldName) && Objects.equals(value, other.value) &&
+                Objects.equals(now, other.now) && Objects.equals(topK, other.topK) &&
+                Objects.equals(decayFunction, other.decayFunction) && Objects.equals(scale, other.scale) &&
+                Objects.equals(decay, other.decay) && Objects.equals(weight, other.weight);
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(fieldName, value, now, topK, decayFunction, scale, decay, weight);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+}
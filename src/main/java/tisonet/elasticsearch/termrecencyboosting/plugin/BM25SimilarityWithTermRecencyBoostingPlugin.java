@@ -15,15 +15,111 @@
 
 package tisonet.elasticsearch.termrecencyboosting.plugin;
 
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.RecencyCollapseTokenFilterFactory;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.RecencyPayloadTokenFilterFactory;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.RecencyPayloadTokenizerFactory;
+import tisonet.elasticsearch.termrecencyboosting.index.mapper.RecencyTextFieldMapper;
+import tisonet.elasticsearch.termrecencyboosting.index.query.PhraseRecencyQueryBuilder;
+import tisonet.elasticsearch.termrecencyboosting.index.query.TermFreshnessQueryBuilder;
+import tisonet.elasticsearch.termrecencyboosting.index.query.TermRecencyFunctionBuilder;
+import tisonet.elasticsearch.termrecencyboosting.index.query.TermRecencyQueryBuilder;
+import tisonet.elasticsearch.termrecencyboosting.rest.RestRecencyStatsAction;
 import tisonet.elasticsearch.termrecencyboosting.search.similarity.BM25SimilarityWithTermRecencyBoosting;
+import tisonet.elasticsearch.termrecencyboosting.search.similarity.RecencyReferenceTime;
+import tisonet.elasticsearch.termrecencyboosting.search.similarity.TopHitsPruningValidator;
+import tisonet.elasticsearch.termrecencyboosting.search.stats.IndexRecencyMetrics;
+import tisonet.elasticsearch.termrecencyboosting.search.stats.RecencyMetrics;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.index.Index;
 import org.elasticsearch.index.IndexModule;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.index.analysis.TokenizerFactory;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.indices.analysis.AnalysisModule.AnalysisProvider;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
+import org.elasticsearch.plugins.ActionPlugin;
+import org.elasticsearch.plugins.AnalysisPlugin;
+import org.elasticsearch.plugins.MapperPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+public class BM25SimilarityWithTermRecencyBoostingPlugin extends Plugin
+        implements ActionPlugin, AnalysisPlugin, MapperPlugin, SearchPlugin {
+    // Scoring metrics of all indices on this node.
+    private final RecencyMetrics metrics = new RecencyMetrics();
 
-public class BM25SimilarityWithTermRecencyBoostingPlugin extends Plugin {
     public String name() {
-        return "BM25-recency";
+        return BM25SimilarityWithTermRecencyBoosting.TYPE;
     }
     public void onIndexModule(IndexModule indexModule) {
-        indexModule.addSimilarity("BM25-recency", BM25SimilarityWithTermRecencyBoosting::new);
+        IndexRecencyMetrics indexMetrics = metrics.forIndex(indexModule.getIndex().getName());
+        indexModule.addSimilarity(BM25SimilarityWithTermRecencyBoosting.TYPE,
+                (name, settings) -> new BM25SimilarityWithTermRecencyBoosting(name, settings, indexMetrics));
+        indexModule.addSearchOperationListener(RecencyReferenceTime.SEARCH_LISTENER);
+        indexModule.addSearchOperationListener(TopHitsPruningValidator.SEARCH_LISTENER);
+        indexModule.addIndexEventListener(new IndexEventListener() {
+            @Override
+            public void afterIndexRemoved(Index index, IndexSettings indexSettings, IndexRemovalReason reason) {
+                metrics.removeIndex(index.getName());
+            }
+        });
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController, ClusterSettings clusterSettings,
+                                             IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return Collections.singletonList(new RestRecencyStatsAction(settings, restController, metrics));
+    }
+
+    @Override
+    public Map<String, AnalysisProvider<TokenFilterFactory>> getTokenFilters() {
+        Map<String, AnalysisProvider<TokenFilterFactory>> tokenFilters = new HashMap<>();
+        tokenFilters.put(RecencyPayloadTokenFilterFactory.NAME, RecencyPayloadTokenFilterFactory::new);
+        tokenFilters.put(RecencyCollapseTokenFilterFactory.NAME, RecencyCollapseTokenFilterFactory::new);
+        return tokenFilters;
+    }
+
+    @Override
+    public Map<String, AnalysisProvider<TokenizerFactory>> getTokenizers() {
+        return Collections.singletonMap(RecencyPayloadTokenizerFactory.NAME, RecencyPayloadTokenizerFactory::new);
+    }
+
+    @Override
+    public Map<String, Mapper.TypeParser> getMappers() {
+        return Collections.singletonMap(RecencyTextFieldMapper.CONTENT_TYPE, new RecencyTextFieldMapper.TypeParser());
+    }
+
+    @Override
+    public List<QuerySpec<?>> getQueries() {
+        return Arrays.asList(
+                new QuerySpec<>(TermRecencyQueryBuilder.NAME, TermRecencyQueryBuilder::new, TermRecencyQueryBuilder::fromXContent),
+                new QuerySpec<>(PhraseRecencyQueryBuilder.NAME, PhraseRecencyQueryBuilder::new,
+                        PhraseRecencyQueryBuilder::fromXContent),
+                new QuerySpec<>(TermFreshnessQueryBuilder.NAME, TermFreshnessQueryBuilder::new,
+                        TermFreshnessQueryBuilder::fromXContent));
+    }
+
+    @Override
+    public List<ScoreFunctionSpec<?>> getScoreFunctions() {
+        return Collections.singletonList(new ScoreFunctionSpec<>(TermRecencyFunctionBuilder.NAME,
+                TermRecencyFunctionBuilder::new, TermRecencyFunctionBuilder::fromXContent));
     }
-}
\ No newline at end of file
+}
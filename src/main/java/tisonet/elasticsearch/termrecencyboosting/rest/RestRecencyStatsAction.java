@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.rest;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import tisonet.elasticsearch.termrecencyboosting.search.stats.RecencyMetrics;
+
+import java.io.IOException;
+
+/**
+ * Returns term recency scoring metrics of the node handling the request, per index and field.
+ */
+public class RestRecencyStatsAction extends BaseRestHandler {
+    private final RecencyMetrics metrics;
+
+    public RestRecencyStatsAction(Settings settings, RestController controller, RecencyMetrics metrics) {
+        super(settings);
+        this.metrics = metrics;
+        controller.registerHandler(RestRequest.Method.GET, "/_recency/stats", this);
+        controller.registerHandler(RestRequest.Method.GET, "/_recency/stats/{" + RecencyMetrics.INDEX_PARAM + "}", this);
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        // Consume the parameter here, so it is not rejected as unrecognized.
+        request.param(RecencyMetrics.INDEX_PARAM);
+
+        return channel -> {
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            builder.field("node", Node.NODE_NAME_SETTING.get(settings));
+            metrics.toXContent(builder, request);
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+        };
+    }
+}
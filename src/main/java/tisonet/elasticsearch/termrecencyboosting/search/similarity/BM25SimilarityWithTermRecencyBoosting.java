@@ -20,23 +20,40 @@ import org.apache.lucene.search.similarities.Similarity;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.inject.assistedinject.Assisted;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.similarity.AbstractSimilarityProvider;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+import tisonet.elasticsearch.termrecencyboosting.search.stats.IndexRecencyMetrics;
 
 
 public class BM25SimilarityWithTermRecencyBoosting extends AbstractSimilarityProvider {
+    public static final String TYPE = "BM25-recency";
+
     private final TermRecencyBoosting similarity;
 
     @Inject
     public BM25SimilarityWithTermRecencyBoosting(@Assisted String name, @Assisted Settings settings) {
+        this(name, settings, new IndexRecencyMetrics(TermRecencyBoosting.UNREGISTERED_INDEX));
+    }
+
+    public BM25SimilarityWithTermRecencyBoosting(String name, Settings settings, IndexRecencyMetrics metrics) {
         super(name);
         String decayFunction = settings.get("decay_function", TermRecencyBoosting.DEFAULT_DECAY_FUNCTION);
+        DecayCurve decayCurve = DecayCurve.parse(decayFunction, settings.getAsArray("decay_points"));
         Double scale = settings.getAsDouble("scale", TermRecencyBoosting.DEFAULT_SCALE);
         Double decay = settings.getAsDouble("decay", TermRecencyBoosting.DEFAULT_DECAY);
         Double weight = settings.getAsDouble("weight", TermRecencyBoosting.DEFAULT_WEIGHT);
+        Integer horizon = settings.getAsInt("horizon", DecayBooster.AUTO_HORIZON);
+        TermRecencyBoosting.RecencyMode recencyMode = TermRecencyBoosting.RecencyMode.fromString(
+                settings.get("recency_mode", TermRecencyBoosting.RecencyMode.LATEST.name()));
+        TimeValue nowGranularity = settings.getAsTime("now_granularity",
+                TimeValue.timeValueHours(TermRecencyBoosting.DEFAULT_NOW_GRANULARITY));
 
         // BM25 field length normalization is disabled, because it doesn't make sense for fields with recency boosting.
         Similarity bm25WithDisabledFieldLengthNorm =  new BM25Similarity(1.2F, 0.0F);
-        this.similarity = new TermRecencyBoosting(bm25WithDisabledFieldLengthNorm, decayFunction, scale, decay, weight);
+        DecayBooster recencyBooster = new DecayBooster(decayFunction, decayCurve, scale, decay, weight, horizon);
+        this.similarity = new TermRecencyBoosting(bm25WithDisabledFieldLengthNorm, recencyBooster,
+                nowGranularity.millis(), TimestampPayloadCodec.fromSettings(settings), metrics, recencyMode);
     }
 
     public TermRecencyBoosting get() {
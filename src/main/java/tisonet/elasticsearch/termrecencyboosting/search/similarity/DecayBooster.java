@@ -16,23 +16,104 @@
 package tisonet.elasticsearch.termrecencyboosting.search.similarity;
 
 import org.apache.lucene.search.Explanation;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
 import org.elasticsearch.index.query.functionscore.DecayFunction;
 import org.elasticsearch.index.query.functionscore.ExponentialDecayFunctionBuilder;
 import org.elasticsearch.index.query.functionscore.GaussDecayFunctionBuilder;
 import org.elasticsearch.index.query.functionscore.LinearDecayFunctionBuilder;
 
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+
 class DecayBooster {
+    static final int AUTO_HORIZON = -1;
+    static final int MAX_HORIZON = 365 * 24; // One year in hours.
+
+    // Automatic horizon ends where boost drops under this fraction of weight.
+    private static final double MIN_BOOST_RATIO = 0.0001;
+
+    // Boosters with decay parameters overridden by queries, shared by all indices of the node.
+    private static final long MAX_CACHE_WEIGHT_IN_BYTES = 8L * 1024 * 1024;
+    private static final Cache<Parameters, DecayBooster> CACHE = CacheBuilder.<Parameters, DecayBooster>builder()
+            .setMaximumWeight(MAX_CACHE_WEIGHT_IN_BYTES)
+            .weigher((parameters, booster) -> booster.ramBytesUsed())
+            .build();
+
+    private final Parameters parameters;
     private final DecayFunction decayFunction;
+    // Custom decay curve of points and step decay functions, null for the built-in ones.
+    private final DecayCurve curve;
     private final double processedScale;
     private final double weight;
 
+    // Boosts precomputed for every hour of term recency within the horizon, beyond it the boost is 0.
+    private final float[] boosts;
+
     DecayBooster(String decayFunctionName, double scale, double decay, double weight) {
-        this.decayFunction = buildDecayFunction(decayFunctionName);
+        this(decayFunctionName, scale, decay, weight, AUTO_HORIZON);
+    }
+
+    DecayBooster(String decayFunctionName, double scale, double decay, double weight, int horizon) {
+        this(decayFunctionName, null, scale, decay, weight, horizon);
+    }
+
+    /**
+     * @param curve points of the points and step decay functions, see {@link DecayCurve#parse(String, String[])}
+     */
+    DecayBooster(String decayFunctionName, DecayCurve curve, double scale, double decay, double weight, int horizon) {
+        if (horizon != AUTO_HORIZON && (horizon < 0 || horizon > MAX_HORIZON)) {
+            throw new IllegalArgumentException("horizon must be between 0 and " + MAX_HORIZON + " hours, got " + horizon);
+        }
+
+        this.parameters = new Parameters(decayFunctionName, curve, scale, decay, weight, horizon);
+        this.curve = curve;
+        this.decayFunction = buildDecayFunction(decayFunctionName, curve);
         this.processedScale = this.decayFunction.processScale(scale, decay);
         this.weight = weight;
+        this.boosts = buildBoosts(horizon == AUTO_HORIZON ? computeHorizon() : horizon);
+    }
+
+    /**
+     * Returns a booster with the given decay parameters, the ones which are null are the same as parameters of this
+     * booster. Boosters are cached by their parameters, so their boosts are precomputed only once per node.
+     */
+    DecayBooster withOverrides(String decayFunctionName, Double scale, Double decay, Double weight) {
+        // Queries override only the built-in decay functions, which replace the custom curve.
+        Parameters overrides = new Parameters(
+                decayFunctionName != null ? decayFunctionName : parameters.decayFunctionName,
+                decayFunctionName != null ? null : parameters.curve,
+                scale != null ? scale : parameters.scale,
+                decay != null ? decay : parameters.decay,
+                weight != null ? weight : parameters.weight,
+                parameters.horizon);
+        if (overrides.equals(parameters)) {
+            return this;
+        }
+
+        try {
+            return CACHE.computeIfAbsent(overrides, key -> new DecayBooster(key.decayFunctionName, key.curve, key.scale,
+                    key.decay, key.weight, key.horizon));
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IllegalArgumentException) {
+                throw (IllegalArgumentException) ex.getCause();
+            }
+            throw new IllegalStateException("failed to build decay booster " + overrides, ex.getCause());
+        }
     }
 
-    private DecayFunction buildDecayFunction (String decayFunctionName) {
+    private DecayFunction buildDecayFunction (String decayFunctionName, DecayCurve curve) {
+        if (DecayCurve.isCurve(decayFunctionName)) {
+            if (curve == null) {
+                throw new IllegalArgumentException("decay function [" + decayFunctionName + "] requires decay_points");
+            }
+            return curve;
+        }
+        if (curve != null) {
+            throw new IllegalArgumentException("decay_points are supported only by [" + DecayCurve.POINTS + "] and ["
+                    + DecayCurve.STEP + "] decay functions, got [" + decayFunctionName + "]");
+        }
+
         if (decayFunctionName.equals(GaussDecayFunctionBuilder.NAME)){
             return GaussDecayFunctionBuilder.GAUSS_DECAY_FUNCTION;
         }
@@ -41,18 +122,160 @@ class DecayBooster {
             return ExponentialDecayFunctionBuilder.EXP_DECAY_FUNCTION;
         }
 
-        return LinearDecayFunctionBuilder.LINEAR_DECAY_FUNCTION;
+        if (decayFunctionName.equals(LinearDecayFunctionBuilder.NAME)){
+            return LinearDecayFunctionBuilder.LINEAR_DECAY_FUNCTION;
+        }
+
+        throw new IllegalArgumentException("unknown decay function [" + decayFunctionName + "], expected one of ["
+                + LinearDecayFunctionBuilder.NAME + ", " + ExponentialDecayFunctionBuilder.NAME + ", "
+                + GaussDecayFunctionBuilder.NAME + ", " + DecayCurve.POINTS + ", " + DecayCurve.STEP + "]");
+    }
+
+    private int computeHorizon() {
+        if (curve != null) {
+            return weight == 0 ? 0 : curve.horizon();
+        }
+
+        double minBoost = Math.abs(weight) * MIN_BOOST_RATIO;
+        for (int recency = 0; recency < MAX_HORIZON; recency++) {
+            if (Math.abs(evaluateBoost(recency)) <= minBoost) {
+                return recency;
+            }
+        }
+
+        return MAX_HORIZON;
+    }
+
+    private float[] buildBoosts(int horizon) {
+        float[] boosts = new float[horizon];
+        for (int recency = 0; recency < horizon; recency++) {
+            boosts[recency] = evaluateBoost(recency);
+        }
+
+        return boosts;
     }
 
-    float getBoost(long recency){
-       return (float)(this.weight * decayFunction.evaluate((double) recency, processedScale));
+    private float evaluateBoost(long recency) {
+        return (float)(this.weight * decayFunction.evaluate((double) recency, processedScale));
     }
 
-    Explanation explain(long recency) {
+    /**
+     * Number of hours of term recency which are boosted. Terms older than the horizon are not boosted at all,
+     * zero horizon means that recency boosting is turned off.
+     */
+    int getHorizon() {
+        return boosts.length;
+    }
+
+    long ramBytesUsed() {
+        return 64 + Float.BYTES * (long) boosts.length;
+    }
+
+    /**
+     * Returns true when boosts never grow with term recency, which holds for all built-in decay functions with non
+     * negative weight and for custom curves whose scores don't grow.
+     */
+    boolean isDecreasing() {
+        return weight >= 0 && (curve == null || curve.isNonIncreasing());
+    }
+
+    /**
+     * Returns boost of term recency in hours, boosts of fractional recency are interpolated between whole hours, except
+     * for step curves, which keep the boost of the whole hour.
+     */
+    float getBoost(double recency){
+        if (recency >= boosts.length) {
+            return 0.0f;
+        }
+
+        int hours = (int) recency;
+        float boost = boosts[hours];
+        double fraction = recency - hours;
+        if (fraction == 0 || !isInterpolated()) {
+            return boost;
+        }
+
+        float nextBoost = hours + 1 < boosts.length ? boosts[hours + 1] : 0.0f;
+        return (float) (boost + (nextBoost - boost) * fraction);
+    }
+
+    /**
+     * Explains the boost returned by {@link #getBoost(double)}, including the interpolation of fractional recency.
+     */
+    Explanation explain(double recency) {
+        if (recency >= boosts.length) {
+            return Explanation.match(0.0f, "term recency boost, termRecency " + recency + " is beyond horizon of "
+                    + boosts.length + " hours");
+        }
+
         return Explanation.match(getBoost(recency), "term recency boost, computed as weight * decayScore(termRecency) from:",
                 Explanation.match((float)weight, "weight"),
                 Explanation.match((float)recency, "termRecency"),
-                Explanation.match((float) decayFunction.evaluate((double) recency, processedScale), "decayScore(termRecency) from:",
-                        decayFunction.explainFunction("termRecency", recency, processedScale)));
+                explainDecayScore(recency));
+    }
+
+    private Explanation explainDecayScore(double recency) {
+        int hours = (int) recency;
+        double fraction = recency - hours;
+        if (fraction == 0 || !isInterpolated()) {
+            return Explanation.match((float) decayFunction.evaluate(hours, processedScale), "decayScore(termRecency) from:",
+                    decayFunction.explainFunction("termRecency", recency, processedScale));
+        }
+
+        // Beyond the horizon the boost is 0, so the score is interpolated towards 0.
+        int nextHours = hours + 1;
+        double score = decayFunction.evaluate(hours, processedScale);
+        double nextScore = nextHours < boosts.length ? decayFunction.evaluate(nextHours, processedScale) : 0;
+        Explanation nextExplanation = nextHours < boosts.length
+                ? decayFunction.explainFunction("ceil(termRecency)", nextHours, processedScale)
+                : Explanation.match(0.0f, "ceil(termRecency) is beyond horizon of " + boosts.length + " hours");
+
+        return Explanation.match((float) (score + (nextScore - score) * fraction),
+                "decayScore(termRecency), interpolated between whole hours from:",
+                decayFunction.explainFunction("floor(termRecency)", hours, processedScale), nextExplanation);
+    }
+
+    private boolean isInterpolated() {
+        return curve == null || !curve.isStep();
+    }
+
+    private static final class Parameters {
+        private final String decayFunctionName;
+        private final DecayCurve curve;
+        private final double scale;
+        private final double decay;
+        private final double weight;
+        private final int horizon;
+
+        Parameters(String decayFunctionName, DecayCurve curve, double scale, double decay, double weight, int horizon) {
+            this.decayFunctionName = decayFunctionName;
+            this.curve = curve;
+            this.scale = scale;
+            this.decay = decay;
+            this.weight = weight;
+            this.horizon = horizon;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Parameters)) {
+                return false;
+            }
+            Parameters parameters = (Parameters) other;
+            return decayFunctionName.equals(parameters.decayFunctionName) && Objects.equals(curve, parameters.curve) &&
+                    scale == parameters.scale &&
+                    decay == parameters.decay && weight == parameters.weight && horizon == parameters.horizon;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(decayFunctionName, curve, scale, decay, weight, horizon);
+        }
+
+        @Override
+        public String toString() {
+            return "[decay_function=" + decayFunctionName + (curve != null ? ", decay_points=" + curve : "")
+                    + ", scale=" + scale + ", decay=" + decay + ", weight=" + weight + ", horizon=" + horizon + "]";
+        }
     }
 }
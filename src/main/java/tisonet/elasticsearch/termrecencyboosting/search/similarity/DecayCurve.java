@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import org.apache.lucene.search.Explanation;
+import org.elasticsearch.index.query.functionscore.DecayFunction;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Custom decay curve given by points of term recency in hours and decay score. The points decay function interpolates
+ * the score linearly between the points, the step decay function keeps the score of a point until the next one. Before
+ * the first point the curve has the score of the first point, after the last point the score of the last point.
+ *
+ * The curve is evaluated only once for every hour of the horizon, when boosts of the similarity are precomputed, so it
+ * costs nothing more per document than the built-in decay functions. Scale and decay parameters are not used.
+ */
+final class DecayCurve implements DecayFunction {
+    static final String POINTS = "points";
+    static final String STEP = "step";
+
+    private final String name;
+    private final int[] hours;
+    private final double[] scores;
+
+    private DecayCurve(String name, int[] hours, double[] scores) {
+        this.name = name;
+        this.hours = hours;
+        this.scores = scores;
+    }
+
+    static boolean isCurve(String decayFunctionName) {
+        return POINTS.equals(decayFunctionName) || STEP.equals(decayFunctionName);
+    }
+
+    /**
+     * Parses points of the curve in the hours:score format, e.g. 6:1.0, returns null for built-in decay functions.
+     */
+    static DecayCurve parse(String decayFunctionName, String[] points) {
+        boolean hasPoints = points != null && points.length > 0;
+        if (!isCurve(decayFunctionName)) {
+            if (hasPoints) {
+                throw new IllegalArgumentException("decay_points are supported only by [" + POINTS + "] and [" + STEP
+                        + "] decay functions, got [" + decayFunctionName + "]");
+            }
+            return null;
+        }
+        if (!hasPoints) {
+            throw new IllegalArgumentException("decay function [" + decayFunctionName + "] requires decay_points");
+        }
+
+        int[] hours = new int[points.length];
+        double[] scores = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            String[] point = points[i].split(":");
+            if (point.length != 2) {
+                throw new IllegalArgumentException("decay point must be in the hours:score format, got [" + points[i] + "]");
+            }
+
+            try {
+                hours[i] = Integer.parseInt(point[0].trim());
+                scores[i] = Double.parseDouble(point[1].trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("decay point must be in the hours:score format, got [" + points[i] + "]", ex);
+            }
+
+            if (hours[i] < 0 || hours[i] > DecayBooster.MAX_HORIZON) {
+                throw new IllegalArgumentException("hours of decay point must be between 0 and " + DecayBooster.MAX_HORIZON
+                        + ", got [" + points[i] + "]");
+            }
+            if (i > 0 && hours[i] <= hours[i - 1]) {
+                throw new IllegalArgumentException("hours of decay points must be increasing, got [" + points[i] + "] after ["
+                        + points[i - 1] + "]");
+            }
+            if (!Double.isFinite(scores[i])) {
+                throw new IllegalArgumentException("score of decay point must be finite, got [" + points[i] + "]");
+            }
+        }
+
+        return new DecayCurve(decayFunctionName, hours, scores);
+    }
+
+    @Override
+    public double evaluate(double value, double scale) {
+        if (value <= hours[0]) {
+            return scores[0];
+        }
+
+        for (int i = 1; i < hours.length; i++) {
+            if (value < hours[i]) {
+                if (STEP.equals(name)) {
+                    return scores[i - 1];
+                }
+
+                double fraction = (value - hours[i - 1]) / (hours[i] - hours[i - 1]);
+                return scores[i - 1] + (scores[i] - scores[i - 1]) * fraction;
+            }
+        }
+
+        return scores[scores.length - 1];
+    }
+
+    @Override
+    public Explanation explainFunction(String valueString, double value, double scale) {
+        return Explanation.match((float) evaluate(value, scale), name + "(" + valueString + "=" + value + ") of points "
+                + toString());
+    }
+
+    @Override
+    public double processScale(double scale, double decay) {
+        return scale;
+    }
+
+    /**
+     * Returns true for the step decay function, which keeps the score of a point until the next one, so boosts of
+     * fractional term recency must not be interpolated between whole hours.
+     */
+    boolean isStep() {
+        return STEP.equals(name);
+    }
+
+    /**
+     * Returns the horizon where the curve drops to zero for good, the maximum horizon when it never does.
+     */
+    int horizon() {
+        return scores[scores.length - 1] == 0 ? hours[hours.length - 1] : DecayBooster.MAX_HORIZON;
+    }
+
+    /**
+     * Returns true when scores never grow with term recency.
+     */
+    boolean isNonIncreasing() {
+        for (int i = 1; i < scores.length; i++) {
+            if (scores[i] > scores[i - 1]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof DecayCurve)) {
+            return false;
+        }
+        DecayCurve curve = (DecayCurve) other;
+        return name.equals(curve.name) && Arrays.equals(hours, curve.hours) && Arrays.equals(scores, curve.scores);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, Arrays.hashCode(hours), Arrays.hashCode(scores));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder("[");
+        for (int i = 0; i < hours.length; i++) {
+            buffer.append(i > 0 ? ", " : "").append(hours[i]).append(':').append(scores[i]);
+        }
+
+        return buffer.append(']').toString();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Documents of a segment having a timestamp payload in any term of a field. Indexes may mix documents written before
+ * timestamps were added to the field with newer ones, the term vectors of the former don't have to be read at all.
+ *
+ * The documents are found in a single pass over the postings payloads when the field is first scored in the segment
+ * and cached as a bitset until the segment core is closed. Positions of a document are read only until its first
+ * timestamp and not at all once the document is known to have one. The documents are known only for fields indexed
+ * with positions, other fields may have timestamps in term vectors only. The bitset takes one bit per document, it is
+ * not built for segments where it would take more than {@link #MAX_DOCS_WEIGHT_IN_BYTES}.
+ */
+final class DocsWithTimestamps {
+    private static final long MAX_CACHE_WEIGHT_IN_BYTES = 64L * 1024 * 1024;
+
+    private static final Cache<CacheKey, DocsWithTimestamps> CACHE = CacheBuilder.<CacheKey, DocsWithTimestamps>builder()
+            .setMaximumWeight(MAX_CACHE_WEIGHT_IN_BYTES)
+            .weigher((key, docs) -> docs.ramBytesUsed())
+            .build();
+
+    // Segment cores with a registered listener evicting their documents when the core is closed.
+    private static final Set<Object> CACHED_CORES = ConcurrentHashMap.newKeySet();
+
+    // Bitset of a segment cached at most, a quarter of the cache, so segments of up to 128M documents.
+    static final long MAX_DOCS_WEIGHT_IN_BYTES = MAX_CACHE_WEIGHT_IN_BYTES / 4;
+
+    private static final DocsWithTimestamps NO_TIMESTAMPS = new DocsWithTimestamps(null, 0);
+    private static final DocsWithTimestamps UNKNOWN = new DocsWithTimestamps(null, 0);
+
+    // Null when all documents have a timestamp.
+    private final Bits docs;
+    private final long ramBytesUsed;
+
+    private DocsWithTimestamps(Bits docs, long ramBytesUsed) {
+        this.docs = docs;
+        this.ramBytesUsed = ramBytesUsed;
+    }
+
+    /**
+     * Returns documents of the segment having any timestamp in the field, null when they are not known or all documents
+     * have one.
+     */
+    static Bits get(LeafReader reader, String field, TimestampPayloadCodec codec) throws IOException {
+        DocsWithTimestamps docsWithTimestamps = getOrBuild(reader, field, codec);
+        if (docsWithTimestamps == NO_TIMESTAMPS) {
+            return new Bits.MatchNoBits(reader.maxDoc());
+        }
+
+        return docsWithTimestamps.docs;
+    }
+
+    private static DocsWithTimestamps getOrBuild(LeafReader reader, String field, TimestampPayloadCodec codec)
+            throws IOException {
+        FieldInfo fieldInfo = reader.getFieldInfos().fieldInfo(field);
+        if (fieldInfo == null) {
+            return NO_TIMESTAMPS;
+        }
+        if (fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) < 0) {
+            return UNKNOWN;
+        }
+        if (!fieldInfo.hasPayloads()) {
+            return NO_TIMESTAMPS;
+        }
+        Terms terms = reader.terms(field);
+        if (terms == null) {
+            return NO_TIMESTAMPS;
+        }
+        if (FixedBitSet.bits2words(reader.maxDoc()) * (long) Long.BYTES > MAX_DOCS_WEIGHT_IN_BYTES) {
+            return UNKNOWN;
+        }
+
+        Object coreKey = reader.getCoreCacheKey();
+        if (CACHED_CORES.add(coreKey)) {
+            reader.addCoreClosedListener(DocsWithTimestamps::evictCore);
+        }
+
+        try {
+            return CACHE.computeIfAbsent(new CacheKey(coreKey, field, codec), key -> build(reader, field, codec));
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IllegalStateException("failed to find documents with timestamps in field [" + field + "]", ex.getCause());
+        }
+    }
+
+    /**
+     * Scans the payloads of the field in the segment, regardless of {@link #MAX_DOCS_WEIGHT_IN_BYTES}.
+     */
+    static DocsWithTimestamps build(LeafReader reader, String field, TimestampPayloadCodec codec) throws IOException {
+        FixedBitSet docs = new FixedBitSet(reader.maxDoc());
+        Terms terms = reader.terms(field);
+        if (terms != null) {
+            TermsEnum termsEnum = terms.iterator();
+            PostingsEnum postings = null;
+            while (termsEnum.next() != null) {
+                postings = termsEnum.postings(postings, PostingsEnum.PAYLOADS);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    // Positions of documents already known to have a timestamp are not read at all.
+                    if (!docs.get(doc) && hasTimestamp(postings, codec)) {
+                        docs.set(doc);
+                    }
+                }
+            }
+        }
+
+        if (docs.cardinality() == reader.maxDoc()) {
+            return new DocsWithTimestamps(null, 64);
+        }
+
+        return new DocsWithTimestamps(docs, 64 + docs.ramBytesUsed());
+    }
+
+    private static boolean hasTimestamp(PostingsEnum postings, TimestampPayloadCodec codec) throws IOException {
+        for (int i = postings.freq(); i > 0; i--) {
+            postings.nextPosition();
+            if (codec.decode(postings.getPayload()) != TimestampPayloadCodec.MISSING_TIMESTAMP) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private long ramBytesUsed() {
+        return ramBytesUsed;
+    }
+
+    private static void evictCore(Object coreKey) {
+        CACHED_CORES.remove(coreKey);
+        for (CacheKey key : CACHE.keys()) {
+            if (key.coreKey == coreKey) {
+                CACHE.invalidate(key);
+            }
+        }
+    }
+
+    private static final class CacheKey {
+        private final Object coreKey;
+        private final String field;
+        private final TimestampPayloadCodec codec;
+
+        CacheKey(Object coreKey, String field, TimestampPayloadCodec codec) {
+            this.coreKey = coreKey;
+            this.field = field;
+            this.codec = codec;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            CacheKey that = (CacheKey) o;
+            return coreKey == that.coreKey && field.equals(that.field) && codec.equals(that.codec);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(coreKey), field, codec);
+        }
+    }
+}
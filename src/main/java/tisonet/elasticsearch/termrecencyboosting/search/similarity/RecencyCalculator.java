@@ -13,20 +13,26 @@
  */
 package tisonet.elasticsearch.termrecencyboosting.search.similarity;
 
-import java.time.Duration;
-import java.time.Instant;
+import java.util.concurrent.TimeUnit;
 
 class RecencyCalculator {
 
-    private static int SECONDS_IN_HOUR =  60 * 60;
+    private static final double MILLIS_IN_HOUR = TimeUnit.HOURS.toMillis(1);
 
-    static long calculateRecency(Instant now, int timestampInHours) {
-        Instant termInstant = Instant.ofEpochSecond(timestampInHours * SECONDS_IN_HOUR);
-        return Duration.between(termInstant, now).toHours();
+    /**
+     * Rounds time in millis since epoch down to a multiple of the granularity, so all terms are compared against
+     * the same reference time for the whole granularity period.
+     */
+    static long roundDown(long timeInMillis, long granularityInMillis) {
+        return timeInMillis - Math.floorMod(timeInMillis, granularityInMillis);
     }
 
-    static long calculateRecency(int timestampInHours) {
-        return calculateRecency(Instant.now(), timestampInHours);
+    /**
+     * Term recency in hours relative to the reference time, terms newer than reference time have zero recency.
+     * Both times are in millis since epoch, so recency keeps fractions of an hour for finer term timestamps.
+     */
+    static double calculateRecency(long nowInMillis, long timestampInMillis) {
+        return Math.max(0L, nowInMillis - timestampInMillis) / MILLIS_IN_HOUR;
     }
 
 }
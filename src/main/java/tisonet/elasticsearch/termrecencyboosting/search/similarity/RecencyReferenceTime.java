@@ -0,0 +1,114 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.shard.SearchOperationListener;
+import org.elasticsearch.search.internal.SearchContext;
+
+/**
+ * Reference time of the search request executed by the current thread. It is the time captured by the coordinating
+ * node, so all shards and replicas compute term recency against the same "now".
+ * Similarity has no access to the search request, so the time is published by a {@link SearchOperationListener}
+ * for the duration of query and fetch phases.
+ *
+ * The shard request cache doesn't know the similarity depends on the request time, so requests whose results depend
+ * on scores of an index using the similarity are marked as not cachable, the way reading "now" in a query does.
+ * Otherwise cached scores would outlive the rounded reference time.
+ */
+public final class RecencyReferenceTime {
+
+    private static final ThreadLocal<Long> REQUEST_TIME = new ThreadLocal<>();
+
+    public static final SearchOperationListener SEARCH_LISTENER = new SearchOperationListener() {
+        @Override
+        public void onPreQueryPhase(SearchContext searchContext) {
+            disableRequestCacheIfScored(searchContext);
+            REQUEST_TIME.set(searchContext.request().nowInMillis());
+        }
+
+        @Override
+        public void onFailedQueryPhase(SearchContext searchContext) {
+            REQUEST_TIME.remove();
+        }
+
+        @Override
+        public void onQueryPhase(SearchContext searchContext, long tookInNanos) {
+            REQUEST_TIME.remove();
+        }
+
+        @Override
+        public void onPreFetchPhase(SearchContext searchContext) {
+            REQUEST_TIME.set(searchContext.request().nowInMillis());
+        }
+
+        @Override
+        public void onFailedFetchPhase(SearchContext searchContext) {
+            REQUEST_TIME.remove();
+        }
+
+        @Override
+        public void onFetchPhase(SearchContext searchContext, long tookInNanos) {
+            REQUEST_TIME.remove();
+        }
+    };
+
+    private RecencyReferenceTime() {
+    }
+
+    /**
+     * Returns time of the current search request, or the current time when executed outside of a search request.
+     */
+    public static long nowInMillis() {
+        Long requestTime = REQUEST_TIME.get();
+        return requestTime != null ? requestTime : System.currentTimeMillis();
+    }
+
+    private static void disableRequestCacheIfScored(SearchContext searchContext) {
+        // Only the first query phase of a query then fetch request can be cached, contexts of the others may be frozen.
+        QueryShardContext context = searchContext.getQueryShardContext();
+        if (searchContext.searchType() != SearchType.QUERY_THEN_FETCH || searchContext.scrollContext() != null ||
+                !context.isCachable()) {
+            return;
+        }
+        // Total hits of requests without hits, aggregations and min_score don't depend on scores.
+        if (searchContext.size() == 0 && searchContext.aggregations() == null && searchContext.minimumScore() == null) {
+            return;
+        }
+
+        if (usesRecencySimilarity(searchContext)) {
+            // Reading the request time from the shard context marks the request as not cachable.
+            context.nowInMillis();
+        }
+    }
+
+    private static boolean usesRecencySimilarity(SearchContext searchContext) {
+        // Similarity of the index configured as "default" is used by fields without an explicit one.
+        if (searchContext.similarityService().getSimilarity("default") instanceof BM25SimilarityWithTermRecencyBoosting) {
+            return true;
+        }
+        for (DocumentMapper documentMapper : searchContext.mapperService().docMappers(false)) {
+            for (FieldMapper fieldMapper : documentMapper.mappers()) {
+                if (fieldMapper.fieldType().similarity() instanceof BM25SimilarityWithTermRecencyBoosting) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Recency scores of all documents of a segment for a set of query terms, shared by all queries with the same reference
+ * time. Term recency changes only with the reference time, which is rounded to the now granularity, and segments are
+ * immutable, so repeated queries don't have to read the term timestamps again.
+ *
+ * Scores are filled in lazily by the queries as they score documents, a NaN score is not computed yet. Concurrent
+ * queries may compute the same score, but they always write the same value. Scores are materialized only for terms
+ * queried repeatedly within the same reference time of the same similarity, and only for segments of at most
+ * {@link #MAX_CACHED_DOCS} documents, so a single large segment can't take over the cache. They are dropped when the
+ * segment core is closed, as the least recently used ones when the cache is full, and when the reference time of their
+ * now granularity moves on, since scores of past reference times are never hit again. The cache is walked only by the
+ * first query of a new reference time.
+ */
+final class RecencyScoreCache {
+    // Scores of a term set are materialized the second time it is queried with the same reference time.
+    private static final int MAX_SEEN_KEYS = 10_000;
+    private static final long MAX_CACHE_WEIGHT_IN_BYTES = 64L * 1024 * 1024;
+    // Scores of a segment take at most 1/16 of the cache.
+    static final int MAX_CACHED_DOCS = (int) (MAX_CACHE_WEIGHT_IN_BYTES / Float.BYTES / 16);
+
+    private static final Cache<CacheKey, Boolean> SEEN = CacheBuilder.<CacheKey, Boolean>builder()
+            .setMaximumWeight(MAX_SEEN_KEYS)
+            .build();
+
+    private static final Cache<CacheKey, float[]> CACHE = CacheBuilder.<CacheKey, float[]>builder()
+            .setMaximumWeight(MAX_CACHE_WEIGHT_IN_BYTES)
+            .weigher((key, scores) -> 16 + Float.BYTES * (long) scores.length)
+            .build();
+
+    // Segment cores with a registered listener evicting their scores when the core is closed.
+    private static final Set<Object> CACHED_CORES = ConcurrentHashMap.newKeySet();
+
+    // Latest reference time per now granularity in millis, scores of earlier reference times are evicted.
+    private static final ConcurrentMap<Long, Long> LATEST_NOW = new ConcurrentHashMap<>();
+
+    private RecencyScoreCache() {
+    }
+
+    /**
+     * Returns recency scores of documents of the segment, or null when the terms are not queried repeatedly or the
+     * segment is too large.
+     */
+    static float[] get(LeafReaderContext context, TermRecencyBoosting similarity, String field, BytesRef[] terms,
+                       long nowInMillis) {
+        LeafReader reader = context.reader();
+        if (reader.maxDoc() > MAX_CACHED_DOCS) {
+            return null;
+        }
+
+        Object coreKey = reader.getCoreCacheKey();
+        CacheKey key = new CacheKey(coreKey, similarity, field, terms, nowInMillis);
+        float[] scores = CACHE.get(key);
+        if (scores != null) {
+            return scores;
+        }
+
+        evictPastReferenceTimes(similarity.getNowGranularityInMillis(), nowInMillis);
+        // Seen keys hold the core key too, so the listener is registered before the first one.
+        if (CACHED_CORES.add(coreKey)) {
+            reader.addCoreClosedListener(RecencyScoreCache::evictCore);
+        }
+        if (SEEN.get(key) == null) {
+            SEEN.put(key, Boolean.TRUE);
+            return null;
+        }
+
+        try {
+            return CACHE.computeIfAbsent(key, k -> {
+                float[] emptyScores = new float[reader.maxDoc()];
+                Arrays.fill(emptyScores, Float.NaN);
+                return emptyScores;
+            });
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("failed to allocate recency scores of field [" + field + "]", ex.getCause());
+        }
+    }
+
+    private static void evictPastReferenceTimes(long nowGranularityInMillis, long nowInMillis) {
+        Long latestNow = LATEST_NOW.putIfAbsent(nowGranularityInMillis, nowInMillis);
+        if (latestNow == null || latestNow >= nowInMillis) {
+            return;
+        }
+        // Only the query which moves the reference time on walks the cache.
+        if (!LATEST_NOW.replace(nowGranularityInMillis, latestNow, nowInMillis)) {
+            return;
+        }
+
+        for (CacheKey key : CACHE.keys()) {
+            if (key.isBefore(nowGranularityInMillis, nowInMillis)) {
+                CACHE.invalidate(key);
+            }
+        }
+        for (CacheKey key : SEEN.keys()) {
+            if (key.isBefore(nowGranularityInMillis, nowInMillis)) {
+                SEEN.invalidate(key);
+            }
+        }
+    }
+
+    private static void evictCore(Object coreKey) {
+        CACHED_CORES.remove(coreKey);
+        for (CacheKey key : CACHE.keys()) {
+            if (key.coreKey == coreKey) {
+                CACHE.invalidate(key);
+            }
+        }
+        for (CacheKey key : SEEN.keys()) {
+            if (key.coreKey == coreKey) {
+                SEEN.invalidate(key);
+            }
+        }
+    }
+
+    private static final class CacheKey {
+        private final Object coreKey;
+        private final TermRecencyBoosting similarity;
+        private final String field;
+        private final BytesRef[] terms;
+        private final long nowInMillis;
+        private final int hashCode;
+
+        CacheKey(Object coreKey, TermRecencyBoosting similarity, String field, BytesRef[] terms, long nowInMillis) {
+            this.coreKey = coreKey;
+            this.similarity = similarity;
+            this.field = field;
+            this.terms = terms;
+            this.nowInMillis = nowInMillis;
+            this.hashCode = Objects.hash(System.identityHashCode(coreKey), System.identityHashCode(similarity), field,
+                    Arrays.hashCode(terms), nowInMillis);
+        }
+
+        boolean isBefore(long nowGranularityInMillis, long nowInMillis) {
+            return similarity.getNowGranularityInMillis() == nowGranularityInMillis && this.nowInMillis < nowInMillis;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            CacheKey that = (CacheKey) o;
+            return coreKey == that.coreKey && similarity == that.similarity && nowInMillis == that.nowInMillis &&
+                    field.equals(that.field) && Arrays.equals(terms, that.terms);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
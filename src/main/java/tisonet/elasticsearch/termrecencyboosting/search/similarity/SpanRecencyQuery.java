@@ -0,0 +1,264 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.similarities.Similarity.SimScorer;
+import org.apache.lucene.search.similarities.Similarity.SimWeight;
+import org.apache.lucene.search.spans.FilterSpans;
+import org.apache.lucene.search.spans.SpanCollector;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanScorer;
+import org.apache.lucene.search.spans.SpanWeight;
+import org.apache.lucene.search.spans.Spans;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Span query (e.g. a phrase built as a span near query) scored the same way as {@link TermRecencyBoosting} scores
+ * a phrase, but the recency is computed from the payloads at the positions of the matched spans only, collected in the
+ * same pass as the positions are matched. Occurrences of the terms outside of the matches don't count and no term
+ * vectors are read.
+ */
+public final class SpanRecencyQuery extends SpanQuery {
+    private final SpanQuery query;
+    private final TermRecencyBoosting recencyBoosting;
+    private final long nowInMillis;
+
+    /**
+     * @param nowInMillis reference time of term recency, it is rounded to the similarity now granularity
+     */
+    public SpanRecencyQuery(SpanQuery query, TermRecencyBoosting similarity, long nowInMillis) {
+        this.query = Objects.requireNonNull(query);
+        this.recencyBoosting = Objects.requireNonNull(similarity);
+        this.nowInMillis = similarity.roundNow(nowInMillis);
+    }
+
+    public SpanQuery getQuery() {
+        return query;
+    }
+
+    @Override
+    public String getField() {
+        return query.getField();
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        Query rewritten = query.rewrite(reader);
+        if (rewritten != query) {
+            return new SpanRecencyQuery((SpanQuery) rewritten, recencyBoosting, nowInMillis);
+        }
+
+        return super.rewrite(reader);
+    }
+
+    @Override
+    public SpanWeight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        // The wrapped weight only matches the spans, it is scored by the similarity decorated by recency boosting.
+        SpanWeight spanWeight = query.createWeight(searcher, false);
+        return new SpanRecencyWeight(searcher, spanWeight, needsScores);
+    }
+
+    @Override
+    public String toString(String field) {
+        return "recency(" + query.toString(field) + ")";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) &&
+                query.equals(((SpanRecencyQuery) other).query) &&
+                recencyBoosting == ((SpanRecencyQuery) other).recencyBoosting &&
+                nowInMillis == ((SpanRecencyQuery) other).nowInMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * classHash() + query.hashCode()) + Long.hashCode(nowInMillis);
+    }
+
+    private final class SpanRecencyWeight extends SpanWeight {
+        private final SpanWeight spanWeight;
+        private final SimWeight stats;
+
+        SpanRecencyWeight(IndexSearcher searcher, SpanWeight spanWeight, boolean needsScores) throws IOException {
+            // No term contexts, so the searcher similarity doesn't compute its own weight.
+            super(SpanRecencyQuery.this, searcher, null);
+            this.spanWeight = spanWeight;
+            this.stats = needsScores ? computeStats(searcher) : null;
+        }
+
+        private SimWeight computeStats(IndexSearcher searcher) throws IOException {
+            Map<Term, TermContext> termContexts = new HashMap<>();
+            spanWeight.extractTermContexts(termContexts);
+            if (termContexts.isEmpty() || getField() == null) {
+                return null;
+            }
+
+            int i = 0;
+            TermStatistics[] termStats = new TermStatistics[termContexts.size()];
+            for (Map.Entry<Term, TermContext> termContext : termContexts.entrySet()) {
+                termStats[i++] = searcher.termStatistics(termContext.getKey(), termContext.getValue());
+            }
+            CollectionStatistics collectionStats = searcher.collectionStatistics(getField());
+            return recencyBoosting.getSimilarity().computeWeight(collectionStats, termStats);
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+            spanWeight.extractTerms(terms);
+        }
+
+        @Override
+        public void extractTermContexts(Map<Term, TermContext> contexts) {
+            spanWeight.extractTermContexts(contexts);
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return stats == null ? 1.0f : stats.getValueForNormalization();
+        }
+
+        @Override
+        public void normalize(float queryNorm, float boost) {
+            if (stats != null) {
+                stats.normalize(queryNorm, boost);
+            }
+        }
+
+        @Override
+        public Spans getSpans(LeafReaderContext context, Postings requiredPostings) throws IOException {
+            return spanWeight.getSpans(context, requiredPostings);
+        }
+
+        @Override
+        public SimScorer getSimScorer(LeafReaderContext context) throws IOException {
+            return stats == null ? null : recencyBoosting.getSimilarity().simScorer(stats, context);
+        }
+
+        @Override
+        public SpanRecencyScorer scorer(LeafReaderContext context) throws IOException {
+            // Without any possible recency boost the payloads are not needed.
+            SimScorer docScorer = getSimScorer(context);
+            boolean collectPayloads = docScorer != null && recencyBoosting.isRecencyBoosting();
+            Spans spans = spanWeight.getSpans(context, collectPayloads ? Postings.PAYLOADS : Postings.POSITIONS);
+            if (spans == null) {
+                return null;
+            }
+
+            RecencySpans recencySpans = new RecencySpans(spans, docScorer, collectPayloads, recencyBoosting.getPayloadCodec());
+            return new SpanRecencyScorer(this, recencySpans, docScorer);
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            SpanRecencyScorer scorer = scorer(context);
+            if (scorer != null && scorer.docScorer() != null && scorer.iterator().advance(doc) == doc) {
+                float score = scorer.score();
+                float freq = scorer.spans.sloppyFreq;
+                Explanation freqExplanation = Explanation.match(freq, "phraseFreq=" + freq);
+                Explanation similarityExp = scorer.docScorer().explain(doc, freqExplanation);
+                Explanation recencyExp = recencyBoosting.explainRecency(nowInMillis, scorer.spans.latestTimestamp);
+
+                return Explanation.match(score, "weight(" + getQuery() + " in " + doc + "), product of:",
+                        similarityExp, recencyExp);
+            }
+
+            return Explanation.noMatch("no matching spans");
+        }
+    }
+
+    /**
+     * Collects the latest timestamp from payloads of the matched span positions and the sloppy frequency of the spans
+     * of the current document, while the scorer iterates the spans.
+     */
+    private static final class RecencySpans extends FilterSpans implements SpanCollector {
+        private final SimScorer docScorer;
+        private final boolean collectPayloads;
+        private final TimestampPayloadCodec codec;
+
+        private float sloppyFreq;
+        private long latestTimestamp = TermRecencyBoosting.DEFAULT_TERM_TIMESTAMP;
+
+        RecencySpans(Spans in, SimScorer docScorer, boolean collectPayloads, TimestampPayloadCodec codec) {
+            super(in);
+            this.docScorer = docScorer;
+            this.collectPayloads = collectPayloads;
+            this.codec = codec;
+        }
+
+        @Override
+        protected AcceptStatus accept(Spans candidate) {
+            return AcceptStatus.YES;
+        }
+
+        @Override
+        protected void doStartCurrentDoc() {
+            sloppyFreq = 0;
+            latestTimestamp = TermRecencyBoosting.DEFAULT_TERM_TIMESTAMP;
+        }
+
+        @Override
+        protected void doCurrentSpans() throws IOException {
+            sloppyFreq += docScorer.computeSlopFactor(width());
+            if (collectPayloads) {
+                in.collect(this);
+            }
+        }
+
+        @Override
+        public void collectLeaf(PostingsEnum postings, int position, Term term) throws IOException {
+            latestTimestamp = Math.max(latestTimestamp, codec.decode(postings.getPayload()));
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+
+    private final class SpanRecencyScorer extends SpanScorer {
+        private final RecencySpans spans;
+
+        SpanRecencyScorer(SpanWeight weight, RecencySpans spans, SimScorer docScorer) {
+            super(weight, spans, docScorer);
+            this.spans = spans;
+        }
+
+        SimScorer docScorer() {
+            return docScorer;
+        }
+
+        @Override
+        protected float scoreCurrentDoc() throws IOException {
+            return docScorer.score(docID(), spans.sloppyFreq) * recencyBoosting.scoreRecency(nowInMillis, spans.latestTimestamp);
+        }
+    }
+}
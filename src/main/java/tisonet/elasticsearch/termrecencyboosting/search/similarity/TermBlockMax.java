@@ -0,0 +1,239 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Maximum term frequency and latest term timestamp of consecutive blocks of {@link #BLOCK_SIZE} documents in postings
+ * of a term in a segment. They bound scores of all documents of a block, so blocks which can't make it into the top
+ * hits can be skipped. The latest timestamp of all blocks tells whether the term is recent enough in the segment
+ * to get any boost at all.
+ *
+ * Lucene 6 postings formats don't store any per block score data, so the blocks are computed from the postings payloads
+ * the first time they are needed for a term, and cached until the segment core is closed. The latest timestamp of
+ * a term is also cached on its own, a single long per segment and term, so it outlives the blocks of terms which are
+ * only checked against the horizon.
+ */
+final class TermBlockMax {
+    static final int BLOCK_SIZE = 128;
+
+    private static final long MAX_CACHE_WEIGHT_IN_BYTES = 32L * 1024 * 1024;
+
+    private static final Cache<CacheKey, TermBlockMax> CACHE = CacheBuilder.<CacheKey, TermBlockMax>builder()
+            .setMaximumWeight(MAX_CACHE_WEIGHT_IN_BYTES)
+            .weigher((key, blockMax) -> blockMax.ramBytesUsed())
+            .build();
+
+    private static final long MAX_LATEST_TIMESTAMPS_WEIGHT_IN_BYTES = 16L * 1024 * 1024;
+
+    private static final Cache<CacheKey, Long> LATEST_TIMESTAMPS = CacheBuilder.<CacheKey, Long>builder()
+            .setMaximumWeight(MAX_LATEST_TIMESTAMPS_WEIGHT_IN_BYTES)
+            .weigher((key, latestTimestamp) -> 64 + key.term.bytes().length)
+            .build();
+
+    // Segment cores with a registered listener evicting their blocks when the core is closed.
+    private static final Set<Object> CACHED_CORES = ConcurrentHashMap.newKeySet();
+
+    private final int[] lastDocs;
+    private final int[] maxFreqs;
+    private final long[] maxTimestamps;
+    private final long latestTimestamp;
+
+    private TermBlockMax(int[] lastDocs, int[] maxFreqs, long[] maxTimestamps) {
+        this.lastDocs = lastDocs;
+        this.maxFreqs = maxFreqs;
+        this.maxTimestamps = maxTimestamps;
+
+        long latestTimestamp = TermRecencyBoosting.DEFAULT_TERM_TIMESTAMP;
+        for (long maxTimestamp : maxTimestamps) {
+            latestTimestamp = Math.max(latestTimestamp, maxTimestamp);
+        }
+        this.latestTimestamp = latestTimestamp;
+    }
+
+    /**
+     * Returns blocks of the term the terms enum is positioned on, computing them when they are not cached.
+     */
+    static TermBlockMax get(LeafReaderContext context, Term term, TermsEnum termsEnum, TimestampPayloadCodec codec)
+            throws IOException {
+        CacheKey cacheKey = cacheKey(context.reader(), term, codec);
+        try {
+            return CACHE.computeIfAbsent(cacheKey, key -> build(termsEnum, codec));
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IllegalStateException("failed to compute blocks of term [" + term + "]", ex.getCause());
+        }
+    }
+
+    /**
+     * Returns the latest timestamp of the term the terms enum is positioned on in the whole segment, taken from the
+     * cached blocks of the term or computed from its postings payloads when it is not cached.
+     */
+    static long latestTimestamp(LeafReaderContext context, Term term, TermsEnum termsEnum, TimestampPayloadCodec codec)
+            throws IOException {
+        CacheKey cacheKey = cacheKey(context.reader(), term, codec);
+        TermBlockMax blockMax = CACHE.get(cacheKey);
+        if (blockMax != null) {
+            return blockMax.latestTimestamp;
+        }
+
+        try {
+            return LATEST_TIMESTAMPS.computeIfAbsent(cacheKey, key -> computeLatestTimestamp(termsEnum, codec));
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IllegalStateException("failed to compute latest timestamp of term [" + term + "]", ex.getCause());
+        }
+    }
+
+    private static CacheKey cacheKey(LeafReader reader, Term term, TimestampPayloadCodec codec) {
+        Object coreKey = reader.getCoreCacheKey();
+        if (CACHED_CORES.add(coreKey)) {
+            reader.addCoreClosedListener(TermBlockMax::evictCore);
+        }
+
+        return new CacheKey(coreKey, term, codec);
+    }
+
+    private static long computeLatestTimestamp(TermsEnum termsEnum, TimestampPayloadCodec codec) throws IOException {
+        long latestTimestamp = TermRecencyBoosting.DEFAULT_TERM_TIMESTAMP;
+        PostingsEnum postings = termsEnum.postings(null, PostingsEnum.PAYLOADS);
+        for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+            latestTimestamp = Math.max(latestTimestamp, TermRecencyQuery.readLatestTermTimestamp(postings, codec));
+        }
+
+        return latestTimestamp;
+    }
+
+    static TermBlockMax build(TermsEnum termsEnum, TimestampPayloadCodec codec) throws IOException {
+        // Doc freq counts deleted documents too, so it is the exact number of documents in the postings.
+        int blockCount = (termsEnum.docFreq() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] lastDocs = new int[blockCount];
+        int[] maxFreqs = new int[blockCount];
+        long[] maxTimestamps = new long[blockCount];
+        Arrays.fill(maxTimestamps, TermRecencyBoosting.DEFAULT_TERM_TIMESTAMP);
+
+        PostingsEnum postings = termsEnum.postings(null, PostingsEnum.PAYLOADS);
+        int docs = 0;
+        for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+            int block = docs++ / BLOCK_SIZE;
+            lastDocs[block] = doc;
+            maxFreqs[block] = Math.max(maxFreqs[block], postings.freq());
+            maxTimestamps[block] = Math.max(maxTimestamps[block], TermRecencyQuery.readLatestTermTimestamp(postings, codec));
+        }
+
+        return new TermBlockMax(lastDocs, maxFreqs, maxTimestamps);
+    }
+
+    private static void evictCore(Object coreKey) {
+        CACHED_CORES.remove(coreKey);
+        for (CacheKey key : CACHE.keys()) {
+            if (key.coreKey == coreKey) {
+                CACHE.invalidate(key);
+            }
+        }
+        for (CacheKey key : LATEST_TIMESTAMPS.keys()) {
+            if (key.coreKey == coreKey) {
+                LATEST_TIMESTAMPS.invalidate(key);
+            }
+        }
+    }
+
+    int size() {
+        return lastDocs.length;
+    }
+
+    /**
+     * First document of the block, which may not contain the term.
+     */
+    int firstDoc(int block) {
+        return block == 0 ? 0 : lastDocs[block - 1] + 1;
+    }
+
+    /**
+     * Last document of the block, which always contains the term.
+     */
+    int lastDoc(int block) {
+        return lastDocs[block];
+    }
+
+    int maxFreq(int block) {
+        return maxFreqs[block];
+    }
+
+    long maxTimestamp(int block) {
+        return maxTimestamps[block];
+    }
+
+    /**
+     * Latest timestamp of the term in the whole segment.
+     */
+    long latestTimestamp() {
+        return latestTimestamp;
+    }
+
+    long ramBytesUsed() {
+        return 64 + (long) lastDocs.length * (Integer.BYTES + Integer.BYTES + Long.BYTES);
+    }
+
+    private static final class CacheKey {
+        private final Object coreKey;
+        private final Term term;
+        private final TimestampPayloadCodec codec;
+
+        CacheKey(Object coreKey, Term term, TimestampPayloadCodec codec) {
+            this.coreKey = coreKey;
+            this.term = term;
+            this.codec = codec;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            CacheKey that = (CacheKey) o;
+            return coreKey == that.coreKey && term.equals(that.term) && codec.equals(that.codec);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(coreKey), term, codec);
+        }
+    }
+}
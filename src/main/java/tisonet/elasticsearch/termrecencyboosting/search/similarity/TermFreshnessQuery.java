@@ -0,0 +1,186 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.DocIdSetBuilder;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+
+/**
+ * Filter matching documents in which any of the terms has a timestamp payload not older than the max age. The age is
+ * the term recency computed by {@link RecencyCalculator} against the reference time rounded the same way as for
+ * scoring, so a document matches exactly when the term recency score of its term is computed from a recency within the
+ * max age. Terms without a timestamp never match.
+ *
+ * Latest timestamps of the terms in a segment and in blocks of their postings are taken from {@link TermBlockMax}, so
+ * segments and blocks where the terms are too old are skipped without reading their payloads. The query is constant
+ * score and the matching documents of a segment are collected into a doc id set, which the query cache can keep.
+ */
+public final class TermFreshnessQuery extends Query {
+    private final String field;
+    // Sorted and deduplicated, so queries with the same terms in a different order are equal.
+    private final List<Term> terms;
+    private final TermRecencyBoosting similarity;
+    private final long nowInMillis;
+    private final double maxAgeInHours;
+
+    /**
+     * @param nowInMillis reference time of term recency, it is rounded to the similarity now granularity
+     * @param maxAgeInHours max term recency in hours of matching documents
+     */
+    public TermFreshnessQuery(List<Term> terms, TermRecencyBoosting similarity, long nowInMillis, double maxAgeInHours) {
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("terms must not be empty");
+        }
+        if (!(maxAgeInHours >= 0) || Double.isInfinite(maxAgeInHours)) {
+            throw new IllegalArgumentException("max age must be finite and not negative, got " + maxAgeInHours);
+        }
+
+        this.field = terms.get(0).field();
+        for (Term term : terms) {
+            if (!term.field().equals(field)) {
+                throw new IllegalArgumentException("all terms must be of the same field, got [" + field + "] and ["
+                        + term.field() + "]");
+            }
+        }
+
+        this.terms = new ArrayList<>(new TreeSet<>(terms));
+        this.similarity = Objects.requireNonNull(similarity);
+        this.nowInMillis = similarity.roundNow(nowInMillis);
+        this.maxAgeInHours = maxAgeInHours;
+    }
+
+    public List<Term> getTerms() {
+        return terms;
+    }
+
+    boolean isFresh(long timestampInMillis) {
+        return timestampInMillis != TimestampPayloadCodec.MISSING_TIMESTAMP &&
+                RecencyCalculator.calculateRecency(nowInMillis, timestampInMillis) <= maxAgeInHours;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        return new ConstantScoreWeight(this) {
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                DocIdSet docs = freshDocs(context);
+                DocIdSetIterator iterator = docs == null ? null : docs.iterator();
+                return iterator == null ? null : new ConstantScoreScorer(this, score(), iterator);
+            }
+        };
+    }
+
+    /**
+     * Returns documents of the segment with a fresh term, null when there are none.
+     */
+    private DocIdSet freshDocs(LeafReaderContext context) throws IOException {
+        Terms fieldTerms = context.reader().terms(field);
+        if (fieldTerms == null) {
+            return null;
+        }
+
+        TimestampPayloadCodec codec = similarity.getPayloadCodec();
+        TermsEnum termsEnum = fieldTerms.iterator();
+        DocIdSetBuilder builder = null;
+        PostingsEnum postings = null;
+        for (Term term : terms) {
+            if (!termsEnum.seekExact(term.bytes())) {
+                continue;
+            }
+            TermBlockMax blockMax = TermBlockMax.get(context, term, termsEnum, codec);
+            if (!isFresh(blockMax.latestTimestamp())) {
+                continue;
+            }
+
+            if (builder == null) {
+                builder = new DocIdSetBuilder(context.reader().maxDoc(), fieldTerms);
+            }
+            DocIdSetBuilder.BulkAdder adder = builder.grow(termsEnum.docFreq());
+            postings = termsEnum.postings(postings, PostingsEnum.PAYLOADS);
+            int doc = -1;
+            for (int block = 0; block < blockMax.size(); block++) {
+                if (!isFresh(blockMax.maxTimestamp(block))) {
+                    continue;
+                }
+
+                // The postings may already be on the first document of the block, after the end of the previous one.
+                if (doc < blockMax.firstDoc(block)) {
+                    doc = postings.advance(blockMax.firstDoc(block));
+                }
+                for (int lastDoc = blockMax.lastDoc(block); doc <= lastDoc; doc = postings.nextDoc()) {
+                    if (isFresh(TermRecencyQuery.readLatestTermTimestamp(postings, codec))) {
+                        adder.add(doc);
+                    }
+                }
+            }
+        }
+
+        return builder == null ? null : builder.build();
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder("freshness(");
+        if (!this.field.equals(field)) {
+            buffer.append(this.field);
+            buffer.append(":");
+        }
+        for (int i = 0; i < terms.size(); i++) {
+            if (i > 0) {
+                buffer.append(' ');
+            }
+            buffer.append(terms.get(i).text());
+        }
+        buffer.append(", max_age=");
+        buffer.append(maxAgeInHours);
+        buffer.append(")");
+
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) &&
+                terms.equals(((TermFreshnessQuery) other).terms) &&
+                similarity.getPayloadCodec().equals(((TermFreshnessQuery) other).similarity.getPayloadCodec()) &&
+                nowInMillis == ((TermFreshnessQuery) other).nowInMillis &&
+                Double.compare(maxAgeInHours, ((TermFreshnessQuery) other).maxAgeInHours) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * classHash() + terms.hashCode()) + Long.hashCode(nowInMillis)) + Double.hashCode(maxAgeInHours);
+    }
+}
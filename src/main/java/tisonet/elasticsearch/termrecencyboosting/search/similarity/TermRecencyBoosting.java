@@ -15,11 +15,12 @@
 
 package tisonet.elasticsearch.termrecencyboosting.search.similarity;
 
-import org.apache.logging.log4j.Logger;
-import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
-import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.CollectionStatistics;
@@ -28,11 +29,16 @@ import org.apache.lucene.search.TermStatistics;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.SmallFloat;
-import org.elasticsearch.common.logging.Loggers;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+import tisonet.elasticsearch.termrecencyboosting.search.stats.FieldRecencyMetrics;
+import tisonet.elasticsearch.termrecencyboosting.search.stats.IndexRecencyMetrics;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 
 public class TermRecencyBoosting extends Similarity {
@@ -42,18 +48,63 @@ public class TermRecencyBoosting extends Similarity {
     static Double DEFAULT_DECAY = 0.5;
     static Double DEFAULT_SCALE = 24.0; // 24 hours since now() returns decay function a given decay value.
     static Double DEFAULT_WEIGHT = 1.0; // Decay value multiplier to strengthen boosting.
+    static Integer DEFAULT_NOW_GRANULARITY = 1; // Reference time for term recency is rounded down to whole hours.
+
+    static final long DEFAULT_TERM_TIMESTAMP = TimestampPayloadCodec.MISSING_TIMESTAMP;
+
+    // Index name of metrics of a similarity not registered to any index.
+    static final String UNREGISTERED_INDEX = "_na_";
+
+    /**
+     * What the recency score is computed from: the latest term timestamp only, or the latest timestamp with its boost
+     * scaled by the term velocity from the histogram following the timestamp in the payload (see {@link TermVelocity}).
+     */
+    enum RecencyMode {
+        LATEST, VELOCITY;
+
+        static RecencyMode fromString(String mode) {
+            try {
+                return valueOf(mode.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("unknown recency mode [" + mode + "], expected latest or velocity", ex);
+            }
+        }
+    }
 
     private final Similarity similarity;
     private final DecayBooster recencyBooster;
+    private final long nowGranularityInMillis;
+    private final TimestampPayloadCodec payloadCodec;
+    private final IndexRecencyMetrics metrics;
+    private final RecencyMode recencyMode;
 
 
     TermRecencyBoosting(Similarity similarity){
-        this(similarity, DEFAULT_DECAY_FUNCTION, DEFAULT_SCALE, DEFAULT_DECAY, DEFAULT_WEIGHT);
+        this(similarity, new DecayBooster(DEFAULT_DECAY_FUNCTION, DEFAULT_SCALE, DEFAULT_DECAY, DEFAULT_WEIGHT));
+    }
+
+    TermRecencyBoosting(Similarity similarity, DecayBooster recencyBooster) {
+        this(similarity, recencyBooster, TimeUnit.HOURS.toMillis(DEFAULT_NOW_GRANULARITY), TimestampPayloadCodec.DEFAULT,
+                new IndexRecencyMetrics(UNREGISTERED_INDEX));
     }
 
-    TermRecencyBoosting(Similarity similarity, String decayFunction, Double scale, Double decay, Double maxBoost) {
+    TermRecencyBoosting(Similarity similarity, DecayBooster recencyBooster, long nowGranularityInMillis,
+                        TimestampPayloadCodec payloadCodec, IndexRecencyMetrics metrics) {
+        this(similarity, recencyBooster, nowGranularityInMillis, payloadCodec, metrics, RecencyMode.LATEST);
+    }
+
+    TermRecencyBoosting(Similarity similarity, DecayBooster recencyBooster, long nowGranularityInMillis,
+                        TimestampPayloadCodec payloadCodec, IndexRecencyMetrics metrics, RecencyMode recencyMode) {
+        if (nowGranularityInMillis < 1) {
+            throw new IllegalArgumentException("now granularity must be positive, got " + nowGranularityInMillis + "ms");
+        }
+
         this.similarity = similarity;
-        this.recencyBooster = new DecayBooster(decayFunction, scale, decay, maxBoost);
+        this.recencyBooster = recencyBooster;
+        this.nowGranularityInMillis = nowGranularityInMillis;
+        this.payloadCodec = payloadCodec;
+        this.metrics = metrics;
+        this.recencyMode = recencyMode;
     }
 
     @Override
@@ -61,6 +112,152 @@ public class TermRecencyBoosting extends Similarity {
         return "TermRecencyBoosting";
     }
 
+    Similarity getSimilarity() {
+        return similarity;
+    }
+
+    /**
+     * Codec of term timestamps stored in payloads of fields using this similarity.
+     */
+    public TimestampPayloadCodec getPayloadCodec() {
+        return payloadCodec;
+    }
+
+    /**
+     * Returns recency boosting with the given decay parameters, the ones which are null are the same as in this
+     * similarity. Other settings, the horizon setting included, are shared.
+     */
+    public TermRecencyBoosting withDecay(String decayFunction, Double scale, Double decay, Double weight) {
+        DecayBooster booster = recencyBooster.withOverrides(decayFunction, scale, decay, weight);
+        if (booster == recencyBooster) {
+            return this;
+        }
+
+        return new TermRecencyBoosting(similarity, booster, nowGranularityInMillis, payloadCodec, metrics, recencyMode);
+    }
+
+    RecencyMode getRecencyMode() {
+        return recencyMode;
+    }
+
+    /**
+     * Returns true when the recency score needs term histograms, which only term vector payloads hold.
+     */
+    public boolean isVelocityMode() {
+        return recencyMode == RecencyMode.VELOCITY;
+    }
+
+    /**
+     * Returns a reader of timestamps of the terms in documents of the segment, reading term histograms too when the
+     * recency score needs them.
+     */
+    TermTimestampReader newTimestampReader(LeafReader reader, String field, BytesRef[] terms) throws IOException {
+        return new TermTimestampReader(reader, field, terms, payloadCodec, metrics.forField(field),
+                recencyMode == RecencyMode.VELOCITY);
+    }
+
+    /**
+     * Returns false when no term can get any recency boost (zero horizon), so term timestamps don't have to be read.
+     */
+    boolean isRecencyBoosting() {
+        return recencyBooster.getHorizon() > 0;
+    }
+
+    /**
+     * Returns true when recency score of older terms is never higher, so the score of the latest of several term
+     * timestamps (or of a missing timestamp) bounds scores of all of them.
+     */
+    boolean isRecencyScoreDecreasing() {
+        return recencyBooster.isDecreasing();
+    }
+
+    long getNowGranularityInMillis() {
+        return nowGranularityInMillis;
+    }
+
+    /**
+     * Rounds the reference time of term recency down to the configured granularity.
+     */
+    public long roundNow(long nowInMillis) {
+        return RecencyCalculator.roundDown(nowInMillis, nowGranularityInMillis);
+    }
+
+    /**
+     * Computes recency scores of a block of term timestamps, the same as {@link #scoreRecency(long, long)} does for each
+     * of them. Recencies are computed in a separate loop over primitive arrays first, so the JIT can vectorize it.
+     *
+     * @param recencies scratch array of at least count elements
+     */
+    void scoreRecency(long nowInMillis, long[] termTimestamps, double[] recencies, float[] recencyScores, int count) {
+        for (int i = 0; i < count; i++) {
+            recencies[i] = RecencyCalculator.calculateRecency(nowInMillis, termTimestamps[i]);
+        }
+
+        for (int i = 0; i < count; i++) {
+            recencyScores[i] = termTimestamps[i] == DEFAULT_TERM_TIMESTAMP ? 1.0f : 1.0f + recencyBooster.getBoost(recencies[i]);
+        }
+    }
+
+    /**
+     * Returns recency score of a term timestamp, computed as 1.0 + termRecencyBoost.
+     * For missing timestamp returns neutral 1.0.
+     */
+    float scoreRecency(long nowInMillis, long termTimestamp) {
+        return 1.0f + getTermRecencyBoost(nowInMillis, termTimestamp);
+    }
+
+    /**
+     * Returns recency score of the terms in the document, computed as 1.0 + termRecencyBoost, with the boost scaled by
+     * the term velocity in the velocity recency mode. Velocity is read only for terms having any boost.
+     */
+    float scoreRecency(long nowInMillis, TermTimestampReader timestampReader, int doc) {
+        float termRecencyBoost = getTermRecencyBoost(nowInMillis, timestampReader.latestTimestamp(doc));
+        if (recencyMode == RecencyMode.VELOCITY && termRecencyBoost != 0) {
+            termRecencyBoost *= timestampReader.latestVelocity(doc, nowInMillis);
+        }
+
+        return 1.0f + termRecencyBoost;
+    }
+
+    Explanation explainRecency(long nowInMillis, TermTimestampReader timestampReader, int doc) {
+        Explanation explanation = explainRecency(nowInMillis, timestampReader.latestTimestamp(doc));
+        if (recencyMode != RecencyMode.VELOCITY) {
+            return explanation;
+        }
+
+        List<Explanation> recencyScoreSubs = new ArrayList<>(Arrays.asList(explanation.getDetails()));
+        recencyScoreSubs.add(Explanation.match(timestampReader.latestVelocity(doc, nowInMillis), "termVelocity"));
+        return Explanation.match(scoreRecency(nowInMillis, timestampReader, doc),
+                "recencyScore, computed as 1.0 + termRecencyBoost * termVelocity from:", recencyScoreSubs);
+    }
+
+    private float getTermRecencyBoost(long nowInMillis, long termTimestamp) {
+        double termRecency = getTermRecency(nowInMillis, termTimestamp);
+        return termRecency >= 0 ? recencyBooster.getBoost(termRecency) : 0.0f;
+    }
+
+    Explanation explainRecency(long nowInMillis, long termTimestamp) {
+        List<Explanation> recencyScoreSubs = new ArrayList<>();
+        double termRecency = getTermRecency(nowInMillis, termTimestamp);
+        recencyScoreSubs.add(Explanation.match((float) termRecency, "termRecency"));
+        if (termRecency >= 0) {
+            float termRecencyBoost = recencyBooster.getBoost(termRecency);
+            recencyScoreSubs.add(Explanation.match(termRecencyBoost, "termRecencyBoost",
+                    recencyBooster.explain(termRecency)));
+        }
+
+        return Explanation.match(scoreRecency(nowInMillis, termTimestamp),
+                "recencyScore, computed as 1.0 + termRecencyBoost from:", recencyScoreSubs);
+    }
+
+    private double getTermRecency(long nowInMillis, long termTimestamp) {
+        if (termTimestamp != DEFAULT_TERM_TIMESTAMP) {
+            return RecencyCalculator.calculateRecency(nowInMillis, termTimestamp);
+        }
+
+        return -1;
+    }
+
     @Override
     public long computeNorm(FieldInvertState state) {
         // Ignore length during indexing use just field boost
@@ -70,7 +267,9 @@ public class TermRecencyBoosting extends Similarity {
     @Override
     public SimWeight computeWeight(CollectionStatistics collectionStats, TermStatistics... termStats) {
         SimWeight simWeight = this.similarity.computeWeight(collectionStats, termStats);
-        return new RecencyStats(simWeight, collectionStats.field(), termStats);
+        long nowInMillis = roundNow(RecencyReferenceTime.nowInMillis());
+        return new RecencyStats(simWeight, collectionStats.field(), metrics.forField(collectionStats.field()), nowInMillis,
+                termStats);
     }
 
     @Override
@@ -78,18 +277,66 @@ public class TermRecencyBoosting extends Similarity {
         RecencyStats recencyStats = (RecencyStats) weight;
 
         SimScorer bm25simScorer = this.similarity.simScorer(recencyStats.similaritySimWeight, context);
+        if (!isRecencyBoosting()) {
+            return bm25simScorer;
+        }
+        if (isBeyondHorizon(recencyStats, context)) {
+            recencyStats.metrics.onStaleSegment();
+            return bm25simScorer;
+        }
+
+        recencyStats.metrics.onBoostedSegment();
         return new RecencySimScorer(bm25simScorer, recencyStats, context);
     }
 
+    /**
+     * Returns true when the latest timestamps of all query terms in the segment are beyond the horizon, so no document
+     * of the segment gets any boost and term timestamps don't have to be read for every document. The latest timestamp
+     * of a term is known only for fields with positions in postings, it is computed once per segment and term and
+     * cached (see {@link TermBlockMax}).
+     */
+    private boolean isBeyondHorizon(RecencyStats recencyStats, LeafReaderContext context) throws IOException {
+        LeafReader reader = context.reader();
+        FieldInfo fieldInfo = reader.getFieldInfos().fieldInfo(recencyStats.field);
+        if (fieldInfo != null && fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) < 0) {
+            return false;
+        }
+
+        // Terms missing in the segment and fields without payloads have no timestamp, they are not boosted either.
+        long latestTimestamp = DEFAULT_TERM_TIMESTAMP;
+        Terms terms = reader.terms(recencyStats.field);
+        if (fieldInfo != null && fieldInfo.hasPayloads() && terms != null) {
+            TermsEnum termsEnum = terms.iterator();
+            for (BytesRef term : recencyStats.terms) {
+                if (termsEnum.seekExact(term)) {
+                    latestTimestamp = Math.max(latestTimestamp, TermBlockMax.latestTimestamp(context,
+                            new Term(recencyStats.field, term), termsEnum, payloadCodec));
+                }
+            }
+        }
+
+        double latestTermRecency = getTermRecency(recencyStats.nowInMillis, latestTimestamp);
+        return latestTermRecency < 0 || latestTermRecency >= recencyBooster.getHorizon();
+    }
+
     private static class RecencyStats extends SimWeight {
         private final String field;
+        private final FieldRecencyMetrics metrics;
         private final SimWeight similaritySimWeight;
-        private final TermStatistics[] termStats;
+        private final BytesRef[] terms;
+        // Reference time shared by all segments scored for the query.
+        private final long nowInMillis;
 
-        RecencyStats(SimWeight similaritySimWeight, String field, TermStatistics... termStats) {
+        RecencyStats(SimWeight similaritySimWeight, String field, FieldRecencyMetrics metrics, long nowInMillis,
+                     TermStatistics... termStats) {
             this.similaritySimWeight = similaritySimWeight;
             this.field = field;
-            this.termStats = termStats;
+            this.metrics = metrics;
+            this.nowInMillis = nowInMillis;
+            this.terms = new BytesRef[termStats.length];
+            for (int i = 0; i < termStats.length; i++) {
+                terms[i] = BytesRef.deepCopyOf(termStats[i].term());
+            }
         }
 
         @Override
@@ -105,24 +352,42 @@ public class TermRecencyBoosting extends Similarity {
 
     private final class RecencySimScorer extends SimScorer {
 
-        private static final int DEFAULT_TERM_TIMESTAMP = 0;
-
-        private final Logger logger = Loggers.getLogger(this.getClass());
         private final SimScorer similaritySimScorer;
         private final RecencyStats recencyStats;
-        private final LeafReaderContext context;
+        private final TermTimestampReader timestampReader;
+        // Recency scores of the segment documents shared by queries of the same terms, null when not cached.
+        private final float[] recencyScores;
+
+        // Scored documents, every FieldRecencyMetrics.SAMPLING_INTERVAL-th one is timed.
+        private int scoredDocs = 0;
 
         RecencySimScorer(SimScorer similaritySimScorer, RecencyStats recencyStats, LeafReaderContext context) throws IOException {
             this.similaritySimScorer = similaritySimScorer;
             this.recencyStats = recencyStats;
-            this.context = context;
+            this.timestampReader = newTimestampReader(context.reader(), recencyStats.field, recencyStats.terms);
+            this.recencyScores = RecencyScoreCache.get(context, TermRecencyBoosting.this, recencyStats.field,
+                    recencyStats.terms, recencyStats.nowInMillis);
         }
 
         @Override
         public float score(int doc, float freq) {
+            if (++scoredDocs % FieldRecencyMetrics.SAMPLING_INTERVAL == 0) {
+                return sampledScore(doc, freq);
+            }
+
             return similaritySimScorer.score(doc, freq) * scoreRecency(doc);
         }
 
+        private float sampledScore(int doc, float freq) {
+            long start = System.nanoTime();
+            float similarityScore = similaritySimScorer.score(doc, freq);
+            long similarityEnd = System.nanoTime();
+            float recencyScore = scoreRecency(doc);
+            recencyStats.metrics.onSampledScore(similarityEnd - start, System.nanoTime() - similarityEnd);
+
+            return similarityScore * recencyScore;
+        }
+
         
         @Override
         public float computeSlopFactor(int distance) {
@@ -142,81 +407,24 @@ public class TermRecencyBoosting extends Similarity {
             Explanation similarityExp = similaritySimScorer.explain(doc,freq);
             List<Explanation> subs = new ArrayList<>();
             subs.add(similarityExp);
-
-            List<Explanation> recencyScoreSubs = new ArrayList<>();
-            long termRecency = getTermRecency(doc);
-            recencyScoreSubs.add(Explanation.match((float)getTermRecency(doc), "termRecency"));
-            if (termRecency >= 0) {
-                float termRecencyBoost = recencyBooster.getBoost(termRecency);
-                recencyScoreSubs.add(Explanation.match(termRecencyBoost, "termRecencyBoost",
-                        recencyBooster.explain(termRecency)));
-            }
-
-            Explanation recencyExp = Explanation.match(scoreRecency(doc),
-                    "recencyScore, computed as 1.0 + termRecencyBoost from:", recencyScoreSubs);
-            subs.add(recencyExp);
+            subs.add(explainRecency(recencyStats.nowInMillis, timestampReader, doc));
 
             return Explanation.match(bootsScore,"score(doc="+doc+",freq="+freq+"), product of:", subs);
 
         }
 
         private float scoreRecency(int doc){
-            float termRecencyBoost = 0.0f;
-            long termRecency = getTermRecency(doc);
-            if (termRecency >= 0) {
-                termRecencyBoost = recencyBooster.getBoost(termRecency);
+            if (recencyScores == null) {
+                return TermRecencyBoosting.this.scoreRecency(recencyStats.nowInMillis, timestampReader, doc);
             }
 
-            return 1.0f + termRecencyBoost;
-        }
-
-        private long getTermRecency(int doc){
-            int termTimestamp = getLatestTermTimestamp(doc);
-
-            if (termTimestamp != DEFAULT_TERM_TIMESTAMP) {
-                return RecencyCalculator.calculateRecency(termTimestamp);
+            float recencyScore = recencyScores[doc];
+            if (Float.isNaN(recencyScore)) {
+                recencyScore = TermRecencyBoosting.this.scoreRecency(recencyStats.nowInMillis, timestampReader, doc);
+                recencyScores[doc] = recencyScore;
             }
 
-            return -1;
-        }
-
-        private int getLatestTermTimestamp(int doc) {
-            int latestPayload = 0;
-
-            for (int i = 0; i < recencyStats.termStats.length; i++) {
-                int recencyPayload = readTermTimestampFromPayload(doc, recencyStats.termStats[i].term());
-                latestPayload = Math.max(recencyPayload, latestPayload);
-            }
-
-            return latestPayload;
-        }
-
-        private int readTermTimestampFromPayload(int doc, BytesRef term) {
-            try {
-                Terms terms = context.reader().getTermVector(doc, recencyStats.field);
-                if (terms == null) {
-                    return DEFAULT_TERM_TIMESTAMP;
-                }
-
-                TermsEnum termsEnum = terms.iterator();
-                if (!termsEnum.seekExact(term)) {
-                    return DEFAULT_TERM_TIMESTAMP;
-                }
-
-                PostingsEnum dpEnum = termsEnum.postings(null, PostingsEnum.ALL);
-                dpEnum.nextDoc();
-                dpEnum.nextPosition();
-                BytesRef payload = dpEnum.getPayload();
-                if (payload == null) {
-                    return DEFAULT_TERM_TIMESTAMP;
-                }
-
-                return PayloadHelper.decodeInt(payload.bytes, payload.offset);
-            } catch (Exception ex) {
-                logger.error("Unexpected exception in field = " + recencyStats.field, ex);
-
-                return DEFAULT_TERM_TIMESTAMP;
-            }
+            return recencyScore;
         }
     }
 }
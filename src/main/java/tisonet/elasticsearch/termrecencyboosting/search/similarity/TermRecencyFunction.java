@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.lucene.search.function.CombineFunction;
+import org.elasticsearch.common.lucene.search.function.LeafScoreFunction;
+import org.elasticsearch.common.lucene.search.function.ScoreFunction;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Score function returning the recency score of the latest timestamp of the given terms in a document, computed by
+ * {@link TermRecencyBoosting} from term timestamps doc values or term vectors of the field, in the velocity recency
+ * mode scaled by the term velocity. Within a rescore query it is computed only for the top hits of each shard, so the
+ * timestamps don't have to be read for every matched document, which is scored by plain BM25.
+ */
+public final class TermRecencyFunction extends ScoreFunction {
+    private final String field;
+    private final BytesRef[] terms;
+    private final TermRecencyBoosting similarity;
+    // Null when the time of the search request is used.
+    private final Long nowInMillis;
+
+    /**
+     * Scores term recency against the time of the search request, the way the similarity does.
+     */
+    public TermRecencyFunction(String field, BytesRef[] terms, TermRecencyBoosting similarity) {
+        super(CombineFunction.MULTIPLY);
+        this.field = field;
+        this.terms = terms;
+        this.similarity = similarity;
+        this.nowInMillis = null;
+    }
+
+    /**
+     * @param nowInMillis reference time of term recency, it is rounded to the similarity now granularity
+     */
+    public TermRecencyFunction(String field, BytesRef[] terms, TermRecencyBoosting similarity, long nowInMillis) {
+        super(CombineFunction.MULTIPLY);
+        this.field = field;
+        this.terms = terms;
+        this.similarity = similarity;
+        this.nowInMillis = similarity.roundNow(nowInMillis);
+    }
+
+    @Override
+    public LeafScoreFunction getLeafScoreFunction(LeafReaderContext context) throws IOException {
+        if (!similarity.isRecencyBoosting() || terms.length == 0) {
+            return new LeafScoreFunction() {
+                @Override
+                public double score(int docId, float subQueryScore) {
+                    return 1.0;
+                }
+
+                @Override
+                public Explanation explainScore(int docId, Explanation subQueryScore) {
+                    return Explanation.match(1.0f, "recencyScore, no term recency boosting");
+                }
+            };
+        }
+
+        // Function builders are not rewritten, so the request time is read in the query phase, not when parsing.
+        long nowInMillis = this.nowInMillis != null ? this.nowInMillis
+                : similarity.roundNow(RecencyReferenceTime.nowInMillis());
+        TermTimestampReader timestampReader = similarity.newTimestampReader(context.reader(), field, terms);
+        return new LeafScoreFunction() {
+            @Override
+            public double score(int docId, float subQueryScore) {
+                return similarity.scoreRecency(nowInMillis, timestampReader, docId);
+            }
+
+            @Override
+            public Explanation explainScore(int docId, Explanation subQueryScore) {
+                return similarity.explainRecency(nowInMillis, timestampReader, docId);
+            }
+        };
+    }
+
+    @Override
+    public boolean needsScores() {
+        return false;
+    }
+
+    @Override
+    protected boolean doEquals(ScoreFunction other) {
+        TermRecencyFunction function = (TermRecencyFunction) other;
+        return field.equals(function.field) && Arrays.equals(terms, function.terms) &&
+                similarity == function.similarity && Objects.equals(nowInMillis, function.nowInMillis);
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(field, Arrays.hashCode(terms), System.identityHashCode(similarity), nowInMillis);
+    }
+}
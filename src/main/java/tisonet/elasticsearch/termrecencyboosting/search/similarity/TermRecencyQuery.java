@@ -0,0 +1,587 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.Similarity.SimScorer;
+import org.apache.lucene.search.similarities.Similarity.SimWeight;
+import org.apache.lucene.util.Bits;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Term query scored the same way as {@link TermRecencyBoosting}, but the term timestamp is read from the payloads
+ * of the query's own postings instead of term vectors. The field doesn't need term vectors at all, it only has to
+ * be indexed with positions, so the payloads are stored in the postings.
+ *
+ * With a top k hint the query skips blocks of postings (see {@link TermBlockMax}) whose maximum possible score can't
+ * reach the k-th best score. Lucene 6 collectors don't report their minimum competitive score, so the query estimates
+ * it up front by scoring the blocks with the highest score bounds until it has k hits. Skipped documents don't match
+ * at all, so the hint may be used only when the query alone decides the top k hits, search requests where it doesn't
+ * are rejected by {@link TopHitsPruningValidator}.
+ *
+ * Without the hint, searches and disjunctions collecting whole segments score the postings in blocks of
+ * {@link #BULK_SCORE_BLOCK_SIZE} documents, reading term timestamps in doc id order first and computing the scores of
+ * the whole block in loops over primitive arrays afterwards.
+ */
+public final class TermRecencyQuery extends Query {
+    // Bounds are computed with different rounding than the scores, so a block is skipped only with some margin.
+    private static final float SCORE_BOUND_TOLERANCE = 1e-5f;
+    static final int BULK_SCORE_BLOCK_SIZE = 128;
+
+    private final Term term;
+    private final TermRecencyBoosting similarity;
+    private final long nowInMillis;
+    private final int topK;
+
+    /**
+     * @param nowInMillis reference time of term recency, it is rounded to the similarity now granularity
+     */
+    public TermRecencyQuery(Term term, TermRecencyBoosting similarity, long nowInMillis) {
+        this(term, similarity, nowInMillis, 0);
+    }
+
+    /**
+     * @param nowInMillis reference time of term recency, it is rounded to the similarity now granularity
+     * @param topK number of top hits, which have to be found exactly, other documents may be skipped; 0 for all hits
+     */
+    public TermRecencyQuery(Term term, TermRecencyBoosting similarity, long nowInMillis, int topK) {
+        if (topK < 0) {
+            throw new IllegalArgumentException("top k must not be negative, got " + topK);
+        }
+
+        this.term = Objects.requireNonNull(term);
+        this.similarity = Objects.requireNonNull(similarity);
+        this.nowInMillis = similarity.roundNow(nowInMillis);
+        this.topK = topK;
+    }
+
+    public Term getTerm() {
+        return term;
+    }
+
+    int getTopK() {
+        return topK;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        IndexReaderContext context = searcher.getTopReaderContext();
+        TermContext termContext = needsScores ? TermContext.build(context, term) : null;
+
+        return new TermRecencyWeight(searcher, needsScores, termContext);
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder("recency(");
+        if (!term.field().equals(field)) {
+            buffer.append(term.field());
+            buffer.append(":");
+        }
+        buffer.append(term.text());
+        if (topK > 0) {
+            buffer.append(", top_k=");
+            buffer.append(topK);
+        }
+        buffer.append(")");
+
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) &&
+                term.equals(((TermRecencyQuery) other).term) &&
+                similarity == ((TermRecencyQuery) other).similarity &&
+                nowInMillis == ((TermRecencyQuery) other).nowInMillis &&
+                topK == ((TermRecencyQuery) other).topK;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * classHash() + term.hashCode()) + Long.hashCode(nowInMillis)) + topK;
+    }
+
+    /**
+     * Returns the latest of timestamps in payloads of all positions of the current document.
+     */
+    static long readLatestTermTimestamp(PostingsEnum postings, TimestampPayloadCodec codec) throws IOException {
+        long latestTimestamp = TermRecencyBoosting.DEFAULT_TERM_TIMESTAMP;
+
+        for (int i = postings.freq(); i > 0; i--) {
+            if (postings.nextPosition() == -1) {
+                // Field is indexed without positions, so there are no payloads.
+                break;
+            }
+
+            latestTimestamp = Math.max(latestTimestamp, codec.decode(postings.getPayload()));
+        }
+
+        return latestTimestamp;
+    }
+
+    private final class TermRecencyWeight extends Weight {
+        private final SimWeight stats;
+        private final TermContext termContext;
+        private final boolean needsScores;
+        private final List<LeafReaderContext> leaves;
+        // Blocks can be bounded only by BM25 and recency scores decreasing with term age.
+        private final boolean pruning;
+        // BM25 without length normalization gives the same score to the same term frequency in all documents.
+        private final boolean lengthIndependent;
+        // Computed lazily by the first scorer, after the weight is normalized.
+        private float minCompetitiveScore = Float.NaN;
+
+        TermRecencyWeight(IndexSearcher searcher, boolean needsScores, TermContext termContext) throws IOException {
+            super(TermRecencyQuery.this);
+            this.needsScores = needsScores;
+            this.termContext = termContext;
+            this.leaves = searcher.getTopReaderContext().leaves();
+            this.pruning = needsScores && topK > 0 && similarity.isRecencyBoosting() && similarity.isRecencyScoreDecreasing()
+                    && similarity.getSimilarity() instanceof BM25Similarity;
+            this.lengthIndependent = pruning && ((BM25Similarity) similarity.getSimilarity()).getB() == 0;
+
+            if (needsScores) {
+                CollectionStatistics collectionStats = searcher.collectionStatistics(term.field());
+                TermStatistics termStats = searcher.termStatistics(term, termContext);
+                this.stats = similarity.getSimilarity().computeWeight(collectionStats, termStats);
+            } else {
+                this.stats = null;
+            }
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+            terms.add(term);
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return stats == null ? 1.0f : stats.getValueForNormalization();
+        }
+
+        @Override
+        public void normalize(float queryNorm, float boost) {
+            if (stats != null) {
+                stats.normalize(queryNorm, boost);
+            }
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            TermsEnum termsEnum = getTermsEnum(context);
+            if (termsEnum == null) {
+                return null;
+            }
+
+            if (!needsScores) {
+                PostingsEnum postings = termsEnum.postings(null, PostingsEnum.NONE);
+                return new TermRecencyScorer(this, postings, postings, null);
+            }
+
+            SimScorer docScorer = similarity.getSimilarity().simScorer(stats, context);
+            if (pruning && minCompetitiveScore() > 0) {
+                TermBlockMax blockMax = TermBlockMax.get(context, term, termsEnum, similarity.getPayloadCodec());
+                boolean[] competitive = new boolean[blockMax.size()];
+                boolean anyCompetitive = false;
+                for (int block = 0; block < competitive.length; block++) {
+                    competitive[block] = maxScore(docScorer, blockMax, block) * (1 + SCORE_BOUND_TOLERANCE) >= minCompetitiveScore;
+                    anyCompetitive |= competitive[block];
+                }
+                if (!anyCompetitive) {
+                    return null;
+                }
+
+                PostingsEnum postings = termsEnum.postings(null, PostingsEnum.PAYLOADS);
+                return new TermRecencyScorer(this, postings, new CompetitiveBlocksIterator(postings, blockMax, competitive),
+                        docScorer);
+            }
+
+            return newScorer(termsEnum, docScorer);
+        }
+
+        @Override
+        public BulkScorer bulkScorer(LeafReaderContext context) throws IOException {
+            // Pruned and unscored postings have no timestamps to read in bulk.
+            if (!needsScores || pruning || !similarity.isRecencyBoosting()) {
+                return super.bulkScorer(context);
+            }
+
+            TermsEnum termsEnum = getTermsEnum(context);
+            if (termsEnum == null) {
+                return null;
+            }
+
+            return new TermRecencyBulkScorer(this, termsEnum.postings(null, PostingsEnum.PAYLOADS),
+                    similarity.getSimilarity().simScorer(stats, context));
+        }
+
+        private TermRecencyScorer newScorer(TermsEnum termsEnum, SimScorer docScorer) throws IOException {
+            // Without any possible recency boost the payloads are not needed.
+            int flags = similarity.isRecencyBoosting() ? PostingsEnum.PAYLOADS : PostingsEnum.FREQS;
+            PostingsEnum postings = termsEnum.postings(null, flags);
+            return new TermRecencyScorer(this, postings, postings, docScorer);
+        }
+
+        /**
+         * Maximum score of documents in a block, BM25 score of the highest term frequency in the block multiplied by
+         * recency score of the latest term timestamp in the block.
+         */
+        private float maxScore(SimScorer docScorer, TermBlockMax blockMax, int block) {
+            // With length normalization only the limit of BM25 score for infinite term frequency bounds the block.
+            float freq = lengthIndependent ? blockMax.maxFreq(block) : Float.MAX_VALUE;
+            return docScorer.score(blockMax.lastDoc(block), freq)
+                    * similarity.scoreRecency(nowInMillis, blockMax.maxTimestamp(block));
+        }
+
+        private synchronized float minCompetitiveScore() throws IOException {
+            if (Float.isNaN(minCompetitiveScore)) {
+                minCompetitiveScore = computeMinCompetitiveScore();
+            }
+
+            return minCompetitiveScore;
+        }
+
+        /**
+         * Scores documents of blocks with the highest maximum scores until there are top k of them and no other block
+         * can beat the lowest of them. The lowest of the top k scores found this way can't be higher than the k-th
+         * score of all documents.
+         */
+        private float computeMinCompetitiveScore() throws IOException {
+            List<ScoredBlock> blocks = new ArrayList<>();
+            for (LeafReaderContext leaf : leaves) {
+                TermsEnum termsEnum = getTermsEnum(leaf);
+                if (termsEnum == null) {
+                    continue;
+                }
+
+                TermBlockMax blockMax = TermBlockMax.get(leaf, term, termsEnum, similarity.getPayloadCodec());
+                SimScorer docScorer = similarity.getSimilarity().simScorer(stats, leaf);
+                for (int block = 0; block < blockMax.size(); block++) {
+                    blocks.add(new ScoredBlock(leaf, blockMax, block, maxScore(docScorer, blockMax, block)));
+                }
+            }
+            blocks.sort((a, b) -> Float.compare(b.maxScore, a.maxScore));
+
+            PriorityQueue<Float> topScores = new PriorityQueue<>(topK);
+            for (ScoredBlock block : blocks) {
+                if (topScores.size() == topK && block.maxScore <= topScores.peek()) {
+                    break;
+                }
+
+                TermRecencyScorer scorer = newScorer(getTermsEnum(block.leaf),
+                        similarity.getSimilarity().simScorer(stats, block.leaf));
+                Bits liveDocs = block.leaf.reader().getLiveDocs();
+                DocIdSetIterator iterator = scorer.iterator();
+                int lastDoc = block.blockMax.lastDoc(block.block);
+                for (int doc = iterator.advance(block.blockMax.firstDoc(block.block)); doc <= lastDoc; doc = iterator.nextDoc()) {
+                    if (liveDocs == null || liveDocs.get(doc)) {
+                        topScores.offer(scorer.score());
+                        if (topScores.size() > topK) {
+                            topScores.poll();
+                        }
+                    }
+                }
+            }
+
+            return topScores.size() < topK ? 0 : topScores.peek();
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            TermsEnum termsEnum = getTermsEnum(context);
+            TermRecencyScorer scorer = termsEnum == null || !needsScores ? null
+                    : newScorer(termsEnum, similarity.getSimilarity().simScorer(stats, context));
+            if (scorer != null && scorer.iterator().advance(doc) == doc && scorer.docScorer != null) {
+                float freq = scorer.freq();
+                Explanation freqExplanation = Explanation.match(freq, "termFreq=" + freq);
+                Explanation similarityExp = scorer.docScorer.explain(doc, freqExplanation);
+                Explanation recencyExp = similarity.explainRecency(nowInMillis, scorer.getLatestTermTimestamp());
+
+                return Explanation.match(similarityExp.getValue() * recencyExp.getValue(),
+                        "weight(" + getQuery() + " in " + doc + "), product of:", similarityExp, recencyExp);
+            }
+
+            return Explanation.noMatch("no matching term");
+        }
+
+        private TermsEnum getTermsEnum(LeafReaderContext context) throws IOException {
+            if (termContext == null) {
+                Terms terms = context.reader().terms(term.field());
+                if (terms == null) {
+                    return null;
+                }
+
+                TermsEnum termsEnum = terms.iterator();
+                return termsEnum.seekExact(term.bytes()) ? termsEnum : null;
+            }
+
+            TermState state = termContext.get(context.ord);
+            if (state == null) {
+                return null;
+            }
+
+            TermsEnum termsEnum = context.reader().terms(term.field()).iterator();
+            termsEnum.seekExact(term.bytes(), state);
+            return termsEnum;
+        }
+    }
+
+    private static final class ScoredBlock {
+        private final LeafReaderContext leaf;
+        private final TermBlockMax blockMax;
+        private final int block;
+        private final float maxScore;
+
+        ScoredBlock(LeafReaderContext leaf, TermBlockMax blockMax, int block, float maxScore) {
+            this.leaf = leaf;
+            this.blockMax = blockMax;
+            this.block = block;
+            this.maxScore = maxScore;
+        }
+    }
+
+    /**
+     * Iterates postings documents in competitive blocks only.
+     */
+    private static final class CompetitiveBlocksIterator extends DocIdSetIterator {
+        private final PostingsEnum postings;
+        private final TermBlockMax blockMax;
+        private final boolean[] competitive;
+        private int block = 0;
+        private int doc = -1;
+
+        CompetitiveBlocksIterator(PostingsEnum postings, TermBlockMax blockMax, boolean[] competitive) {
+            this.postings = postings;
+            this.blockMax = blockMax;
+            this.competitive = competitive;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return doc = skipNonCompetitiveBlocks(postings.nextDoc());
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return doc = skipNonCompetitiveBlocks(postings.advance(target));
+        }
+
+        private int skipNonCompetitiveBlocks(int doc) throws IOException {
+            while (doc != NO_MORE_DOCS) {
+                while (blockMax.lastDoc(block) < doc) {
+                    block++;
+                }
+                if (competitive[block]) {
+                    return doc;
+                }
+
+                do {
+                    block++;
+                } while (block < competitive.length && !competitive[block]);
+                if (block == competitive.length) {
+                    return NO_MORE_DOCS;
+                }
+                doc = postings.advance(blockMax.firstDoc(block));
+            }
+
+            return doc;
+        }
+
+        @Override
+        public long cost() {
+            return postings.cost();
+        }
+    }
+
+    private final class TermRecencyScorer extends Scorer {
+        private final PostingsEnum postings;
+        private final DocIdSetIterator iterator;
+        private final SimScorer docScorer;
+
+        // Positions can be read only once per document, but score may be requested repeatedly.
+        private int timestampDoc = -1;
+        private long timestamp = TermRecencyBoosting.DEFAULT_TERM_TIMESTAMP;
+
+        TermRecencyScorer(Weight weight, PostingsEnum postings, DocIdSetIterator iterator, SimScorer docScorer) {
+            super(weight);
+            this.postings = postings;
+            this.iterator = iterator;
+            this.docScorer = docScorer;
+        }
+
+        @Override
+        public int docID() {
+            return iterator.docID();
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return postings.freq();
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return iterator;
+        }
+
+        @Override
+        public float score() throws IOException {
+            assert docScorer != null : "scores were not requested";
+            return docScorer.score(postings.docID(), postings.freq()) * similarity.scoreRecency(nowInMillis, getLatestTermTimestamp());
+        }
+
+        private long getLatestTermTimestamp() throws IOException {
+            int doc = postings.docID();
+            if (doc != timestampDoc) {
+                timestampDoc = doc;
+                timestamp = readLatestTermTimestamp(postings, similarity.getPayloadCodec());
+            }
+
+            return timestamp;
+        }
+    }
+
+    /**
+     * Scores postings in blocks, the same way as {@link TermRecencyScorer} scores them one by one.
+     */
+    private final class TermRecencyBulkScorer extends BulkScorer {
+        private final PostingsEnum postings;
+        private final SimScorer docScorer;
+        private final BlockScorer blockScorer;
+
+        private final int[] docs = new int[BULK_SCORE_BLOCK_SIZE];
+        private final int[] freqs = new int[BULK_SCORE_BLOCK_SIZE];
+        private final long[] timestamps = new long[BULK_SCORE_BLOCK_SIZE];
+        private final double[] recencies = new double[BULK_SCORE_BLOCK_SIZE];
+        private final float[] recencyScores = new float[BULK_SCORE_BLOCK_SIZE];
+        private final float[] scores = new float[BULK_SCORE_BLOCK_SIZE];
+
+        TermRecencyBulkScorer(Weight weight, PostingsEnum postings, SimScorer docScorer) {
+            this.postings = postings;
+            this.docScorer = docScorer;
+            this.blockScorer = new BlockScorer(weight);
+        }
+
+        @Override
+        public int score(LeafCollector collector, Bits acceptDocs, int min, int max) throws IOException {
+            collector.setScorer(blockScorer);
+
+            int doc = postings.docID();
+            if (doc < min) {
+                doc = postings.advance(min);
+            }
+
+            while (doc < max) {
+                // Positions are read sequentially while the postings are iterated in doc id order.
+                int count = 0;
+                while (doc < max && count < BULK_SCORE_BLOCK_SIZE) {
+                    if (acceptDocs == null || acceptDocs.get(doc)) {
+                        docs[count] = doc;
+                        freqs[count] = postings.freq();
+                        timestamps[count] = readLatestTermTimestamp(postings, similarity.getPayloadCodec());
+                        count++;
+                    }
+                    doc = postings.nextDoc();
+                }
+
+                scoreBlock(count);
+                for (int i = 0; i < count; i++) {
+                    blockScorer.index = i;
+                    collector.collect(docs[i]);
+                }
+            }
+
+            return doc;
+        }
+
+        private void scoreBlock(int count) {
+            similarity.scoreRecency(nowInMillis, timestamps, recencies, recencyScores, count);
+            for (int i = 0; i < count; i++) {
+                scores[i] = docScorer.score(docs[i], freqs[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                scores[i] *= recencyScores[i];
+            }
+        }
+
+        @Override
+        public long cost() {
+            return postings.cost();
+        }
+
+        /**
+         * Exposes the score of the document of the block being collected.
+         */
+        private final class BlockScorer extends Scorer {
+            private int index = -1;
+
+            BlockScorer(Weight weight) {
+                super(weight);
+            }
+
+            @Override
+            public int docID() {
+                return index < 0 ? -1 : docs[index];
+            }
+
+            @Override
+            public int freq() {
+                return freqs[index];
+            }
+
+            @Override
+            public float score() {
+                return scores[index];
+            }
+
+            @Override
+            public DocIdSetIterator iterator() {
+                throw new UnsupportedOperationException("documents are collected by the bulk scorer");
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timestamps of a term in documents of a segment decoded from term vectors, shared by all queries on the node, so
+ * concurrent and repeated queries don't decode term vectors of the same documents again.
+ *
+ * Every term of a segment has a direct mapped table of at most {@link #MAX_SLOTS} slots indexed by the document id.
+ * A slot packs the document id plus one and the timestamp as a number of payload codec units into a single long, so it
+ * is read and written atomically without any locks, a zero slot is empty and a document colliding with another one
+ * just replaces it. A table is created by the first timestamp of the term put into it, terms which are only looked up
+ * take no memory. Tables are evicted when the segment core is closed, or least recently used ones when the cache is
+ * full.
+ */
+final class TermTimestampCache {
+    static final long NOT_CACHED = Long.MIN_VALUE;
+
+    static final int MAX_SLOTS = 4096;
+    private static final long MAX_CACHE_WEIGHT_IN_BYTES = 64L * 1024 * 1024;
+
+    private static final Cache<CacheKey, TermTimestampCache> CACHE = CacheBuilder.<CacheKey, TermTimestampCache>builder()
+            .setMaximumWeight(MAX_CACHE_WEIGHT_IN_BYTES)
+            .weigher((key, timestamps) -> timestamps.ramBytesUsed())
+            .build();
+
+    // Segment cores with a registered listener evicting their timestamps when the core is closed.
+    private static final Set<Object> CACHED_CORES = ConcurrentHashMap.newKeySet();
+
+    private final TimestampPayloadCodec codec;
+    private final AtomicLongArray slots;
+    private final int mask;
+
+    private TermTimestampCache(TimestampPayloadCodec codec, int maxDoc) {
+        int size = Math.min(MAX_SLOTS, Integer.highestOneBit(Math.max(1, maxDoc - 1)) << 1);
+        this.codec = codec;
+        this.slots = new AtomicLongArray(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns cached timestamps of the term in documents of the segment, or null when no timestamp of the term has been
+     * put into the cache yet.
+     */
+    static TermTimestampCache find(LeafReader reader, String field, BytesRef term, TimestampPayloadCodec codec) {
+        return CACHE.get(new CacheKey(reader.getCoreCacheKey(), field, term, codec));
+    }
+
+    /**
+     * Returns timestamps of the term in documents of the segment, creating them when they are not cached, the term
+     * bytes must not change.
+     */
+    static TermTimestampCache get(LeafReader reader, String field, BytesRef term, TimestampPayloadCodec codec) {
+        Object coreKey = reader.getCoreCacheKey();
+        if (CACHED_CORES.add(coreKey)) {
+            reader.addCoreClosedListener(TermTimestampCache::evictCore);
+        }
+
+        try {
+            return CACHE.computeIfAbsent(new CacheKey(coreKey, field, term, codec),
+                    key -> new TermTimestampCache(codec, reader.maxDoc()));
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("failed to allocate timestamps of term [" + term.utf8ToString() + "]",
+                    ex.getCause());
+        }
+    }
+
+    /**
+     * Returns the latest timestamp of the term in the document, or {@link #NOT_CACHED}.
+     */
+    long get(int doc) {
+        long slot = slots.get(doc & mask);
+        if ((int) (slot >>> 32) != doc + 1) {
+            return NOT_CACHED;
+        }
+
+        return codec.unpack((int) slot);
+    }
+
+    void put(int doc, long timestamp) {
+        int packedTimestamp = codec.pack(timestamp);
+        if (packedTimestamp < 0 && timestamp != TimestampPayloadCodec.MISSING_TIMESTAMP) {
+            // Too far from the codec epoch to fit into a slot, it is decoded from the payload every time.
+            return;
+        }
+        slots.set(doc & mask, ((long) (doc + 1) << 32) | (packedTimestamp & 0xFFFFFFFFL));
+    }
+
+    long ramBytesUsed() {
+        return 64 + Long.BYTES * (long) slots.length();
+    }
+
+    private static void evictCore(Object coreKey) {
+        CACHED_CORES.remove(coreKey);
+        for (CacheKey key : CACHE.keys()) {
+            if (key.coreKey == coreKey) {
+                CACHE.invalidate(key);
+            }
+        }
+    }
+
+    private static final class CacheKey {
+        private final Object coreKey;
+        private final String field;
+        private final BytesRef term;
+        private final TimestampPayloadCodec codec;
+
+        CacheKey(Object coreKey, String field, BytesRef term, TimestampPayloadCodec codec) {
+            this.coreKey = coreKey;
+            this.field = field;
+            this.term = term;
+            this.codec = codec;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            CacheKey that = (CacheKey) o;
+            return coreKey == that.coreKey && field.equals(that.field) && term.equals(that.term) && codec.equals(that.codec);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(coreKey), field, term, codec);
+        }
+    }
+}
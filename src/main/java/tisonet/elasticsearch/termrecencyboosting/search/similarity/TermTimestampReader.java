@@ -0,0 +1,261 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TermHistogram;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+import tisonet.elasticsearch.termrecencyboosting.index.mapper.TermTimestamps;
+import tisonet.elasticsearch.termrecencyboosting.search.stats.FieldRecencyMetrics;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads the latest timestamp of the given terms in a document of a segment, from term timestamps doc values written by
+ * the recency_text field mapper or, when the segment has none, from payloads of the document term vector.
+ *
+ * With histograms the velocity of the term with the latest timestamp is read from the histogram following the timestamp
+ * in its term vector payload (see {@link TermHistogram}). It is read only for documents the velocity is asked for,
+ * from the term vector already read for the timestamp or, when the timestamp was cached, by reading the term vector.
+ */
+final class TermTimestampReader {
+    private final LeafReader reader;
+    private final String field;
+    private final BytesRef[] terms;
+    // Terms in their natural order, looked up in term timestamps doc values by a single scan.
+    private final BytesRef[] sortedTerms;
+    private final TimestampPayloadCodec payloadCodec;
+    private final FieldRecencyMetrics metrics;
+    // Term timestamps written by the recency_text field mapper, null when the segment has only term vectors.
+    private final BinaryDocValues termTimestamps;
+    private final boolean readHistograms;
+    // Timestamps of the terms already decoded from term vectors by any query, null when reading doc values.
+    // A term has no cached timestamps until the first one is decoded.
+    private final TermTimestampCache[] cachedTimestamps;
+    // Documents having any timestamp in the field, null when reading doc values or when all documents may have one.
+    private final Bits docsWithTimestamps;
+
+    // Term vector postings enum reused across documents and terms.
+    private PostingsEnum postingsEnum;
+    // Histogram of the latest occurrence of the term read last, swapped with the histogram of the latest term.
+    private TermHistogram termHistogram = new TermHistogram();
+    // Histogram of the term with the latest timestamp in the document histogramDoc.
+    private TermHistogram histogram = new TermHistogram();
+    private int histogramDoc = -1;
+
+    // Timestamp and velocity of the last read document, explain and repeated score calls don't read them again.
+    private int timestampDoc = -1;
+    private long timestamp = TimestampPayloadCodec.MISSING_TIMESTAMP;
+    private int velocityDoc = -1;
+    private float velocity = TermVelocity.NEUTRAL;
+
+    TermTimestampReader(LeafReader reader, String field, BytesRef[] terms, TimestampPayloadCodec payloadCodec,
+                        FieldRecencyMetrics metrics) throws IOException {
+        this(reader, field, terms, payloadCodec, metrics, false);
+    }
+
+    /**
+     * @param readHistograms whether the velocity of the terms is read from term histograms in payloads
+     */
+    TermTimestampReader(LeafReader reader, String field, BytesRef[] terms, TimestampPayloadCodec payloadCodec,
+                        FieldRecencyMetrics metrics, boolean readHistograms) throws IOException {
+        this.reader = reader;
+        this.field = field;
+        this.terms = terms;
+        this.payloadCodec = payloadCodec;
+        this.metrics = metrics;
+        this.readHistograms = readHistograms;
+        this.termTimestamps = reader.getBinaryDocValues(field);
+        this.sortedTerms = terms.clone();
+        Arrays.sort(sortedTerms);
+
+        if (termTimestamps == null) {
+            this.cachedTimestamps = new TermTimestampCache[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                cachedTimestamps[i] = TermTimestampCache.find(reader, field, terms[i], payloadCodec);
+            }
+            this.docsWithTimestamps = DocsWithTimestamps.get(reader, field, payloadCodec);
+        } else {
+            this.cachedTimestamps = null;
+            this.docsWithTimestamps = null;
+        }
+    }
+
+    /**
+     * Returns the latest timestamp of the terms in the document, {@link TimestampPayloadCodec#MISSING_TIMESTAMP} when
+     * none of them has any.
+     */
+    long latestTimestamp(int doc) {
+        if (doc != timestampDoc) {
+            timestamp = termTimestamps != null ? readLatestTermTimestampFromDocValues(doc) : readLatestTermTimestampFromPayloads(doc);
+            timestampDoc = doc;
+            if (timestamp == TimestampPayloadCodec.MISSING_TIMESTAMP) {
+                metrics.onMissingTimestamp();
+            }
+        }
+
+        return timestamp;
+    }
+
+    /**
+     * Returns the velocity of the term with the latest timestamp in the document at the reference time,
+     * {@link TermVelocity#NEUTRAL} when it has no histogram or histograms are not read.
+     */
+    float latestVelocity(int doc, long nowInMillis) {
+        if (doc != velocityDoc) {
+            velocity = readLatestVelocity(doc, nowInMillis);
+            velocityDoc = doc;
+        }
+
+        return velocity;
+    }
+
+    private float readLatestVelocity(int doc, long nowInMillis) {
+        long latestTimestamp = latestTimestamp(doc);
+        if (!readHistograms || latestTimestamp == TimestampPayloadCodec.MISSING_TIMESTAMP) {
+            return TermVelocity.NEUTRAL;
+        }
+
+        if (doc != histogramDoc) {
+            readLatestHistogramFromPayloads(doc, latestTimestamp);
+        }
+
+        return doc == histogramDoc ? TermVelocity.of(histogram, latestTimestamp, nowInMillis) : TermVelocity.NEUTRAL;
+    }
+
+    private long readLatestTermTimestampFromDocValues(int doc) {
+        metrics.onDocValuesRead();
+        BytesRef value = termTimestamps.get(doc);
+        return TermTimestamps.latestTimestamp(value, sortedTerms);
+    }
+
+    private long readLatestTermTimestampFromPayloads(int doc) {
+        if (docsWithTimestamps != null && !docsWithTimestamps.get(doc)) {
+            return TimestampPayloadCodec.MISSING_TIMESTAMP;
+        }
+
+        long latestPayload = TimestampPayloadCodec.MISSING_TIMESTAMP;
+
+        boolean allCached = cachedTimestamps != null;
+        for (int i = 0; allCached && i < cachedTimestamps.length; i++) {
+            long cachedTimestamp = cachedTimestamps[i] == null ? TermTimestampCache.NOT_CACHED : cachedTimestamps[i].get(doc);
+            if (cachedTimestamp == TermTimestampCache.NOT_CACHED) {
+                allCached = false;
+                break;
+            }
+            latestPayload = Math.max(cachedTimestamp, latestPayload);
+        }
+        if (allCached) {
+            metrics.onCachedTimestampRead();
+            return latestPayload;
+        }
+
+        latestPayload = TimestampPayloadCodec.MISSING_TIMESTAMP;
+        try {
+            // Term vector of a document is decoded once and shared by all terms.
+            metrics.onTermVectorRead();
+            Terms termVector = reader.getTermVector(doc, field);
+            if (termVector == null) {
+                return TimestampPayloadCodec.MISSING_TIMESTAMP;
+            }
+
+            TermsEnum termsEnum = termVector.iterator();
+            for (int i = 0; i < terms.length; i++) {
+                long termTimestamp = readTermTimestampFromPayload(termsEnum, terms[i]);
+                if (cachedTimestamps != null) {
+                    if (cachedTimestamps[i] == null) {
+                        cachedTimestamps[i] = TermTimestampCache.get(reader, field, terms[i], payloadCodec);
+                    }
+                    cachedTimestamps[i].put(doc, termTimestamp);
+                }
+                if (termTimestamp > latestPayload) {
+                    latestPayload = termTimestamp;
+                    swapHistograms();
+                }
+            }
+            histogramDoc = doc;
+        } catch (Exception ex) {
+            metrics.onReadError(ex);
+        }
+
+        return latestPayload;
+    }
+
+    private long readTermTimestampFromPayload(TermsEnum termsEnum, BytesRef term) throws IOException {
+        if (!termsEnum.seekExact(term)) {
+            return TimestampPayloadCodec.MISSING_TIMESTAMP;
+        }
+
+        postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.PAYLOADS);
+        postingsEnum.nextDoc();
+
+        // Every occurrence of the term may carry a different timestamp, the latest one is used.
+        long latestTimestamp = TimestampPayloadCodec.MISSING_TIMESTAMP;
+        for (int i = postingsEnum.freq(); i > 0; i--) {
+            postingsEnum.nextPosition();
+            BytesRef payload = postingsEnum.getPayload();
+            long timestamp = payloadCodec.decode(payload);
+            if (timestamp > latestTimestamp) {
+                latestTimestamp = timestamp;
+                if (readHistograms) {
+                    termHistogram.read(payload, payloadCodec);
+                }
+            }
+        }
+
+        return latestTimestamp;
+    }
+
+    /**
+     * Reads the histogram of the term occurrence with the given latest timestamp from the document term vector, used
+     * when the timestamp was read without it.
+     */
+    private void readLatestHistogramFromPayloads(int doc, long latestTimestamp) {
+        try {
+            metrics.onTermVectorRead();
+            Terms termVector = reader.getTermVector(doc, field);
+            if (termVector == null) {
+                return;
+            }
+
+            TermsEnum termsEnum = termVector.iterator();
+            for (BytesRef term : terms) {
+                if (readTermTimestampFromPayload(termsEnum, term) == latestTimestamp) {
+                    swapHistograms();
+                    histogramDoc = doc;
+                    return;
+                }
+            }
+        } catch (Exception ex) {
+            metrics.onReadError(ex);
+        }
+    }
+
+    private void swapHistograms() {
+        if (readHistograms) {
+            TermHistogram latestHistogram = termHistogram;
+            termHistogram = histogram;
+            histogram = latestHistogram;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TermHistogram;
+
+/**
+ * Velocity of a term in a document computed from its occurrence histogram (see {@link TermHistogram}), as the count
+ * of the bucket holding the reference time relative to the mean count of the preceding buckets of the histogram
+ * length: (current + 1) / (mean of preceding + 1). Buckets are aligned to the epoch, so the histogram is shifted by
+ * the number of buckets between its latest timestamp and the reference time, and occurrences shifted out of it are
+ * no longer counted.
+ *
+ * A term mentioned steadily has velocity about 1.0, a term mentioned more and more above 1.0 and a term mentioned
+ * less and less below 1.0. A single occurrence tells nothing about the trend, so like a term without
+ * a histogram it is neutral.
+ */
+final class TermVelocity {
+    // Velocity of terms without a trend, their recency boost is not changed.
+    static final float NEUTRAL = 1.0f;
+
+    private TermVelocity() {
+    }
+
+    static float of(TermHistogram histogram, long latestTimestamp, long nowInMillis) {
+        int buckets = histogram.getBuckets();
+        if (buckets < 2) {
+            return NEUTRAL;
+        }
+
+        int total = 0;
+        for (int i = 0; i < buckets; i++) {
+            total += histogram.getCount(i);
+        }
+        if (total < 2) {
+            return NEUTRAL;
+        }
+
+        long width = histogram.getBucketWidthInMillis();
+        // Terms with timestamps after the reference time are scored as if they were in its bucket.
+        long shift = TermHistogram.bucket(nowInMillis, width) - TermHistogram.bucket(latestTimestamp, width);
+        shift = Math.max(0, shift);
+        int current = shift == 0 ? histogram.getCount(0) : 0;
+        int preceding = 0;
+        for (int i = shift == 0 ? 1 : 0; i + shift < buckets; i++) {
+            preceding += histogram.getCount(i);
+        }
+
+        return (float) ((current + 1.0) / ((double) preceding / (buckets - 1) + 1.0));
+    }
+}
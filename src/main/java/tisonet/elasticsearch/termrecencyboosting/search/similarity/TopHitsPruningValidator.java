@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.lucene.search.function.FiltersFunctionScoreQuery;
+import org.elasticsearch.common.lucene.search.function.FunctionScoreQuery;
+import org.elasticsearch.index.shard.SearchOperationListener;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.rescore.RescoreSearchContext;
+
+/**
+ * Rejects search requests where the top k hint of {@link TermRecencyQuery} can't find the hits exactly. Documents
+ * skipped by the hint don't match at all, so the hint is allowed only when the query alone decides the top hits of
+ * a shard: at the top level of the request, sorted by score and without aggregations, post filter, collapsing or
+ * scroll, and with at most k hits up to the last requested one. Total hits are a lower bound even then.
+ */
+public final class TopHitsPruningValidator {
+
+    public static final SearchOperationListener SEARCH_LISTENER = new SearchOperationListener() {
+        @Override
+        public void onNewContext(SearchContext searchContext) {
+            if (searchContext.parsedQuery() != null) {
+                validate(searchContext);
+            }
+        }
+    };
+
+    private TopHitsPruningValidator() {
+    }
+
+    private static void validate(SearchContext searchContext) {
+        Query query = searchContext.parsedQuery().query();
+        while (query instanceof BoostQuery) {
+            query = ((BoostQuery) query).getQuery();
+        }
+        if (!(query instanceof TermRecencyQuery) || ((TermRecencyQuery) query).getTopK() == 0) {
+            if (hasScoringTopK(query)) {
+                throw new IllegalArgumentException("[top_k] can be used only by the top level query, other query "
+                        + "clauses would miss the skipped documents");
+            }
+            return;
+        }
+
+        int topK = ((TermRecencyQuery) query).getTopK();
+        if (searchContext.aggregations() != null) {
+            throw new IllegalArgumentException("[top_k] can't be used with aggregations, skipped documents would not be "
+                    + "aggregated");
+        }
+        if (searchContext.sort() != null) {
+            throw new IllegalArgumentException("[top_k] can be used only with hits sorted by score");
+        }
+        if (searchContext.parsedPostFilter() != null || searchContext.collapse() != null) {
+            throw new IllegalArgumentException("[top_k] can't be used with post_filter or collapse, they could drop "
+                    + "the top hits and let skipped documents in");
+        }
+        if (searchContext.scrollContext() != null) {
+            throw new IllegalArgumentException("[top_k] can't be used with scroll");
+        }
+        if (searchContext.from() + searchContext.size() > topK) {
+            throw new IllegalArgumentException("[top_k] must be at least from + size ["
+                    + (searchContext.from() + searchContext.size()) + "], got [" + topK + "]");
+        }
+        for (RescoreSearchContext rescore : searchContext.rescore()) {
+            if (rescore.window() > topK) {
+                throw new IllegalArgumentException("[top_k] must be at least the rescore window_size ["
+                        + rescore.window() + "], got [" + topK + "]");
+            }
+        }
+    }
+
+    /**
+     * Returns true when the query scores a term recency query with top k hint nested in other queries. Filters don't
+     * need scores, their term recency queries match all documents.
+     */
+    static boolean hasScoringTopK(Query query) {
+        if (query instanceof TermRecencyQuery) {
+            return ((TermRecencyQuery) query).getTopK() > 0;
+        }
+        if (query instanceof BoostQuery) {
+            return hasScoringTopK(((BoostQuery) query).getQuery());
+        }
+        if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : (BooleanQuery) query) {
+                if (clause.isScoring() && hasScoringTopK(clause.getQuery())) {
+                    return true;
+                }
+            }
+        }
+        if (query instanceof DisjunctionMaxQuery) {
+            for (Query disjunct : (DisjunctionMaxQuery) query) {
+                if (hasScoringTopK(disjunct)) {
+                    return true;
+                }
+            }
+        }
+        if (query instanceof FunctionScoreQuery) {
+            return hasScoringTopK(((FunctionScoreQuery) query).getSubQuery());
+        }
+        if (query instanceof FiltersFunctionScoreQuery) {
+            return hasScoringTopK(((FiltersFunctionScoreQuery) query).getSubQuery());
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.stats;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.util.Supplier;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Term recency scoring metrics of a field of an index.
+ *
+ * All counters are striped, so they can be updated for every scored document. Only every {@link #SAMPLING_INTERVAL}-th
+ * scored document is timed, reading the clock for every document would cost more than scoring a cached timestamp.
+ */
+public final class FieldRecencyMetrics implements ToXContent {
+    public static final int SAMPLING_INTERVAL = 64;
+
+    // Errors are logged at most once per interval, together with the number of errors since the last logged one.
+    private static final long ERROR_LOG_INTERVAL_IN_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final Logger logger = Loggers.getLogger(FieldRecencyMetrics.class);
+
+    private final String index;
+    private final String field;
+
+    private final LongAdder boostedSegments = new LongAdder();
+    private final LongAdder staleSegments = new LongAdder();
+    private final LongAdder timestampReads = new LongAdder();
+    private final LongAdder termVectorReads = new LongAdder();
+    private final LongAdder docValuesReads = new LongAdder();
+    private final LongAdder cachedTimestampReads = new LongAdder();
+    private final LongAdder missingTimestamps = new LongAdder();
+    private final LongAdder readErrors = new LongAdder();
+    private final LatencyHistogram similarityLatency = new LatencyHistogram();
+    private final LatencyHistogram recencyLatency = new LatencyHistogram();
+
+    private final AtomicLong lastErrorLogNanos = new AtomicLong(System.nanoTime() - ERROR_LOG_INTERVAL_IN_NANOS);
+    private final AtomicLong errorsSinceLastLog = new AtomicLong();
+
+    FieldRecencyMetrics(String index, String field) {
+        this.index = index;
+        this.field = field;
+    }
+
+    /**
+     * A segment is scored with term recency boosting.
+     */
+    public void onBoostedSegment() {
+        boostedSegments.increment();
+    }
+
+    /**
+     * A segment is scored by the wrapped similarity only, because the latest timestamps of all query terms in the
+     * segment are beyond the horizon or the terms have no timestamp in it.
+     */
+    public void onStaleSegment() {
+        staleSegments.increment();
+    }
+
+    public void onTermVectorRead() {
+        timestampReads.increment();
+        termVectorReads.increment();
+    }
+
+    public void onDocValuesRead() {
+        timestampReads.increment();
+        docValuesReads.increment();
+    }
+
+    /**
+     * Timestamps of a document are found in the term timestamp cache shared by all queries, the term vector isn't read.
+     */
+    public void onCachedTimestampRead() {
+        timestampReads.increment();
+        cachedTimestampReads.increment();
+    }
+
+    public void onMissingTimestamp() {
+        missingTimestamps.increment();
+    }
+
+    /**
+     * Records time of the wrapped similarity and of the term recency score of a sampled document.
+     */
+    public void onSampledScore(long similarityNanos, long recencyNanos) {
+        similarityLatency.record(similarityNanos);
+        recencyLatency.record(recencyNanos);
+    }
+
+    /**
+     * Counts a failure to read term timestamps of a document. Failures tend to repeat for every document of a broken
+     * segment, so they are logged at most once per minute.
+     */
+    public void onReadError(Exception ex) {
+        readErrors.increment();
+        long errors = errorsSinceLastLog.incrementAndGet();
+
+        long now = System.nanoTime();
+        long lastLog = lastErrorLogNanos.get();
+        if (now - lastLog >= ERROR_LOG_INTERVAL_IN_NANOS && lastErrorLogNanos.compareAndSet(lastLog, now)) {
+            errorsSinceLastLog.addAndGet(-errors);
+            logger.warn((Supplier<?>) () -> new ParameterizedMessage(
+                    "failed to read term timestamps of field [{}] in index [{}], {} failures since last logged", field, index, errors),
+                    ex);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(field);
+        builder.field("boosted_segments", boostedSegments.sum());
+        builder.field("stale_segments", staleSegments.sum());
+        builder.field("timestamp_reads", timestampReads.sum());
+        builder.field("term_vector_reads", termVectorReads.sum());
+        builder.field("doc_values_reads", docValuesReads.sum());
+        builder.field("cached_timestamp_reads", cachedTimestampReads.sum());
+        builder.field("missing_timestamps", missingTimestamps.sum());
+        builder.field("read_errors", readErrors.sum());
+        similarityLatency.toXContent(builder, "similarity_time");
+        recencyLatency.toXContent(builder, "recency_time");
+        builder.endObject();
+
+        return builder;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.stats;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Term recency scoring metrics of all fields of an index scored by the recency similarity on this node.
+ */
+public final class IndexRecencyMetrics implements ToXContent {
+    private final String index;
+    private final ConcurrentMap<String, FieldRecencyMetrics> fields = new ConcurrentHashMap<>();
+
+    public IndexRecencyMetrics(String index) {
+        this.index = index;
+    }
+
+    public FieldRecencyMetrics forField(String field) {
+        return fields.computeIfAbsent(field, name -> new FieldRecencyMetrics(index, name));
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(index);
+        builder.startObject("fields");
+        for (Map.Entry<String, FieldRecencyMetrics> field : new TreeMap<>(fields).entrySet()) {
+            field.getValue().toXContent(builder, params);
+        }
+        builder.endObject();
+        builder.endObject();
+
+        return builder;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.stats;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanos with power of two buckets. Buckets are striped counters, so recording from many
+ * search threads doesn't contend, percentiles are reported as upper bounds of their buckets.
+ */
+final class LatencyHistogram {
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    // Bucket 0 counts zero latencies, bucket i latencies from 2^(i-1) to 2^i - 1 nanos.
+    private final LongAdder[] buckets = new LongAdder[Long.SIZE + 1];
+    private final LongAdder sumInNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        long latency = Math.max(0, nanos);
+        buckets[Long.SIZE - Long.numberOfLeadingZeros(latency)].increment();
+        sumInNanos.add(latency);
+    }
+
+    XContentBuilder toXContent(XContentBuilder builder, String name) throws IOException {
+        long[] counts = new long[buckets.length];
+        long count = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+
+        builder.startObject(name);
+        builder.field("count", count);
+        builder.field("avg_nanos", count == 0 ? 0 : sumInNanos.sum() / count);
+        for (double percentile : PERCENTILES) {
+            builder.field("p" + (int) percentile + "_nanos", percentile(counts, count, percentile));
+        }
+        builder.endObject();
+
+        return builder;
+    }
+
+    private static long percentile(long[] counts, long count, double percentile) {
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1;
+            }
+        }
+
+        return 0;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.stats;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Term recency scoring metrics of all indices on this node. Metrics of an index are dropped when the index is removed
+ * from the node.
+ */
+public final class RecencyMetrics implements ToXContent {
+    // Comma separated index names or wildcard patterns of reported indices, all indices are reported by default.
+    public static final String INDEX_PARAM = "index";
+
+    private final ConcurrentMap<String, IndexRecencyMetrics> indices = new ConcurrentHashMap<>();
+
+    public IndexRecencyMetrics forIndex(String index) {
+        return indices.computeIfAbsent(index, IndexRecencyMetrics::new);
+    }
+
+    public void removeIndex(String index) {
+        indices.remove(index);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        String[] patterns = Strings.splitStringByCommaToArray(params.param(INDEX_PARAM, "_all"));
+        boolean all = patterns.length == 0 || (patterns.length == 1 && "_all".equals(patterns[0]));
+
+        builder.startObject("indices");
+        for (Map.Entry<String, IndexRecencyMetrics> index : new TreeMap<>(indices).entrySet()) {
+            if (all || Regex.simpleMatch(patterns, index.getKey())) {
+                index.getValue().toXContent(builder, params);
+            }
+        }
+        builder.endObject();
+
+        return builder;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tisonet.elasticsearch.termrecencyboosting.index.analysis;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.BaseTokenStreamTestCase;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.IntegerEncoder;
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.util.BytesRef;
+
+public class RecencyCollapseTokenFilterTests extends BaseTokenStreamTestCase {
+
+    public void testCollapsesRepeatedTermsIntoLatestTimestamp() throws IOException {
+        String content = "foo|428150 bar|428100 foo|428191 foo|428190";
+
+        assertTokenStreamContents(collapse(content, false),
+                new String[] {"foo", "bar"}, new int[] {0, 11}, new int[] {10, 21}, new int[] {1, 1});
+        assertEquals(timestamps(428191, 428100), readTimestamps(collapse(content, false)));
+    }
+
+    public void testKeepFrequencyKeepsPositionsOfOccurrencesWithoutPayloads() throws IOException {
+        String content = "foo|428150 bar|428100 foo|428191";
+
+        assertTokenStreamContents(collapse(content, true),
+                new String[] {"foo", "bar", "foo"}, new int[] {0, 11, 22}, new int[] {10, 21, 32}, new int[] {1, 1, 1});
+        assertEquals(timestamps(428191, 428100, null), readTimestamps(collapse(content, true)));
+    }
+
+    public void testKeepFrequencyKeepsPhrasesOfRepeatedTerms() throws IOException {
+        assertTokenStreamContents(collapse("foo|1 bar|2 baz|3 foo|4 bar|5", true),
+                new String[] {"foo", "bar", "baz", "foo", "bar"}, new int[] {1, 1, 1, 1, 1});
+    }
+
+    public void testTermsWithoutTimestamp() throws IOException {
+        assertEquals(timestamps(null, 428100), readTimestamps(collapse("foo bar|428100 foo", false)));
+    }
+
+    public void testKeepsPositionGaps() throws IOException {
+        assertTokenStreamContents(collapse("foo|1 bar|2 foo|3 baz|4", false),
+                new String[] {"foo", "bar", "baz"}, new int[] {0, 6, 18}, new int[] {5, 11, 23}, new int[] {1, 1, 2});
+    }
+
+    public void testAppendsHistogramOfAllOccurrences() throws IOException {
+        WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("foo|428150 bar|428100 foo|428191 foo|428190 foo"));
+        TokenStream tokenStream = new RecencyCollapseTokenFilter(new DelimitedPayloadTokenFilter(tokenizer, '|', new IntegerEncoder()),
+                false, TimestampPayloadCodec.DEFAULT, 4, TimeUnit.HOURS.toMillis(24));
+        PayloadAttribute payloadAttribute = tokenStream.addAttribute(PayloadAttribute.class);
+        TermHistogram histogram = new TermHistogram();
+
+        tokenStream.reset();
+        assertTrue(tokenStream.incrementToken());
+        BytesRef payload = payloadAttribute.getPayload();
+        assertEquals(TimeUnit.HOURS.toMillis(428191), TimestampPayloadCodec.DEFAULT.decode(payload));
+        assertTrue(histogram.read(payload, TimestampPayloadCodec.DEFAULT));
+        // Days since 1970 of the occurrences are 17839, 17841 and 17841.
+        assertArrayEquals(new int[] {2, 0, 1, 0}, counts(histogram));
+
+        assertTrue(tokenStream.incrementToken());
+        assertTrue(histogram.read(payloadAttribute.getPayload(), TimestampPayloadCodec.DEFAULT));
+        assertArrayEquals(new int[] {1, 0, 0, 0}, counts(histogram));
+        assertFalse(tokenStream.incrementToken());
+        tokenStream.end();
+        tokenStream.close();
+    }
+
+    private static int[] counts(TermHistogram histogram) {
+        int[] counts = new int[histogram.getBuckets()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.getCount(i);
+        }
+        return counts;
+    }
+
+    private static TokenStream collapse(String content, boolean keepFrequency) {
+        WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(content));
+
+        return new RecencyCollapseTokenFilter(new DelimitedPayloadTokenFilter(tokenizer, '|', new IntegerEncoder()), keepFrequency,
+                TimestampPayloadCodec.DEFAULT);
+    }
+
+    private static List<Integer> readTimestamps(TokenStream tokenStream) throws IOException {
+        List<Integer> timestamps = new ArrayList<>();
+        PayloadAttribute payloadAttribute = tokenStream.addAttribute(PayloadAttribute.class);
+
+        tokenStream.reset();
+        while (tokenStream.incrementToken()) {
+            BytesRef payload = payloadAttribute.getPayload();
+            timestamps.add(payload == null ? null : PayloadHelper.decodeInt(payload.bytes, payload.offset));
+        }
+        tokenStream.end();
+        tokenStream.close();
+
+        return timestamps;
+    }
+
+    private static List<Integer> timestamps(Integer... timestamps) {
+        return Arrays.asList(timestamps);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tisonet.elasticsearch.termrecencyboosting.index.analysis;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.lucene.analysis.BaseTokenStreamTestCase;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.util.TestUtil;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadParser.TimestampFormat;
+
+public class RecencyPayloadTokenizerTests extends BaseTokenStreamTestCase {
+    private static final TimestampPayloadParser PARSER =
+            new TimestampPayloadParser('|', TimestampFormat.EPOCH, TimestampPayloadCodec.DEFAULT);
+
+    public void testTokenizer() throws IOException {
+        String content = "  java|428192 python|428150\tauto\n";
+
+        assertTokenStreamContents(tokenizer(content), new String[] {"java", "python", "auto"},
+                new int[] {2, 14, 28}, new int[] {6, 20, 32}, new int[] {1, 1, 1}, content.length());
+        assertEquals(Arrays.asList(428192L, 428150L, null), readTimestamps(tokenizer(content)));
+    }
+
+    public void testTokenizerWithTokensAcrossBufferBoundary() throws IOException {
+        StringBuilder content = new StringBuilder();
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            content.append(TestUtil.randomSimpleString(random(), 1, 10)).append('|').append(428000 + i).append(' ');
+            expected.add(428000L + i);
+        }
+
+        assertEquals(expected, readTimestamps(tokenizer(content.toString())));
+    }
+
+    public void testTokenFilter() throws IOException {
+        WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("java|428192 auto"));
+        TokenStream filter = new RecencyPayloadTokenFilter(tokenizer, PARSER);
+
+        assertTokenStreamContents(filter, new String[] {"java", "auto"});
+        tokenizer.setReader(new StringReader("java|428192 auto"));
+        assertEquals(Arrays.asList(428192L, null), readTimestamps(filter));
+    }
+
+    public void testEmptyInput() throws IOException {
+        assertTokenStreamContents(tokenizer("   "), new String[0], new int[0], new int[0], new int[0], 3);
+    }
+
+    private static Tokenizer tokenizer(String content) {
+        Tokenizer tokenizer = new RecencyPayloadTokenizer(PARSER);
+        tokenizer.setReader(new StringReader(content));
+        return tokenizer;
+    }
+
+    private static List<Long> readTimestamps(TokenStream tokenStream) throws IOException {
+        List<Long> timestamps = new ArrayList<>();
+        PayloadAttribute payloadAttribute = tokenStream.addAttribute(PayloadAttribute.class);
+
+        tokenStream.reset();
+        while (tokenStream.incrementToken()) {
+            timestamps.add(payloadAttribute.getPayload() == null ? null
+                    : TimestampPayloadCodec.DEFAULT.decode(payloadAttribute.getPayload()) / 3_600_000L);
+        }
+        tokenStream.end();
+        tokenStream.close();
+
+        return timestamps;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tisonet.elasticsearch.termrecencyboosting.index.analysis;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TermHistogramTests extends LuceneTestCase {
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    public void testBucketsAreAlignedToEpoch() {
+        // 428190 hours is 17841 days and 6 hours since 1970.
+        long latest = TimeUnit.HOURS.toMillis(428190);
+        long[] timestamps = {latest - 5 * HOUR, latest, latest - 7 * HOUR, latest - 30 * HOUR, latest - 100 * HOUR,
+                TimestampPayloadCodec.MISSING_TIMESTAMP};
+
+        for (TimestampPayloadCodec codec : new TimestampPayloadCodec[]{TimestampPayloadCodec.DEFAULT,
+                new TimestampPayloadCodec(TimestampPayloadCodec.Encoding.VINT, 0, TimeUnit.MINUTES)}) {
+            BytesRef timestampPayload = codec.encode(codec.getUnit().convert(latest, TimeUnit.MILLISECONDS));
+            BytesRef payload = TermHistogram.append(timestampPayload, timestamps, timestamps.length, 3, DAY);
+
+            // Bucket width 86400000ms takes 4 bytes.
+            assertEquals(timestampPayload.length + 4 + 3, payload.length);
+            // The timestamp is decoded from the beginning of the payload as before.
+            assertEquals(latest, codec.decode(payload));
+
+            TermHistogram histogram = new TermHistogram();
+            assertTrue(histogram.read(payload, codec));
+            assertEquals(3, histogram.getBuckets());
+            assertEquals(DAY, histogram.getBucketWidthInMillis());
+            // The occurrence 5 hours older is in the same day as the latest one, 7 and 30 hours older in the day before.
+            assertEquals(2, histogram.getCount(0));
+            assertEquals(2, histogram.getCount(1));
+            // Occurrences older than the last bucket and occurrences without a timestamp are not counted.
+            assertEquals(0, histogram.getCount(2));
+        }
+    }
+
+    public void testCountsAreSaturated() {
+        long[] timestamps = new long[300];
+        Arrays.fill(timestamps, HOUR);
+        BytesRef payload = TermHistogram.append(TimestampPayloadCodec.DEFAULT.encode(1), timestamps, timestamps.length, 2, HOUR);
+
+        TermHistogram histogram = new TermHistogram();
+        assertTrue(histogram.read(payload, TimestampPayloadCodec.DEFAULT));
+        assertEquals(2, histogram.getBuckets());
+        assertEquals(255, histogram.getCount(0));
+        assertEquals(0, histogram.getCount(1));
+    }
+
+    public void testPayloadsWithoutHistogram() {
+        TermHistogram histogram = new TermHistogram();
+        assertTrue(histogram.read(TermHistogram.append(TimestampPayloadCodec.DEFAULT.encode(1), new long[] {HOUR}, 1, 2,
+                HOUR), TimestampPayloadCodec.DEFAULT));
+
+        assertFalse(histogram.read(TimestampPayloadCodec.DEFAULT.encode(428190), TimestampPayloadCodec.DEFAULT));
+        assertEquals(0, histogram.getBuckets());
+        assertFalse(histogram.read(null, TimestampPayloadCodec.DEFAULT));
+        // Bucket width without any bucket.
+        assertFalse(histogram.read(new BytesRef(new byte[]{1, 2}), TimestampPayloadCodec.DEFAULT));
+        // Zero bucket width.
+        assertFalse(histogram.read(new BytesRef(new byte[]{1, 0, 1}), TimestampPayloadCodec.DEFAULT));
+        assertEquals(0, histogram.getBuckets());
+    }
+
+    public void testInvalidBuckets() {
+        BytesRef payload = TimestampPayloadCodec.DEFAULT.encode(1);
+        expectThrows(IllegalArgumentException.class, () -> TermHistogram.append(payload, new long[0], 0, 0, HOUR));
+        expectThrows(IllegalArgumentException.class,
+                () -> TermHistogram.append(payload, new long[0], 0, TermHistogram.MAX_BUCKETS + 1, HOUR));
+        expectThrows(IllegalArgumentException.class, () -> TermHistogram.append(payload, new long[0], 0, 2, 0));
+    }
+}
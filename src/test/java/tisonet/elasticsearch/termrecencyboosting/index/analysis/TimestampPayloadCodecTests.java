@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tisonet.elasticsearch.termrecencyboosting.index.analysis;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.common.settings.Settings;
+
+public class TimestampPayloadCodecTests extends LuceneTestCase {
+
+    public void testDefaultCodecReadsIntHoursPayloads() {
+        BytesRef payload = new BytesRef(PayloadHelper.encodeInt(428192));
+
+        assertEquals(TimeUnit.HOURS.toMillis(428192), TimestampPayloadCodec.DEFAULT.decode(payload));
+        assertEquals(payload, TimestampPayloadCodec.DEFAULT.encode(428192));
+    }
+
+    public void testVarintMinutesSinceEpoch() {
+        long epoch = Instant.parse("2018-01-01T00:00:00Z").toEpochMilli();
+        TimestampPayloadCodec codec = new TimestampPayloadCodec(TimestampPayloadCodec.Encoding.VINT, epoch, TimeUnit.MINUTES);
+        long timestamp = Instant.parse("2018-11-06T12:34:00Z").toEpochMilli();
+
+        BytesRef payload = codec.encode(TimeUnit.MILLISECONDS.toMinutes(timestamp));
+
+        assertEquals(3, payload.length);
+        assertEquals(timestamp, codec.decode(payload));
+    }
+
+    public void testVarintSecondsBeyond2038() {
+        TimestampPayloadCodec codec = new TimestampPayloadCodec(TimestampPayloadCodec.Encoding.VINT,
+                Instant.parse("2020-01-01T00:00:00Z").toEpochMilli(), TimeUnit.SECONDS);
+        long timestamp = Instant.parse("2040-06-01T10:00:01Z").toEpochMilli();
+
+        assertEquals(timestamp, codec.decode(codec.encode(TimeUnit.MILLISECONDS.toSeconds(timestamp))));
+    }
+
+    public void testVarintSecondsSince1970Beyond2038() {
+        TimestampPayloadCodec codec = new TimestampPayloadCodec(TimestampPayloadCodec.Encoding.VINT, 0, TimeUnit.SECONDS);
+        long timestamp = Instant.parse("2040-06-01T10:00:01Z").toEpochMilli();
+
+        BytesRef payload = codec.encode(TimeUnit.MILLISECONDS.toSeconds(timestamp));
+
+        assertEquals(5, payload.length);
+        assertEquals(payload.length, codec.length(payload));
+        assertEquals(timestamp, codec.decode(payload));
+        // Such timestamp doesn't fit into an int, it can't be packed.
+        assertEquals(-1, codec.pack(timestamp));
+    }
+
+    public void testVarintOfLongestValue() {
+        TimestampPayloadCodec codec = new TimestampPayloadCodec(TimestampPayloadCodec.Encoding.VINT, 0, TimeUnit.HOURS);
+        BytesRef payload = codec.encode(Long.MAX_VALUE / 1000 / 3600);
+
+        assertTrue(payload.length <= TimestampPayloadCodec.MAX_PAYLOAD_LENGTH);
+        assertEquals(TimeUnit.HOURS.toMillis(Long.MAX_VALUE / 1000 / 3600), codec.decode(payload));
+
+        byte[] tooLong = new byte[TimestampPayloadCodec.MAX_PAYLOAD_LENGTH + 1];
+        Arrays.fill(tooLong, (byte) 0x81);
+        tooLong[tooLong.length - 1] = 1;
+        assertEquals(TimestampPayloadCodec.MISSING_TIMESTAMP, codec.decode(new BytesRef(tooLong)));
+    }
+
+    public void testIntEncodingIsLimitedToIntRange() {
+        TimestampPayloadCodec codec = new TimestampPayloadCodec(TimestampPayloadCodec.Encoding.INT, 0, TimeUnit.SECONDS);
+
+        expectThrows(IllegalArgumentException.class,
+                () -> codec.encode(TimeUnit.MILLISECONDS.toSeconds(Instant.parse("2040-06-01T10:00:01Z").toEpochMilli())));
+    }
+
+    public void testDecodeWithinLargerBuffer() {
+        TimestampPayloadCodec codec = new TimestampPayloadCodec(TimestampPayloadCodec.Encoding.VINT, 0, TimeUnit.HOURS);
+        BytesRef encoded = codec.encode(428192);
+        byte[] bytes = new byte[encoded.length + 4];
+        System.arraycopy(encoded.bytes, encoded.offset, bytes, 2, encoded.length);
+
+        assertEquals(TimeUnit.HOURS.toMillis(428192), codec.decode(new BytesRef(bytes, 2, encoded.length)));
+    }
+
+    public void testMissingAndMalformedPayloads() {
+        TimestampPayloadCodec codec = new TimestampPayloadCodec(TimestampPayloadCodec.Encoding.VINT, 0, TimeUnit.HOURS);
+
+        assertEquals(TimestampPayloadCodec.MISSING_TIMESTAMP, codec.decode(null));
+        assertEquals(TimestampPayloadCodec.MISSING_TIMESTAMP, codec.decode(new BytesRef(new byte[] {(byte) 0x80})));
+        assertEquals(TimestampPayloadCodec.MISSING_TIMESTAMP, TimestampPayloadCodec.DEFAULT.decode(new BytesRef(new byte[2])));
+    }
+
+    public void testTimestampLength() {
+        TimestampPayloadCodec varint = new TimestampPayloadCodec(TimestampPayloadCodec.Encoding.VINT, 0, TimeUnit.HOURS);
+        BytesRef encoded = varint.encode(428192);
+        byte[] bytes = new byte[encoded.length + 3];
+        System.arraycopy(encoded.bytes, encoded.offset, bytes, 0, encoded.length);
+
+        assertEquals(encoded.length, varint.length(new BytesRef(bytes)));
+        assertEquals(Integer.BYTES, TimestampPayloadCodec.DEFAULT.length(new BytesRef(new byte[6])));
+        assertEquals(0, TimestampPayloadCodec.DEFAULT.length(new BytesRef(new byte[2])));
+        assertEquals(0, varint.length(new BytesRef(new byte[] {(byte) 0x80})));
+        assertEquals(0, varint.length(null));
+    }
+
+    public void testTimestampBeforeEpoch() {
+        TimestampPayloadCodec codec = new TimestampPayloadCodec(TimestampPayloadCodec.Encoding.VINT,
+                Instant.parse("2018-01-01T00:00:00Z").toEpochMilli(), TimeUnit.HOURS);
+
+        expectThrows(IllegalArgumentException.class, () -> codec.encode(420000));
+    }
+
+    public void testFromSettings() {
+        assertSame(TimestampPayloadCodec.DEFAULT, TimestampPayloadCodec.fromSettings(Settings.EMPTY));
+
+        Settings settings = Settings.builder()
+                .put(TimestampPayloadCodec.ENCODING_SETTING, "vint")
+                .put(TimestampPayloadCodec.EPOCH_SETTING, "2018-01-01T00:00:00Z")
+                .put(TimestampPayloadCodec.UNIT_SETTING, "minutes")
+                .build();
+        assertEquals(new TimestampPayloadCodec(TimestampPayloadCodec.Encoding.VINT,
+                Instant.parse("2018-01-01T00:00:00Z").toEpochMilli(), TimeUnit.MINUTES), TimestampPayloadCodec.fromSettings(settings));
+
+        expectThrows(IllegalArgumentException.class, () -> TimestampPayloadCodec.fromSettings(
+                Settings.builder().put(TimestampPayloadCodec.UNIT_SETTING, "days").build()));
+        expectThrows(IllegalArgumentException.class, () -> TimestampPayloadCodec.fromSettings(
+                Settings.builder().put(TimestampPayloadCodec.EPOCH_SETTING, "yesterday").build()));
+    }
+}
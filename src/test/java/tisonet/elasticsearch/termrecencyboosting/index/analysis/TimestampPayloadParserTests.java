@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tisonet.elasticsearch.termrecencyboosting.index.analysis;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttributeImpl;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadParser.TimestampFormat;
+
+public class TimestampPayloadParserTests extends LuceneTestCase {
+    private static final TimestampPayloadCodec SECONDS = new TimestampPayloadCodec(TimestampPayloadCodec.Encoding.VINT,
+            Instant.parse("2018-01-01T00:00:00Z").toEpochMilli(), TimeUnit.SECONDS);
+
+    public void testEpochInPayloadUnits() {
+        assertEquals(TimeUnit.HOURS.toMillis(428192), parse("java|428192", TimestampFormat.EPOCH, TimestampPayloadCodec.DEFAULT));
+    }
+
+    public void testEpochHoursAndSeconds() {
+        assertEquals(TimeUnit.HOURS.toMillis(428192), parse("java|428192", TimestampFormat.EPOCH_HOURS, SECONDS));
+        assertEquals(TimeUnit.SECONDS.toMillis(1541507696), parse("java|1541507696", TimestampFormat.EPOCH_SECONDS, SECONDS));
+        // Seconds are truncated to the payload unit.
+        assertEquals(TimeUnit.HOURS.toMillis(428196),
+                parse("java|1541507696", TimestampFormat.EPOCH_SECONDS, TimestampPayloadCodec.DEFAULT));
+    }
+
+    public void testIsoInstants() {
+        assertIso("2018-11-06T12:34:56Z", "2018-11-06T12:34:56Z");
+        assertIso("2018-11-06T12:34:56.789Z", "2018-11-06T12:34:56.789Z");
+        assertIso("2018-11-06T12:34:56.7Z", "2018-11-06T12:34:56.700Z");
+        assertIso("2018-11-06T12:34:56.123456Z", "2018-11-06T12:34:56.123Z");
+        assertIso("2018-11-06T12:34Z", "2018-11-06T12:34:00Z");
+        assertIso("2018-11-06T12:34:56", "2018-11-06T12:34:56Z");
+        assertIso("2018-11-06", "2018-11-06T00:00:00Z");
+        assertIso("2018-11-06T14:34:56+02:00", "2018-11-06T12:34:56Z");
+        assertIso("2018-11-06T10:34:56-0200", "2018-11-06T12:34:56Z");
+        assertIso("2020-02-29T23:59:59Z", "2020-02-29T23:59:59Z");
+        assertIso("2084-03-01T00:00:00Z", "2084-03-01T00:00:00Z");
+    }
+
+    public void testInvalidTimestamps() {
+        for (String timestamp : new String[] {"", "12a", "2018-11-06T", "2018-11-06T12", "2018-11-06T25:00Z", "2018-13-01",
+                "2018-11-06T12:34:56.Z", "2018-11-06T12:34:56+02", "18-11-06", "2018-11-06X"}) {
+            TimestampFormat format = timestamp.contains("-") ? TimestampFormat.ISO8601 : TimestampFormat.EPOCH;
+            expectThrows(IllegalArgumentException.class, () -> parse("java|" + timestamp, format, SECONDS));
+        }
+    }
+
+    public void testTokenWithoutDelimiter() {
+        TimestampPayloadParser parser = new TimestampPayloadParser('|', TimestampFormat.EPOCH, SECONDS);
+        PayloadAttribute payloadAttribute = new PayloadAttributeImpl(new BytesRef("stale"));
+        char[] buffer = "java".toCharArray();
+
+        assertEquals(4, parser.parse(buffer, buffer.length, TimestampPayloadParser.newPayload(), payloadAttribute));
+        assertNull(payloadAttribute.getPayload());
+    }
+
+    public void testTermLengthEndsBeforeLastDelimiter() {
+        TimestampPayloadParser parser = new TimestampPayloadParser('|', TimestampFormat.EPOCH, TimestampPayloadCodec.DEFAULT);
+        char[] buffer = "a|b|428192".toCharArray();
+
+        assertEquals(3, parser.parse(buffer, buffer.length, TimestampPayloadParser.newPayload(), new PayloadAttributeImpl()));
+    }
+
+    public void testPayloadIsReused() {
+        TimestampPayloadParser parser = new TimestampPayloadParser('|', TimestampFormat.EPOCH, TimestampPayloadCodec.DEFAULT);
+        BytesRef payload = TimestampPayloadParser.newPayload();
+        PayloadAttribute payloadAttribute = new PayloadAttributeImpl();
+
+        parser.parse("java|428192".toCharArray(), 11, payload, payloadAttribute);
+        assertSame(payload, payloadAttribute.getPayload());
+        parser.parse("python|428100".toCharArray(), 13, payload, payloadAttribute);
+        assertSame(payload, payloadAttribute.getPayload());
+        assertEquals(TimeUnit.HOURS.toMillis(428100), TimestampPayloadCodec.DEFAULT.decode(payload));
+    }
+
+    private static void assertIso(String timestamp, String expected) {
+        TimestampPayloadCodec codec = new TimestampPayloadCodec(TimestampPayloadCodec.Encoding.VINT,
+                Instant.parse("2018-01-01T00:00:00Z").toEpochMilli(), TimeUnit.SECONDS);
+        long expectedMillis = TimeUnit.SECONDS.toMillis(TimeUnit.MILLISECONDS.toSeconds(Instant.parse(expected).toEpochMilli()));
+
+        assertEquals(timestamp, expectedMillis, parse("java|" + timestamp, TimestampFormat.ISO8601, codec));
+    }
+
+    private static long parse(String token, TimestampFormat format, TimestampPayloadCodec codec) {
+        TimestampPayloadParser parser = new TimestampPayloadParser('|', format, codec);
+        PayloadAttribute payloadAttribute = new PayloadAttributeImpl();
+        char[] buffer = token.toCharArray();
+
+        assertEquals(4, parser.parse(buffer, buffer.length, TimestampPayloadParser.newPayload(), payloadAttribute));
+        return codec.decode(payloadAttribute.getPayload());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tisonet.elasticsearch.termrecencyboosting.index.mapper;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TermTimestampsTests extends LuceneTestCase {
+
+    public void testLatestTimestamp() {
+        BytesRef value = TermTimestamps.encode(timestamps("java", 428192, "python", 428150, "ruby", 428100));
+
+        assertEquals(428192L, TermTimestamps.latestTimestamp(value, new BytesRef("java")));
+        assertEquals(428150L, TermTimestamps.latestTimestamp(value, new BytesRef("python")));
+        assertEquals(428100L, TermTimestamps.latestTimestamp(value, new BytesRef("ruby")));
+        assertEquals(TermTimestamps.MISSING_TIMESTAMP, TermTimestamps.latestTimestamp(value, new BytesRef("scala")));
+    }
+
+    public void testLatestTimestampOfSortedTerms() {
+        BytesRef value = TermTimestamps.encode(timestamps("java", 428192, "python", 428150, "ruby", 428100));
+
+        assertEquals(428150L, TermTimestamps.latestTimestamp(value,
+                new BytesRef("c"), new BytesRef("python"), new BytesRef("ruby"), new BytesRef("scala")));
+        assertEquals(428192L, TermTimestamps.latestTimestamp(value, new BytesRef("java"), new BytesRef("ruby")));
+        assertEquals(TermTimestamps.MISSING_TIMESTAMP, TermTimestamps.latestTimestamp(value,
+                new BytesRef("a"), new BytesRef("kotlin"), new BytesRef("z")));
+    }
+
+    public void testTermsAreMatchedExactly() {
+        BytesRef value = TermTimestamps.encode(timestamps("java", 428192, "javascript", 428150));
+
+        assertEquals(428192L, TermTimestamps.latestTimestamp(value, new BytesRef("java")));
+        assertEquals(428150L, TermTimestamps.latestTimestamp(value, new BytesRef("javascript")));
+        assertEquals(TermTimestamps.MISSING_TIMESTAMP, TermTimestamps.latestTimestamp(value, new BytesRef("jav")));
+    }
+
+    public void testPruneDropsOldTerms() {
+        SortedMap<BytesRef, Long> timestamps = new TreeMap<>();
+        timestamps.put(new BytesRef("auto"), 1000L);
+        timestamps.put(new BytesRef("java"), 3000L);
+        BytesRef value = TermTimestamps.encode(timestamps);
+
+        BytesRef pruned = TermTimestamps.prune(value, 2000L);
+        assertEquals(TermTimestamps.MISSING_TIMESTAMP, TermTimestamps.latestTimestamp(pruned, new BytesRef("auto")));
+        assertEquals(3000L, TermTimestamps.latestTimestamp(pruned, new BytesRef("java")));
+        assertSame(value, TermTimestamps.prune(value, 1000L));
+        assertEquals(0, TermTimestamps.prune(value, 4000L).length);
+    }
+
+    public void testEmptyValue() {
+        BytesRef value = TermTimestamps.encode(new TreeMap<>());
+
+        assertEquals(0, value.length);
+        assertEquals(TermTimestamps.MISSING_TIMESTAMP, TermTimestamps.latestTimestamp(value, new BytesRef("java")));
+    }
+
+    public void testDecodeKeepsLatestTimestamps() {
+        BytesRef value = TermTimestamps.encode(timestamps("java", 428192, "python", 428150));
+        Map<BytesRef, Long> merged = new HashMap<>(timestamps("java", 428100, "python", 428190));
+
+        TermTimestamps.decode(value, merged);
+
+        assertEquals(timestamps("java", 428192, "python", 428190), merged);
+    }
+
+    public void testTimestampsBeyondIntRange() {
+        long timestamp = Instant.parse("2100-01-01T00:00:00Z").toEpochMilli();
+        SortedMap<BytesRef, Long> timestamps = new TreeMap<>();
+        timestamps.put(new BytesRef("java"), timestamp);
+        timestamps.put(new BytesRef("python"), timestamp - TimeUnit.DAYS.toMillis(1));
+
+        BytesRef value = TermTimestamps.encode(timestamps);
+
+        assertEquals(timestamp, TermTimestamps.latestTimestamp(value, new BytesRef("java")));
+        assertEquals(timestamp - TimeUnit.DAYS.toMillis(1), TermTimestamps.latestTimestamp(value, new BytesRef("python")));
+    }
+
+    public void testHourlyTimestampsAreCompact() {
+        long now = Instant.parse("2018-11-06T12:00:00Z").toEpochMilli();
+        SortedMap<BytesRef, Long> timestamps = new TreeMap<>();
+        for (int i = 0; i < 100; i++) {
+            timestamps.put(new BytesRef("t" + i), now - TimeUnit.HOURS.toMillis(i));
+        }
+
+        BytesRef value = TermTimestamps.encode(timestamps);
+
+        // Header, length prefixed terms of 2 or 3 bytes and single byte timestamps.
+        assertTrue("value takes " + value.length + " bytes", value.length < 16 + 100 * 5);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(now - TimeUnit.HOURS.toMillis(i), TermTimestamps.latestTimestamp(value, new BytesRef("t" + i)));
+        }
+    }
+
+    public void testLookupWithinLargerBuffer() {
+        BytesRef encoded = TermTimestamps.encode(timestamps("java", 428192));
+        byte[] bytes = new byte[encoded.length + 3];
+        System.arraycopy(encoded.bytes, encoded.offset, bytes, 2, encoded.length);
+
+        BytesRef value = new BytesRef(bytes, 2, encoded.length);
+
+        assertEquals(428192L, TermTimestamps.latestTimestamp(value, new BytesRef("java")));
+    }
+
+    private static SortedMap<BytesRef, Long> timestamps(Object... termsAndTimestamps) {
+        SortedMap<BytesRef, Long> timestamps = new TreeMap<>();
+        for (int i = 0; i < termsAndTimestamps.length; i += 2) {
+            timestamps.put(new BytesRef((String) termsAndTimestamps[i]), ((Integer) termsAndTimestamps[i + 1]).longValue());
+        }
+
+        return timestamps;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tisonet.elasticsearch.termrecencyboosting.index.merge;
+
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.RecencyPayloadAnalyzerFactory;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+import tisonet.elasticsearch.termrecencyboosting.index.mapper.TermTimestamps;
+import tisonet.elasticsearch.termrecencyboosting.search.similarity.TextFieldWithPayload;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class RecencyPruningMergePolicyTests extends LuceneTestCase {
+    private static final long HORIZON_IN_HOURS = 7 * 24;
+
+    public void testOldTimestampsAreDroppedOnMerge() throws Exception {
+        long nowInHours = Instant.now().getEpochSecond() / 3600;
+        long oldTimestamp = nowInHours - 30 * 24;
+        long recentTimestamp = nowInHours - 1;
+
+        SortedMap<BytesRef, Long> timestamps = new TreeMap<>();
+        timestamps.put(new BytesRef("java"), TimeUnit.HOURS.toMillis(oldTimestamp));
+        timestamps.put(new BytesRef("python"), TimeUnit.HOURS.toMillis(recentTimestamp));
+
+        try (Directory directory = newDirectory()) {
+            RecencyPruningMergePolicy mergePolicy = new RecencyPruningMergePolicy(newLogMergePolicy(),
+                    Collections.singleton("web_kw"), HORIZON_IN_HOURS, TimestampPayloadCodec.DEFAULT);
+            try (IndexWriter indexWriter = new IndexWriter(directory,
+                    newIndexWriterConfig(RecencyPayloadAnalyzerFactory.create()).setMergePolicy(mergePolicy))) {
+                for (int i = 0; i < 2; i++) {
+                    Document document = new Document();
+                    String content = "java|" + oldTimestamp + " python|" + recentTimestamp;
+                    document.add(new TextFieldWithPayload("web_kw", content, Field.Store.NO));
+                    document.add(new TextFieldWithPayload("other", content, Field.Store.NO));
+                    document.add(new BinaryDocValuesField("web_kw", TermTimestamps.encode(timestamps)));
+                    document.add(new BinaryDocValuesField("other", TermTimestamps.encode(timestamps)));
+                    indexWriter.addDocument(document);
+                    indexWriter.commit();
+                }
+                indexWriter.forceMerge(1);
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                assertEquals(1, reader.leaves().size());
+                LeafReader leaf = reader.leaves().get(0).reader();
+
+                assertPayloads(leaf.terms("web_kw"), "java", null);
+                assertPayloads(leaf.terms("web_kw"), "python", TimeUnit.HOURS.toMillis(recentTimestamp));
+                // Fields which are not pruned keep all timestamps.
+                assertPayloads(leaf.terms("other"), "java", TimeUnit.HOURS.toMillis(oldTimestamp));
+
+                BinaryDocValues docValues = leaf.getBinaryDocValues("web_kw");
+                BinaryDocValues otherDocValues = leaf.getBinaryDocValues("other");
+                for (int doc = 0; doc < leaf.maxDoc(); doc++) {
+                    assertEquals(TermTimestamps.MISSING_TIMESTAMP,
+                            TermTimestamps.latestTimestamp(docValues.get(doc), new BytesRef("java")));
+                    assertEquals(TimeUnit.HOURS.toMillis(recentTimestamp),
+                            TermTimestamps.latestTimestamp(docValues.get(doc), new BytesRef("python")));
+                    assertEquals(TimeUnit.HOURS.toMillis(oldTimestamp),
+                            TermTimestamps.latestTimestamp(otherDocValues.get(doc), new BytesRef("java")));
+
+                    assertPayloads(leaf.getTermVector(doc, "web_kw"), "java", null);
+                    assertPayloads(leaf.getTermVector(doc, "web_kw"), "python", TimeUnit.HOURS.toMillis(recentTimestamp));
+                    assertPayloads(leaf.getTermVector(doc, "other"), "java", TimeUnit.HOURS.toMillis(oldTimestamp));
+                }
+            }
+        }
+    }
+
+    public void testHorizonMustBePositive() {
+        expectThrows(IllegalArgumentException.class, () -> new RecencyPruningMergePolicy(newLogMergePolicy(),
+                Collections.singleton("web_kw"), 0, TimestampPayloadCodec.DEFAULT));
+    }
+
+    private static void assertPayloads(Terms terms, String term, Long expectedTimestamp) throws Exception {
+        TermsEnum termsEnum = terms.iterator();
+        assertTrue(termsEnum.seekExact(new BytesRef(term)));
+        PostingsEnum postings = termsEnum.postings(null, PostingsEnum.PAYLOADS);
+        while (postings.nextDoc() != PostingsEnum.NO_MORE_DOCS) {
+            for (int i = postings.freq(); i > 0; i--) {
+                postings.nextPosition();
+                BytesRef payload = postings.getPayload();
+                if (expectedTimestamp == null) {
+                    assertTrue(payload == null || payload.length == 0);
+                } else {
+                    assertEquals(expectedTimestamp.longValue(), TimestampPayloadCodec.DEFAULT.decode(payload));
+                }
+            }
+        }
+    }
+}
@@ -15,6 +15,7 @@
 
 package tisonet.elasticsearch.termrecencyboosting.search.similarity;
 
+import org.apache.lucene.search.Explanation;
 import org.apache.lucene.util.LuceneTestCase;
 
 public class DecayBoosterTests extends LuceneTestCase {
@@ -59,4 +60,122 @@ public class DecayBoosterTests extends LuceneTestCase {
         assertEquals(booster.getBoost(72), 0.002, 0.001);
     }
 
+    public void testFractionalRecencyIsInterpolated() throws Exception {
+        DecayBooster booster = new DecayBooster("exp", 24, 0.5, 1);
+
+        assertEquals(booster.getBoost(12.5), (booster.getBoost(12) + booster.getBoost(13)) / 2, 0.0001);
+        assertTrue(booster.getBoost(12.25) < booster.getBoost(12));
+        assertTrue(booster.getBoost(12.25) > booster.getBoost(13));
+    }
+
+    public void testAutomaticHorizon() throws Exception {
+        assertEquals(48, new DecayBooster("linear", 24, 0.5, 1).getHorizon());
+        assertEquals(0, new DecayBooster("linear", 24, 0.5, 0).getHorizon());
+        assertTrue(new DecayBooster("exp", 24, 0.5, 1).getHorizon() > 72);
+        assertTrue(new DecayBooster("exp", 24, 0.5, 1).getHorizon() < DecayBooster.MAX_HORIZON);
+    }
+
+    public void testBoostingBeyondHorizon() throws Exception {
+        DecayBooster booster = new DecayBooster("exp", 24, 0.5, 1, 48);
+
+        assertEquals(48, booster.getHorizon());
+        assertEquals(booster.getBoost(24), 0.5, 0);
+        assertEquals(booster.getBoost(47), 0.25, 0.01);
+        assertEquals(booster.getBoost(48), 0, 0);
+        assertEquals(booster.getBoost(1000), 0, 0);
+        assertEquals(booster.explain(1000).getValue(), 0, 0);
+    }
+
+    public void testInvalidHorizon() throws Exception {
+        expectThrows(IllegalArgumentException.class, () -> new DecayBooster("exp", 24, 0.5, 1, -2));
+        expectThrows(IllegalArgumentException.class, () -> new DecayBooster("exp", 24, 0.5, 1, DecayBooster.MAX_HORIZON + 1));
+    }
+
+    public void testOverridesAreCached() throws Exception {
+        DecayBooster booster = new DecayBooster("linear", 24, 0.5, 1, 48);
+
+        assertSame(booster, booster.withOverrides(null, null, null, null));
+        assertSame(booster, booster.withOverrides("linear", 24.0, null, 1.0));
+
+        DecayBooster overridden = booster.withOverrides("exp", 12.0, null, 2.0);
+        assertSame(overridden, booster.withOverrides("exp", 12.0, 0.5, 2.0));
+        assertEquals(48, overridden.getHorizon());
+        assertEquals(overridden.getBoost(0), 2, 0);
+        assertEquals(overridden.getBoost(12), 1, 0);
+        assertEquals(overridden.getBoost(24), 0.5, 0);
+    }
+
+    public void testPointsBoosting() throws Exception {
+        // Full boost for 6 hours, then a slow tail to zero at one week.
+        DecayCurve curve = DecayCurve.parse("points", new String[] {"0:1.0", "6:1.0", "24:0.5", "168:0"});
+        DecayBooster booster = new DecayBooster("points", curve, 24, 0.5, 2, DecayBooster.AUTO_HORIZON);
+
+        assertEquals(168, booster.getHorizon());
+        assertEquals(booster.getBoost(0), 2, 0);
+        assertEquals(booster.getBoost(6), 2, 0);
+        assertEquals(booster.getBoost(15), 1.5, 0);
+        assertEquals(booster.getBoost(24), 1, 0);
+        assertEquals(booster.getBoost(96), 0.5, 0);
+        assertEquals(booster.getBoost(168), 0, 0);
+        assertTrue(booster.isDecreasing());
+        assertEquals(booster.getBoost(15), booster.explain(15).getValue(), 0);
+    }
+
+    public void testStepBoosting() throws Exception {
+        DecayCurve curve = DecayCurve.parse("step", new String[] {"0:1", "6:0.5", "24:0.25"});
+        DecayBooster booster = new DecayBooster("step", curve, 24, 0.5, 1, DecayBooster.AUTO_HORIZON);
+
+        assertEquals(DecayBooster.MAX_HORIZON, booster.getHorizon());
+        assertEquals(booster.getBoost(0), 1, 0);
+        assertEquals(booster.getBoost(5), 1, 0);
+        assertEquals(booster.getBoost(6), 0.5, 0);
+        assertEquals(booster.getBoost(23), 0.5, 0);
+        assertEquals(booster.getBoost(1000), 0.25, 0);
+    }
+
+    public void testStepCurveWithFractionalRecencyIsNotInterpolated() throws Exception {
+        DecayCurve curve = DecayCurve.parse("step", new String[] {"0:1.0", "6:0.1"});
+        DecayBooster booster = new DecayBooster("step", curve, 24, 0.5, 1, 24);
+
+        assertEquals(1.0, booster.getBoost(5.5), 0);
+        assertEquals(0.1, booster.getBoost(6.5), 1e-6);
+
+        Explanation explanation = booster.explain(5.5);
+        assertEquals(booster.getBoost(5.5), explanation.getValue(), 0);
+        assertEquals(1.0, explanation.getDetails()[2].getValue(), 0);
+    }
+
+    public void testExplainMatchesInterpolatedBoost() throws Exception {
+        DecayBooster booster = new DecayBooster("gauss", 24, 0.5, 2);
+
+        Explanation explanation = booster.explain(12.25);
+        assertEquals(booster.getBoost(12.25), explanation.getValue(), 0);
+        assertEquals(booster.getBoost(12.25) / 2, explanation.getDetails()[2].getValue(), 1e-6);
+    }
+
+    public void testIncreasingCurveIsNotDecreasing() throws Exception {
+        DecayCurve curve = DecayCurve.parse("points", new String[] {"0:0.5", "6:1", "24:0"});
+
+        assertFalse(new DecayBooster("points", curve, 24, 0.5, 1, DecayBooster.AUTO_HORIZON).isDecreasing());
+    }
+
+    public void testOverridesReplaceCurve() throws Exception {
+        DecayCurve curve = DecayCurve.parse("step", new String[] {"0:1", "6:0"});
+        DecayBooster booster = new DecayBooster("step", curve, 24, 0.5, 1, 48);
+
+        assertEquals(booster.withOverrides(null, null, null, 2.0).getBoost(3), 2, 0);
+        assertEquals(booster.withOverrides("linear", null, null, null).getBoost(12), 0.75, 0);
+    }
+
+    public void testInvalidDecayFunction() throws Exception {
+        expectThrows(IllegalArgumentException.class, () -> new DecayBooster("cubic", 24, 0.5, 1));
+        expectThrows(IllegalArgumentException.class, () -> new DecayBooster("points", 24, 0.5, 1));
+        expectThrows(IllegalArgumentException.class, () -> DecayCurve.parse("linear", new String[] {"0:1"}));
+        expectThrows(IllegalArgumentException.class, () -> DecayCurve.parse("points", new String[0]));
+        expectThrows(IllegalArgumentException.class, () -> DecayCurve.parse("points", new String[] {"0:1", "0:0.5"}));
+        expectThrows(IllegalArgumentException.class, () -> DecayCurve.parse("points", new String[] {"-1:1"}));
+        expectThrows(IllegalArgumentException.class, () -> DecayCurve.parse("points", new String[] {"1"}));
+        expectThrows(IllegalArgumentException.class, () -> DecayCurve.parse("points", new String[] {"1:NaN"}));
+    }
+
 }
@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.RecencyPayloadAnalyzerFactory;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+import tisonet.elasticsearch.termrecencyboosting.search.stats.RecencyMetrics;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+public class DocsWithTimestampsTests extends LuceneTestCase {
+    private static final int DOCS = 20;
+
+    public void testTermVectorsAreReadOnlyForDocumentsWithTimestamps() throws Exception {
+        long nowInHours = Instant.now().getEpochSecond() / 3600;
+        try (Directory directory = newDirectory()) {
+            try (IndexWriter indexWriter = new IndexWriter(directory, newIndexWriterConfig(RecencyPayloadAnalyzerFactory.create()))) {
+                for (int i = 0; i < DOCS; i++) {
+                    Document document = new Document();
+                    // Every other document was indexed before timestamps were added.
+                    String content = i % 2 == 0 ? "java|" + (nowInHours - 1) + " auto" : "java auto";
+                    document.add(new TextFieldWithPayload("web_kw", content, Field.Store.NO));
+                    document.add(new TextFieldWithPayload("all_timestamps", "java|" + (nowInHours - 1), Field.Store.NO));
+                    indexWriter.addDocument(document);
+                }
+                indexWriter.forceMerge(1);
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                LeafReader leaf = reader.leaves().get(0).reader();
+                Bits docs = DocsWithTimestamps.get(leaf, "web_kw", TimestampPayloadCodec.DEFAULT);
+                for (int doc = 0; doc < DOCS; doc++) {
+                    assertEquals(doc % 2 == 0, docs.get(doc));
+                }
+                assertSame(docs, DocsWithTimestamps.get(leaf, "web_kw", TimestampPayloadCodec.DEFAULT));
+                assertNull(DocsWithTimestamps.get(leaf, "all_timestamps", TimestampPayloadCodec.DEFAULT));
+                assertFalse(DocsWithTimestamps.get(leaf, "missing", TimestampPayloadCodec.DEFAULT).get(0));
+
+                RecencyMetrics metrics = new RecencyMetrics();
+                IndexSearcher searcher = newSearcher(reader);
+                searcher.setSimilarity(new TermRecencyBoosting(new BM25Similarity(),
+                        new DecayBooster("linear", 24, 0.5, 1), TimeUnit.HOURS.toMillis(1), TimestampPayloadCodec.DEFAULT,
+                        metrics.forIndex("test")));
+                TopDocs topDocs = searcher.search(new TermQuery(new Term("web_kw", "java")), DOCS);
+
+                XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+                metrics.toXContent(builder, ToXContent.EMPTY_PARAMS);
+                String stats = builder.endObject().string();
+
+                assertEquals(DOCS, topDocs.totalHits);
+                assertEquals(0, topDocs.scoreDocs[0].doc % 2);
+                assertEquals(1, topDocs.scoreDocs[DOCS - 1].doc % 2);
+                assertTrue(stats, stats.contains("\"term_vector_reads\":" + DOCS / 2));
+                assertTrue(stats, stats.contains("\"missing_timestamps\":" + DOCS / 2));
+            }
+        }
+    }
+}
@@ -18,14 +18,38 @@ package tisonet.elasticsearch.termrecencyboosting.search.similarity;
 import org.apache.lucene.util.LuceneTestCase;
 
 import java.time.Instant;
+import java.util.concurrent.TimeUnit;
 
 public class RecencyCalculatorTests extends LuceneTestCase {
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
 
     public void testCalculateRecency() throws Exception {
-        Instant now = Instant.parse("2018-11-06T12:00:00.000Z");
+        long now = Instant.parse("2018-11-06T12:00:00.000Z").toEpochMilli();
 
-        assertEquals(RecencyCalculator.calculateRecency(now, 428196), 0);
-        assertEquals(RecencyCalculator.calculateRecency(now, 428195), 1);
-        assertEquals(RecencyCalculator.calculateRecency(now, 428180), 16);
+        assertEquals(RecencyCalculator.calculateRecency(now, 428196 * HOUR), 0, 0);
+        assertEquals(RecencyCalculator.calculateRecency(now, 428195 * HOUR), 1, 0);
+        assertEquals(RecencyCalculator.calculateRecency(now, 428180 * HOUR), 16, 0);
+    }
+
+    public void testCalculateRecencyWithinHour() throws Exception {
+        long now = Instant.parse("2018-11-06T12:00:00.000Z").toEpochMilli();
+
+        assertEquals(RecencyCalculator.calculateRecency(now, now - TimeUnit.MINUTES.toMillis(90)), 1.5, 0);
+    }
+
+    public void testTermsNewerThanNowHaveZeroRecency() throws Exception {
+        long now = Instant.parse("2018-11-06T12:00:00.000Z").toEpochMilli();
+
+        assertEquals(RecencyCalculator.calculateRecency(now, 428197 * HOUR), 0, 0);
+    }
+
+    public void testRoundDown() throws Exception {
+        long now = Instant.parse("2018-11-06T12:59:59.999Z").toEpochMilli();
+
+        assertEquals(RecencyCalculator.roundDown(now, HOUR), 428196 * HOUR);
+        assertEquals(RecencyCalculator.roundDown(now, 24 * HOUR), 428184 * HOUR);
+        assertEquals(RecencyCalculator.roundDown(Instant.parse("2018-11-06T00:00:00.000Z").toEpochMilli(), 24 * HOUR), 428184 * HOUR);
+        assertEquals(RecencyCalculator.roundDown(now, TimeUnit.MINUTES.toMillis(1)),
+                Instant.parse("2018-11-06T12:59:00.000Z").toEpochMilli());
     }
 }
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.RecencyPayloadAnalyzerFactory;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class SpanRecencyQueryTests extends LuceneTestCase {
+    private TermRecencyBoosting termRecencyBoosting;
+    private Directory directory;
+    private IndexReader indexReader;
+    private IndexSearcher indexSearcher;
+    private long oldTimestamp;
+    private long newTimestamp;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        this.termRecencyBoosting = new TermRecencyBoosting(new BM25Similarity());
+        oldTimestamp = createTermTimestamp(40);
+        newTimestamp = createTermTimestamp(1);
+
+        directory = newDirectory();
+        try (IndexWriter indexWriter = new IndexWriter(directory, newIndexWriterConfig(RecencyPayloadAnalyzerFactory.create()))) {
+            // Old phrase, the terms occur recently only apart.
+            Document oldPhrase = new Document();
+            oldPhrase.add(new TextField("field", "new|" + oldTimestamp + " york|" + oldTimestamp + " new|" + newTimestamp
+                    + " jersey|" + newTimestamp + " york|" + newTimestamp, Field.Store.NO));
+            indexWriter.addDocument(oldPhrase);
+
+            // Recent phrase.
+            Document newPhrase = new Document();
+            newPhrase.add(new TextField("field", "new|" + newTimestamp + " york|" + newTimestamp + " new|" + oldTimestamp
+                    + " jersey|" + oldTimestamp + " york|" + oldTimestamp, Field.Store.NO));
+            indexWriter.addDocument(newPhrase);
+        }
+        indexReader = DirectoryReader.open(directory);
+        indexSearcher = newSearcher(indexReader);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        IOUtils.close(indexReader, directory);
+        super.tearDown();
+    }
+
+    public void testRecencyOfMatchedPositions() throws Exception {
+        long nowInMillis = System.currentTimeMillis();
+        indexSearcher.setSimilarity(termRecencyBoosting.getSimilarity());
+        TopDocs bm25 = indexSearcher.search(phrase(), 10);
+        TopDocs recency = indexSearcher.search(new SpanRecencyQuery(phrase(), termRecencyBoosting, nowInMillis), 10);
+
+        assertEquals(2, recency.totalHits);
+        // Both documents have the same BM25 score, the one with the recent phrase is boosted more.
+        assertEquals(bm25.scoreDocs[0].score, bm25.scoreDocs[1].score, 0);
+        assertEquals(1, recency.scoreDocs[0].doc);
+        for (ScoreDoc scoreDoc : recency.scoreDocs) {
+            long timestamp = scoreDoc.doc == 1 ? newTimestamp : oldTimestamp;
+            float recencyScore = termRecencyBoosting.scoreRecency(termRecencyBoosting.roundNow(nowInMillis),
+                    TimeUnit.HOURS.toMillis(timestamp));
+            assertEquals(bm25.scoreDocs[0].score * recencyScore, scoreDoc.score, 1e-5f);
+        }
+    }
+
+    public void testExplainMatchesScore() throws Exception {
+        SpanRecencyQuery query = new SpanRecencyQuery(phrase(), termRecencyBoosting, System.currentTimeMillis());
+        TopDocs results = indexSearcher.search(query, 10);
+
+        for (ScoreDoc scoreDoc : results.scoreDocs) {
+            Explanation explanation = indexSearcher.explain(query, scoreDoc.doc);
+            assertTrue(explanation.isMatch());
+            assertEquals(scoreDoc.score, explanation.getValue(), 0);
+        }
+    }
+
+    public void testMissingPhrase() throws Exception {
+        SpanQuery phrase = new SpanNearQuery.Builder("field", true)
+                .addClause(new SpanTermQuery(new Term("field", "jersey")))
+                .addClause(new SpanTermQuery(new Term("field", "new")))
+                .build();
+        SpanRecencyQuery query = new SpanRecencyQuery(phrase, termRecencyBoosting, System.currentTimeMillis());
+
+        assertEquals(0, indexSearcher.search(query, 10).totalHits);
+        assertEquals(0, indexSearcher.count(query));
+    }
+
+    private static SpanQuery phrase() {
+        return new SpanNearQuery.Builder("field", true)
+                .addClause(new SpanTermQuery(new Term("field", "new")))
+                .addClause(new SpanTermQuery(new Term("field", "york")))
+                .build();
+    }
+
+    private static long createTermTimestamp(int recencyInHours) {
+        Instant termTimestamp = Instant.now().minus(recencyInHours, ChronoUnit.HOURS);
+        return termTimestamp.getEpochSecond() / 3600;
+    }
+}
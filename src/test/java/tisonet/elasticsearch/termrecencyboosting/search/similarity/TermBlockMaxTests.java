@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.RecencyPayloadAnalyzerFactory;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TermBlockMaxTests extends LuceneTestCase {
+    private static final int DOCS = 1000;
+
+    public void testBlocks() throws Exception {
+        long nowInHours = Instant.now().getEpochSecond() / 3600;
+        try (Directory directory = newDirectory()) {
+            // Log merge policy keeps order of the documents.
+            try (IndexWriter indexWriter = new IndexWriter(directory,
+                    newIndexWriterConfig(RecencyPayloadAnalyzerFactory.create()).setMergePolicy(newLogMergePolicy()))) {
+                for (int i = 0; i < DOCS; i++) {
+                    Document document = new Document();
+                    // Every document is 1 hour older and has one more java than the previous one within the block.
+                    StringBuilder content = new StringBuilder();
+                    for (int freq = 0; freq <= i % 10; freq++) {
+                        content.append("java|").append(nowInHours - i).append(' ');
+                    }
+                    document.add(new TextField("field", content.toString(), Field.Store.NO));
+                    indexWriter.addDocument(document);
+                }
+                indexWriter.forceMerge(1);
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                LeafReaderContext leaf = reader.leaves().get(0);
+                TermsEnum termsEnum = leaf.reader().terms("field").iterator();
+                assertTrue(termsEnum.seekExact(new BytesRef("java")));
+
+                TermBlockMax blockMax = TermBlockMax.get(leaf, new Term("field", "java"), termsEnum,
+                        TimestampPayloadCodec.DEFAULT);
+
+                assertEquals((DOCS + TermBlockMax.BLOCK_SIZE - 1) / TermBlockMax.BLOCK_SIZE, blockMax.size());
+                for (int block = 0; block < blockMax.size(); block++) {
+                    int firstDoc = block * TermBlockMax.BLOCK_SIZE;
+                    assertEquals(firstDoc, blockMax.firstDoc(block));
+                    assertEquals(Math.min(firstDoc + TermBlockMax.BLOCK_SIZE, DOCS) - 1, blockMax.lastDoc(block));
+                    assertEquals(10, blockMax.maxFreq(block));
+                    assertEquals(TimeUnit.HOURS.toMillis(nowInHours - firstDoc), blockMax.maxTimestamp(block));
+                }
+                assertSame(blockMax, TermBlockMax.get(leaf, new Term("field", "java"), termsEnum, TimestampPayloadCodec.DEFAULT));
+            }
+        }
+    }
+
+    public void testPrunedTopHitsAreExact() throws Exception {
+        // Without length normalization the blocks are bounded by their max term frequency, so old blocks are skipped.
+        assertTrue(assertPrunedTopHitsAreExact(new TermRecencyBoosting(new BM25Similarity(1.2F, 0.0F))) < DOCS);
+        assertPrunedTopHitsAreExact(new TermRecencyBoosting(new BM25Similarity()));
+    }
+
+    /**
+     * Returns number of documents matched with pruning.
+     */
+    private int assertPrunedTopHitsAreExact(TermRecencyBoosting similarity) throws Exception {
+        Instant now = Instant.now();
+        try (Directory directory = newDirectory()) {
+            try (IndexWriter indexWriter = new IndexWriter(directory,
+                    newIndexWriterConfig(RecencyPayloadAnalyzerFactory.create()).setMergePolicy(newLogMergePolicy()))) {
+                for (int i = 0; i < DOCS; i++) {
+                    Document document = new Document();
+                    StringBuilder content = new StringBuilder();
+                    // Documents are indexed roughly in order of their age, the newest last.
+                    int age = DOCS - i + random().nextInt(24);
+                    long timestamp = now.minus(age, ChronoUnit.HOURS).getEpochSecond() / 3600;
+                    for (int freq = random().nextInt(2); freq >= 0; freq--) {
+                        content.append("java|").append(timestamp).append(" auto ");
+                    }
+                    document.add(new TextField("field", content.toString(), Field.Store.NO));
+                    indexWriter.addDocument(document);
+                }
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = newSearcher(reader);
+                Term term = new Term("field", "java");
+                int topK = 20;
+
+                TopDocs expected = searcher.search(new TermRecencyQuery(term, similarity, now.toEpochMilli()), topK);
+                TopDocs actual = searcher.search(new TermRecencyQuery(term, similarity, now.toEpochMilli(), topK), topK);
+
+                assertEquals(DOCS, expected.totalHits);
+                assertTrue(actual.totalHits <= DOCS);
+                assertEquals(expected.scoreDocs.length, actual.scoreDocs.length);
+                for (int i = 0; i < topK; i++) {
+                    ScoreDoc expectedDoc = expected.scoreDocs[i];
+                    ScoreDoc actualDoc = actual.scoreDocs[i];
+                    assertEquals(expectedDoc.score, actualDoc.score, 0);
+                    assertEquals(expectedDoc.doc, actualDoc.doc);
+                }
+
+                return actual.totalHits;
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.RecencyPayloadAnalyzerFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TermFreshnessQueryTests extends LuceneTestCase {
+    private static final int DOCS = 500;
+    private static final double MAX_AGE_IN_HOURS = 48;
+
+    public void testMatchesTermsWithinMaxAge() throws Exception {
+        TermRecencyBoosting similarity = new TermRecencyBoosting(new BM25Similarity());
+        long nowInMillis = System.currentTimeMillis();
+        long nowInHours = TimeUnit.MILLISECONDS.toHours(similarity.roundNow(nowInMillis));
+        Set<String> expected = new HashSet<>();
+
+        try (Directory directory = newDirectory()) {
+            try (IndexWriter indexWriter = new IndexWriter(directory, newIndexWriterConfig(RecencyPayloadAnalyzerFactory.create()))) {
+                for (int i = 0; i < DOCS; i++) {
+                    // Both terms are up to 4 days old, some documents have java without a timestamp.
+                    long javaAge = random().nextInt(96);
+                    long kotlinAge = random().nextInt(96);
+                    boolean javaWithTimestamp = random().nextBoolean();
+                    String content = (javaWithTimestamp ? "java|" + (nowInHours - javaAge) : "java")
+                            + " kotlin|" + (nowInHours - kotlinAge) + " auto";
+
+                    Document document = new Document();
+                    document.add(new StringField("id", String.valueOf(i), Field.Store.YES));
+                    document.add(new TextField("field", content, Field.Store.NO));
+                    indexWriter.addDocument(document);
+                    if (javaWithTimestamp && javaAge <= MAX_AGE_IN_HOURS || kotlinAge <= MAX_AGE_IN_HOURS) {
+                        expected.add(String.valueOf(i));
+                    }
+                    if (random().nextInt(100) == 0) {
+                        indexWriter.commit();
+                    }
+                }
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = newSearcher(reader);
+                TermFreshnessQuery query = new TermFreshnessQuery(Arrays.asList(new Term("field", "java"),
+                        new Term("field", "kotlin")), similarity, nowInMillis, MAX_AGE_IN_HOURS);
+
+                TopDocs topDocs = searcher.search(query, DOCS);
+                Set<String> actual = new HashSet<>();
+                for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                    actual.add(searcher.doc(scoreDoc.doc).get("id"));
+                }
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    public void testMatchesRecencyOfScoring() {
+        TermRecencyBoosting similarity = new TermRecencyBoosting(new BM25Similarity());
+        long nowInMillis = System.currentTimeMillis();
+        TermFreshnessQuery query = new TermFreshnessQuery(Collections.singletonList(new Term("field", "java")), similarity,
+                nowInMillis, MAX_AGE_IN_HOURS);
+
+        long roundedNow = similarity.roundNow(nowInMillis);
+        long maxAgeInMillis = TimeUnit.HOURS.toMillis((long) MAX_AGE_IN_HOURS);
+        assertTrue(query.isFresh(roundedNow - maxAgeInMillis));
+        assertFalse(query.isFresh(roundedNow - maxAgeInMillis - 1));
+        // Terms newer than the reference time have zero recency.
+        assertTrue(query.isFresh(roundedNow + maxAgeInMillis));
+        assertFalse(query.isFresh(0));
+    }
+
+    public void testSkipsSegmentsWithOldTerms() throws Exception {
+        long nowInHours = TimeUnit.MILLISECONDS.toHours(System.currentTimeMillis());
+        try (Directory directory = newDirectory()) {
+            try (IndexWriter indexWriter = new IndexWriter(directory,
+                    newIndexWriterConfig(RecencyPayloadAnalyzerFactory.create()).setMergePolicy(newLogMergePolicy()))) {
+                // An old segment and a recent one.
+                for (int age : new int[]{1000, 1}) {
+                    for (int i = 0; i < 10; i++) {
+                        Document document = new Document();
+                        document.add(new TextField("field", "java|" + (nowInHours - age - i), Field.Store.NO));
+                        indexWriter.addDocument(document);
+                    }
+                    indexWriter.commit();
+                }
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                TermFreshnessQuery query = new TermFreshnessQuery(Collections.singletonList(new Term("field", "java")),
+                        new TermRecencyBoosting(new BM25Similarity()), System.currentTimeMillis(), MAX_AGE_IN_HOURS);
+                Weight weight = searcher.createNormalizedWeight(query, false);
+
+                assertEquals(2, reader.leaves().size());
+                LeafReaderContext oldSegment = reader.leaves().get(0);
+                assertNull(weight.scorer(oldSegment));
+                assertNotNull(weight.scorer(reader.leaves().get(1)));
+                assertEquals(10, searcher.count(query));
+            }
+        }
+    }
+
+    public void testEquality() {
+        TermRecencyBoosting similarity = new TermRecencyBoosting(new BM25Similarity());
+        Term java = new Term("field", "java");
+        Term kotlin = new Term("field", "kotlin");
+        long nowInMillis = similarity.roundNow(System.currentTimeMillis());
+
+        TermFreshnessQuery query = new TermFreshnessQuery(Arrays.asList(java, kotlin), similarity, nowInMillis, 48);
+        assertEquals(query, new TermFreshnessQuery(Arrays.asList(kotlin, java, kotlin), similarity, nowInMillis, 48));
+        assertEquals(query.hashCode(),
+                new TermFreshnessQuery(Arrays.asList(kotlin, java), similarity, nowInMillis, 48).hashCode());
+        assertNotEquals(query, new TermFreshnessQuery(Arrays.asList(java, kotlin), similarity, nowInMillis, 24));
+        assertNotEquals(query, new TermFreshnessQuery(Collections.singletonList(java), similarity, nowInMillis, 48));
+
+        expectThrows(IllegalArgumentException.class, () -> new TermFreshnessQuery(Collections.emptyList(), similarity, 0, 48));
+        expectThrows(IllegalArgumentException.class,
+                () -> new TermFreshnessQuery(Collections.singletonList(java), similarity, 0, -1));
+        expectThrows(IllegalArgumentException.class,
+                () -> new TermFreshnessQuery(Arrays.asList(java, new Term("other", "java")), similarity, 0, 48));
+    }
+}
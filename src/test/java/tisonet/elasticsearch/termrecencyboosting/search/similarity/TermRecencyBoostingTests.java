@@ -14,19 +14,37 @@
 
 package tisonet.elasticsearch.termrecencyboosting.search.similarity;
 
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.RecencyCollapseTokenFilter;
 import tisonet.elasticsearch.termrecencyboosting.index.analysis.RecencyPayloadAnalyzerFactory;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+import tisonet.elasticsearch.termrecencyboosting.search.stats.RecencyMetrics;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.IntegerEncoder;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermStatistics;
 import org.apache.lucene.search.TopDocs;
 
 import org.apache.lucene.search.similarities.BM25Similarity;
@@ -34,6 +52,9 @@ import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
 
 public class TermRecencyBoostingTests extends LuceneTestCase {
     private Similarity decoratedSimilarity;
@@ -99,6 +120,230 @@ public class TermRecencyBoostingTests extends LuceneTestCase {
         assertTrue(results1.scoreDocs[0].score < results2.scoreDocs[0].score);
     }
 
+    public void testZeroHorizonReturnsTheSameScoreAsDecoratedSimilarity() throws Exception {
+        TermQuery query = new TermQuery(new Term("web_kw", "java"));
+
+        indexSearcher.setSimilarity(decoratedSimilarity);
+        TopDocs results1 = indexSearcher.search(query, 10);
+
+        indexSearcher.setSimilarity(new TermRecencyBoosting(decoratedSimilarity, new DecayBooster("exp", 24, 0.5, 1, 0)));
+        TopDocs results2 = indexSearcher.search(query, 10);
+
+        assertEquals(results1.scoreDocs[0].score, results2.scoreDocs[0].score, 0);
+    }
+
+    public void testPhraseRecencyBoostingExplainMatchesScore() throws Exception {
+        PhraseQuery query = new PhraseQuery("web_kw", "java", "python");
+
+        indexSearcher.setSimilarity(decoratedSimilarity);
+        TopDocs results1 = indexSearcher.search(query, 10);
+
+        indexSearcher.setSimilarity(termRecencyBoosting);
+        TopDocs results2 = indexSearcher.search(query, 10);
+        Explanation explanation = indexSearcher.explain(query, results2.scoreDocs[0].doc);
+
+        assertTrue(results1.scoreDocs[0].score < results2.scoreDocs[0].score);
+        assertEquals(results2.scoreDocs[0].score, explanation.getValue(), 0);
+    }
+
+    public void testSegmentWithOnlyOldTermsIsScoredByDecoratedSimilarity() throws Exception {
+        try (Directory directory = newDirectory()) {
+            IndexWriterConfig config = newIndexWriterConfig(RecencyPayloadAnalyzerFactory.create())
+                    .setMergePolicy(NoMergePolicy.INSTANCE);
+            try (IndexWriter indexWriter = new IndexWriter(directory, config)) {
+                Document oldDocument = new Document();
+                oldDocument.add(new TextFieldWithPayload("web_kw", "java|" + createTermTimestamp(24 * 30), Field.Store.NO));
+                indexWriter.addDocument(oldDocument);
+                indexWriter.commit();
+
+                Document newDocument = new Document();
+                newDocument.add(new TextFieldWithPayload("web_kw", "java|" + createTermTimestamp(1), Field.Store.NO));
+                indexWriter.addDocument(newDocument);
+                indexWriter.commit();
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                Term term = new Term("web_kw", "java");
+                CollectionStatistics collectionStats = searcher.collectionStatistics(term.field());
+                TermStatistics termStats = searcher.termStatistics(term, TermContext.build(reader.getContext(), term));
+                Similarity.SimWeight decoratedWeight = decoratedSimilarity.computeWeight(collectionStats, termStats);
+                Similarity.SimWeight recencyWeight = termRecencyBoosting.computeWeight(collectionStats, termStats);
+
+                LeafReaderContext oldSegment = reader.leaves().get(0);
+                LeafReaderContext newSegment = reader.leaves().get(1);
+                assertEquals(decoratedSimilarity.simScorer(decoratedWeight, oldSegment).getClass(),
+                        termRecencyBoosting.simScorer(recencyWeight, oldSegment).getClass());
+                assertNotEquals(decoratedSimilarity.simScorer(decoratedWeight, newSegment).getClass(),
+                        termRecencyBoosting.simScorer(recencyWeight, newSegment).getClass());
+            }
+        }
+    }
+
+    public void testSegmentWithOnlyOldQueryTermsIsNotBoosted() throws Exception {
+        long nowInHours = Instant.now().getEpochSecond() / 3600;
+        try (Directory directory = newDirectory()) {
+            try (IndexWriter indexWriter = new IndexWriter(directory, newIndexWriterConfig(RecencyPayloadAnalyzerFactory.create()))) {
+                for (int i = 0; i < 20; i++) {
+                    Document document = new Document();
+                    document.add(new TextFieldWithPayload("web_kw", "java|" + (nowInHours - 100 - i) + " auto|" + (nowInHours - 1),
+                            Field.Store.NO));
+                    indexWriter.addDocument(document);
+                }
+                indexWriter.forceMerge(1);
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                RecencyMetrics metrics = new RecencyMetrics();
+                IndexSearcher searcher = newSearcher(reader);
+                searcher.setSimilarity(new TermRecencyBoosting(new BM25Similarity(), new DecayBooster("linear", 24, 0.5, 1),
+                        TimeUnit.HOURS.toMillis(1), TimestampPayloadCodec.DEFAULT, metrics.forIndex("test")));
+                TopDocs topDocs = searcher.search(new TermQuery(new Term("web_kw", "java")), 20);
+
+                XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+                metrics.toXContent(builder, ToXContent.EMPTY_PARAMS);
+                String stats = builder.endObject().string();
+
+                // Java is at least 100 hours old, beyond the horizon of 48 hours, although auto is recent.
+                assertEquals(20, topDocs.totalHits);
+                assertTrue(stats, stats.contains("\"stale_segments\":1"));
+                assertTrue(stats, stats.contains("\"term_vector_reads\":0"));
+            }
+        }
+    }
+
+    public void testMetricsCountTermVectorReads() throws Exception {
+        RecencyMetrics metrics = new RecencyMetrics();
+        indexSearcher.setSimilarity(new TermRecencyBoosting(decoratedSimilarity,
+                new DecayBooster("linear", 24, 0.5, 1), TimeUnit.HOURS.toMillis(1), TimestampPayloadCodec.DEFAULT,
+                metrics.forIndex("test")));
+        indexSearcher.search(new TermQuery(new Term("web_kw", "java")), 10);
+
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        metrics.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        String stats = builder.endObject().string();
+
+        assertTrue(stats, stats.contains("\"term_vector_reads\":1"));
+        assertTrue(stats, stats.contains("\"missing_timestamps\":0"));
+    }
+
+    public void testRepeatedQueryReusesRecencyScores() throws Exception {
+        RecencyMetrics metrics = new RecencyMetrics();
+        TermRecencyBoosting similarity = new TermRecencyBoosting(decoratedSimilarity,
+                new DecayBooster("linear", 24, 0.5, 1), TimeUnit.HOURS.toMillis(1), TimestampPayloadCodec.DEFAULT,
+                metrics.forIndex("test"));
+        indexSearcher.setSimilarity(similarity);
+        TermQuery query = new TermQuery(new Term("web_kw", "java"));
+
+        // The first query only marks the term as queried, the second one fills the scores the third one reuses.
+        // Only the first query reads the term vector, the second one finds the timestamps in the shared cache.
+        TopDocs first = indexSearcher.search(query, 10);
+        TopDocs second = indexSearcher.search(query, 10);
+        TopDocs third = indexSearcher.search(query, 10);
+
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        metrics.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        String stats = builder.endObject().string();
+
+        assertEquals(first.scoreDocs[0].score, second.scoreDocs[0].score, 0);
+        assertEquals(first.scoreDocs[0].score, third.scoreDocs[0].score, 0);
+        assertTrue(stats, stats.contains("\"term_vector_reads\":1"));
+        assertTrue(stats, stats.contains("\"cached_timestamp_reads\":1"));
+    }
+
+    public void testQueriesShareDecodedTimestamps() throws Exception {
+        RecencyMetrics metrics = new RecencyMetrics();
+        TermRecencyBoosting linear = new TermRecencyBoosting(decoratedSimilarity,
+                new DecayBooster("linear", 24, 0.5, 1), TimeUnit.HOURS.toMillis(1), TimestampPayloadCodec.DEFAULT,
+                metrics.forIndex("test"));
+        TermRecencyBoosting gauss = new TermRecencyBoosting(decoratedSimilarity,
+                new DecayBooster("gauss", 24, 0.5, 1), TimeUnit.HOURS.toMillis(1), TimestampPayloadCodec.DEFAULT,
+                metrics.forIndex("test"));
+
+        indexSearcher.setSimilarity(linear);
+        indexSearcher.search(new TermQuery(new Term("web_kw", "java")), 10);
+
+        // A different similarity and term combination reuses the java timestamp, only python is read from the term vector.
+        indexSearcher.setSimilarity(gauss);
+        BooleanQuery query = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("web_kw", "java")), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term("web_kw", "python")), BooleanClause.Occur.SHOULD)
+                .build();
+        TopDocs topDocs = indexSearcher.search(query, 10);
+
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        metrics.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        String stats = builder.endObject().string();
+
+        assertEquals(1, topDocs.totalHits);
+        assertTrue(stats, stats.contains("\"term_vector_reads\":2"));
+        assertTrue(stats, stats.contains("\"cached_timestamp_reads\":1"));
+        assertTrue(stats, stats.contains("\"missing_timestamps\":0"));
+    }
+
+    public void testVelocityModeScalesBoostByTermVelocity() throws Exception {
+        Analyzer analyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                return new TokenStreamComponents(tokenizer, new RecencyCollapseTokenFilter(
+                        new DelimitedPayloadTokenFilter(tokenizer, '|', new IntegerEncoder()), true,
+                        TimestampPayloadCodec.DEFAULT, 4, TimeUnit.HOURS.toMillis(1)));
+            }
+        };
+
+        try (Directory directory = newDirectory()) {
+            try (IndexWriter indexWriter = new IndexWriter(directory, newIndexWriterConfig(analyzer))) {
+                // Both documents have the same term frequency and latest timestamp, java is rising only in the first.
+                Document rising = new Document();
+                rising.add(new TextFieldWithPayload("web_kw", "java|" + createTermTimestamp(0) + " java|"
+                        + createTermTimestamp(0) + " java|" + createTermTimestamp(0), Field.Store.NO));
+                indexWriter.addDocument(rising);
+                Document steady = new Document();
+                steady.add(new TextFieldWithPayload("web_kw", "java|" + createTermTimestamp(0) + " java|"
+                        + createTermTimestamp(1) + " java|" + createTermTimestamp(2), Field.Store.NO));
+                indexWriter.addDocument(steady);
+                // A single mention tells nothing about the trend.
+                Document single = new Document();
+                single.add(new TextFieldWithPayload("web_kw", "java|" + createTermTimestamp(0), Field.Store.NO));
+                indexWriter.addDocument(single);
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = newSearcher(reader);
+                TermQuery query = new TermQuery(new Term("web_kw", "java"));
+                DecayBooster booster = new DecayBooster("linear", 24, 0.5, 1);
+
+                searcher.setSimilarity(new TermRecencyBoosting(decoratedSimilarity, booster, TimeUnit.HOURS.toMillis(1),
+                        TimestampPayloadCodec.DEFAULT, new RecencyMetrics().forIndex("test")));
+                float[] latest = scores(searcher.search(query, 10), 3);
+                searcher.setSimilarity(new TermRecencyBoosting(decoratedSimilarity, booster, TimeUnit.HOURS.toMillis(1),
+                        TimestampPayloadCodec.DEFAULT, new RecencyMetrics().forIndex("test"),
+                        TermRecencyBoosting.RecencyMode.VELOCITY));
+                float[] velocity = scores(searcher.search(query, 10), 3);
+
+                assertEquals(latest[0], latest[1], 0);
+                // Velocities are (3 + 1) / (0 + 1) and (1 + 1) / (2 / 3 + 1), so both boosts are raised.
+                assertTrue(velocity[0] > velocity[1]);
+                assertTrue(velocity[1] > latest[1]);
+                assertEquals(latest[2], velocity[2], 1e-6);
+                assertEquals(velocity[1], searcher.explain(query, 1).getValue(), 1e-6);
+            }
+        }
+    }
+
+    private static float[] scores(TopDocs topDocs, int docs) {
+        float[] scores = new float[docs];
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            scores[scoreDoc.doc] = scoreDoc.score;
+        }
+        return scores;
+    }
+
+    public void testUnknownRecencyMode() {
+        assertEquals(TermRecencyBoosting.RecencyMode.VELOCITY, TermRecencyBoosting.RecencyMode.fromString("velocity"));
+        expectThrows(IllegalArgumentException.class, () -> TermRecencyBoosting.RecencyMode.fromString("burst"));
+    }
 
     public Long createTermTimestamp(int recencyInHours) {
         Instant termTimestamp = Instant.now().minus(recencyInHours, ChronoUnit.HOURS);
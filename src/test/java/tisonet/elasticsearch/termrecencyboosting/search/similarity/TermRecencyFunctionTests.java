@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.RecencyPayloadAnalyzerFactory;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+import tisonet.elasticsearch.termrecencyboosting.search.stats.RecencyMetrics;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.QueryRescorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.common.lucene.search.function.FunctionScoreQuery;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+public class TermRecencyFunctionTests extends LuceneTestCase {
+    private static final int DOCS = 200;
+    private static final int WINDOW_SIZE = 10;
+
+    public void testRescoresOnlyWindowOfTopHits() throws Exception {
+        long nowInMillis = Instant.now().toEpochMilli();
+        long nowInHours = TimeUnit.MILLISECONDS.toHours(nowInMillis);
+        try (Directory directory = newDirectory()) {
+            // Log merge policy keeps order of the documents.
+            try (IndexWriter indexWriter = new IndexWriter(directory,
+                    newIndexWriterConfig(RecencyPayloadAnalyzerFactory.create()).setMergePolicy(newLogMergePolicy()))) {
+                for (int i = 0; i < DOCS; i++) {
+                    // Every document is 1 hour older than the previous one, every other one is shorter.
+                    Document document = new Document();
+                    String content = "java|" + (nowInHours - i) + (i % 2 == 0 ? " auto" : "");
+                    document.add(new TextFieldWithPayload("web_kw", content, Field.Store.NO));
+                    indexWriter.addDocument(document);
+                }
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = newSearcher(reader);
+                searcher.setSimilarity(new BM25Similarity());
+                RecencyMetrics metrics = new RecencyMetrics();
+                TermRecencyBoosting similarity = new TermRecencyBoosting(new BM25Similarity(),
+                        new DecayBooster("linear", 24, 0.5, 1), TimeUnit.HOURS.toMillis(1), TimestampPayloadCodec.DEFAULT,
+                        metrics.forIndex("test"));
+                TermRecencyFunction function = new TermRecencyFunction("web_kw", new BytesRef[]{new BytesRef("java")},
+                        similarity, nowInMillis);
+                FunctionScoreQuery recencyQuery = new FunctionScoreQuery(new MatchAllDocsQuery(), function);
+
+                TopDocs bm25 = searcher.search(new TermQuery(new Term("web_kw", "java")), WINDOW_SIZE);
+                TopDocs rescored = new QueryRescorer(recencyQuery) {
+                    @Override
+                    protected float combine(float firstPassScore, boolean secondPassMatches, float secondPassScore) {
+                        return firstPassScore * secondPassScore;
+                    }
+                }.rescore(searcher, bm25, WINDOW_SIZE);
+
+                assertEquals(WINDOW_SIZE, rescored.scoreDocs.length);
+                // Hits of the window are reordered by recency, the newest first.
+                int newestDoc = DOCS;
+                for (int i = 0; i < WINDOW_SIZE; i++) {
+                    newestDoc = Math.min(newestDoc, bm25.scoreDocs[i].doc);
+                }
+                assertEquals(newestDoc, rescored.scoreDocs[0].doc);
+                for (int i = 0; i < WINDOW_SIZE; i++) {
+                    int doc = rescored.scoreDocs[i].doc;
+                    float recencyScore = similarity.scoreRecency(similarity.roundNow(nowInMillis),
+                            TimeUnit.HOURS.toMillis(nowInHours - doc));
+                    assertTrue(recencyScore >= 1.0f);
+                    Explanation explanation = searcher.explain(recencyQuery, doc);
+                    assertEquals(recencyScore, explanation.getValue(), 1e-5f);
+                }
+
+                XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+                metrics.toXContent(builder, ToXContent.EMPTY_PARAMS);
+                String stats = builder.endObject().string();
+                // Term vectors of the window are read by the rescorer only, explain finds the timestamps in the cache and
+                // other documents are not read.
+                assertTrue(stats, stats.contains("\"term_vector_reads\":" + WINDOW_SIZE));
+                assertTrue(stats, stats.contains("\"cached_timestamp_reads\":" + WINDOW_SIZE));
+            }
+        }
+    }
+}
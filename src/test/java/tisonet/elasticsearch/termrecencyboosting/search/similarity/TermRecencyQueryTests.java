@@ -0,0 +1,234 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.RecencyPayloadAnalyzerFactory;
+import tisonet.elasticsearch.termrecencyboosting.index.mapper.TermTimestamps;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TermRecencyQueryTests extends LuceneTestCase {
+    private TermRecencyBoosting termRecencyBoosting;
+    private Directory directory;
+    private IndexReader indexReader;
+    private IndexSearcher indexSearcher;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        this.termRecencyBoosting = new TermRecencyBoosting(new BM25Similarity());
+
+        directory = newDirectory();
+        try (IndexWriter indexWriter = new IndexWriter(directory, newIndexWriterConfig(RecencyPayloadAnalyzerFactory.create()))) {
+            Document document = new Document();
+            // The same content indexed with term vectors, only with postings payloads and with term timestamps doc values.
+            int javaTimestamp = createTermTimestamp(1).intValue();
+            int pythonTimestamp = createTermTimestamp(24).intValue();
+            String content = "java|" + javaTimestamp + " python|" + pythonTimestamp + " auto";
+            document.add(new TextFieldWithPayload("with_vectors", content, Field.Store.NO));
+            document.add(new TextField("without_vectors", content, Field.Store.NO));
+            document.add(new TextField("with_doc_values", content, Field.Store.NO));
+
+            SortedMap<BytesRef, Long> timestamps = new TreeMap<>();
+            timestamps.put(new BytesRef("java"), TimeUnit.HOURS.toMillis(javaTimestamp));
+            timestamps.put(new BytesRef("python"), TimeUnit.HOURS.toMillis(pythonTimestamp));
+            document.add(new BinaryDocValuesField("with_doc_values", TermTimestamps.encode(timestamps)));
+
+            indexWriter.addDocument(document);
+            indexWriter.commit();
+        }
+        indexReader = DirectoryReader.open(directory);
+        indexSearcher = newSearcher(indexReader);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        IOUtils.close(indexReader, directory);
+        super.tearDown();
+    }
+
+    public void testScoresTheSameAsSimilarityWithTermVectors() throws Exception {
+        for (String value : new String[] {"java", "python", "auto"}) {
+            indexSearcher.setSimilarity(termRecencyBoosting);
+            TopDocs expected = indexSearcher.search(new TermQuery(new Term("with_vectors", value)), 10);
+
+            TopDocs actual = indexSearcher.search(recencyQuery(value), 10);
+
+            assertEquals(1, actual.totalHits);
+            assertEquals(expected.scoreDocs[0].score, actual.scoreDocs[0].score, 0);
+        }
+    }
+
+    public void testSimilarityScoresTheSameFromDocValuesAsFromTermVectors() throws Exception {
+        indexSearcher.setSimilarity(termRecencyBoosting);
+        for (String value : new String[] {"java", "python", "auto"}) {
+            TopDocs expected = indexSearcher.search(new TermQuery(new Term("with_vectors", value)), 10);
+            TopDocs actual = indexSearcher.search(new TermQuery(new Term("with_doc_values", value)), 10);
+
+            assertEquals(1, actual.totalHits);
+            assertEquals(expected.scoreDocs[0].score, actual.scoreDocs[0].score, 0);
+        }
+    }
+
+    public void testRecencyBoosting() throws Exception {
+        indexSearcher.setSimilarity(termRecencyBoosting.getSimilarity());
+        TopDocs bm25 = indexSearcher.search(new TermQuery(new Term("without_vectors", "java")), 10);
+        TopDocs recency = indexSearcher.search(recencyQuery("java"), 10);
+
+        assertTrue(bm25.scoreDocs[0].score < recency.scoreDocs[0].score);
+    }
+
+    public void testExplainMatchesScore() throws Exception {
+        TermRecencyQuery query = recencyQuery("python");
+        TopDocs results = indexSearcher.search(query, 10);
+        Explanation explanation = indexSearcher.explain(query, results.scoreDocs[0].doc);
+
+        assertTrue(explanation.isMatch());
+        assertEquals(results.scoreDocs[0].score, explanation.getValue(), 0);
+    }
+
+    public void testMissingTerm() throws Exception {
+        TermRecencyQuery query = recencyQuery("ruby");
+
+        assertEquals(0, indexSearcher.search(query, 10).totalHits);
+        assertEquals(0, indexSearcher.count(query));
+    }
+
+    public void testReferenceTimeIsRoundedToHours() throws Exception {
+        long now = Instant.parse("2018-11-06T12:00:00.000Z").toEpochMilli();
+        Term term = new Term("without_vectors", "java");
+
+        assertEquals(new TermRecencyQuery(term, termRecencyBoosting, now),
+                new TermRecencyQuery(term, termRecencyBoosting, now + TimeUnit.MINUTES.toMillis(59)));
+        assertNotEquals(new TermRecencyQuery(term, termRecencyBoosting, now),
+                new TermRecencyQuery(term, termRecencyBoosting, now + TimeUnit.MINUTES.toMillis(60)));
+    }
+
+    public void testDecayOverrides() throws Exception {
+        long now = System.currentTimeMillis();
+        Term term = new Term("without_vectors", "java");
+        TermRecencyBoosting heavier = termRecencyBoosting.withDecay(null, null, null, 10.0);
+
+        assertSame(termRecencyBoosting, termRecencyBoosting.withDecay(null, null, null, null));
+        assertTrue(indexSearcher.search(new TermRecencyQuery(term, termRecencyBoosting, now), 10).scoreDocs[0].score <
+                indexSearcher.search(new TermRecencyQuery(term, heavier, now), 10).scoreDocs[0].score);
+    }
+
+    public void testBulkScoresMatchScorer() throws Exception {
+        long nowInHours = Instant.now().getEpochSecond() / 3600;
+        try (Directory bulkDirectory = newDirectory()) {
+            try (IndexWriter indexWriter = new IndexWriter(bulkDirectory, newIndexWriterConfig(RecencyPayloadAnalyzerFactory.create()))) {
+                // Several blocks of documents, some of them without timestamps, beyond the horizon or deleted.
+                for (int i = 0; i < 5 * TermRecencyQuery.BULK_SCORE_BLOCK_SIZE; i++) {
+                    StringBuilder content = new StringBuilder("auto ");
+                    for (int freq = random().nextInt(3); freq >= 0; freq--) {
+                        content.append(random().nextInt(10) == 0 ? "java " : "java|" + (nowInHours - random().nextInt(2000)) + " ");
+                    }
+                    Document document = new Document();
+                    document.add(new TextField("without_vectors", content.toString(), Field.Store.NO));
+                    document.add(new TextField("id", Integer.toString(i), Field.Store.NO));
+                    indexWriter.addDocument(document);
+                }
+                for (int i = 0; i < 20; i++) {
+                    indexWriter.deleteDocuments(new Term("id", Integer.toString(random().nextInt(5 * TermRecencyQuery.BULK_SCORE_BLOCK_SIZE))));
+                }
+            }
+
+            try (IndexReader reader = DirectoryReader.open(bulkDirectory)) {
+                IndexSearcher searcher = newSearcher(reader);
+                TermRecencyQuery query = recencyQuery("java");
+
+                Map<Integer, Float> bulkScores = new HashMap<>();
+                searcher.search(query, new SimpleCollector() {
+                    private Scorer scorer;
+                    private int docBase;
+
+                    @Override
+                    protected void doSetNextReader(LeafReaderContext context) {
+                        docBase = context.docBase;
+                    }
+
+                    @Override
+                    public void setScorer(Scorer scorer) {
+                        this.scorer = scorer;
+                    }
+
+                    @Override
+                    public void collect(int doc) throws IOException {
+                        assertNull(bulkScores.put(docBase + doc, scorer.score()));
+                    }
+
+                    @Override
+                    public boolean needsScores() {
+                        return true;
+                    }
+                });
+
+                Weight weight = searcher.createNormalizedWeight(query, true);
+                int matches = 0;
+                for (LeafReaderContext leaf : reader.leaves()) {
+                    Scorer scorer = weight.scorer(leaf);
+                    Bits liveDocs = leaf.reader().getLiveDocs();
+                    for (int doc = scorer.iterator().nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = scorer.iterator().nextDoc()) {
+                        if (liveDocs == null || liveDocs.get(doc)) {
+                            assertEquals(scorer.score(), bulkScores.get(leaf.docBase + doc), 0);
+                            matches++;
+                        }
+                    }
+                }
+                assertEquals(reader.numDocs(), matches);
+                assertEquals(matches, bulkScores.size());
+            }
+        }
+    }
+
+    private TermRecencyQuery recencyQuery(String value) {
+        return new TermRecencyQuery(new Term("without_vectors", value), termRecencyBoosting, System.currentTimeMillis());
+    }
+
+    public Long createTermTimestamp(int recencyInHours) {
+        Instant termTimestamp = Instant.now().minus(recencyInHours, ChronoUnit.HOURS);
+        return termTimestamp.getEpochSecond() / 3600;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.RecencyPayloadAnalyzerFactory;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TermTimestampCacheTests extends LuceneTestCase {
+
+    public void testCachedTimestamps() throws Exception {
+        try (Directory directory = newDirectory()) {
+            try (IndexWriter indexWriter = new IndexWriter(directory, newIndexWriterConfig(RecencyPayloadAnalyzerFactory.create()))) {
+                for (int i = 0; i < TermTimestampCache.MAX_SLOTS + 1; i++) {
+                    Document document = new Document();
+                    document.add(new TextField("field", "java", Field.Store.NO));
+                    indexWriter.addDocument(document);
+                }
+                indexWriter.forceMerge(1);
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                LeafReader leaf = reader.leaves().get(0).reader();
+                assertNull(TermTimestampCache.find(leaf, "field", new BytesRef("java"), TimestampPayloadCodec.DEFAULT));
+                TermTimestampCache timestamps = TermTimestampCache.get(leaf, "field", new BytesRef("java"),
+                        TimestampPayloadCodec.DEFAULT);
+                long timestamp = TimeUnit.HOURS.toMillis(TimeUnit.MILLISECONDS.toHours(System.currentTimeMillis()));
+
+                assertEquals(TermTimestampCache.NOT_CACHED, timestamps.get(0));
+                timestamps.put(0, timestamp);
+                timestamps.put(1, TimestampPayloadCodec.MISSING_TIMESTAMP);
+                assertEquals(timestamp, timestamps.get(0));
+                assertEquals(TimestampPayloadCodec.MISSING_TIMESTAMP, timestamps.get(1));
+
+                // The document shares the slot with the first one and replaces it.
+                timestamps.put(TermTimestampCache.MAX_SLOTS, timestamp);
+                assertEquals(TermTimestampCache.NOT_CACHED, timestamps.get(0));
+                assertEquals(timestamp, timestamps.get(TermTimestampCache.MAX_SLOTS));
+
+                assertSame(timestamps, TermTimestampCache.get(leaf, "field", new BytesRef("java"), TimestampPayloadCodec.DEFAULT));
+                assertSame(timestamps, TermTimestampCache.find(leaf, "field", new BytesRef("java"), TimestampPayloadCodec.DEFAULT));
+                assertNotSame(timestamps, TermTimestampCache.get(leaf, "field", new BytesRef("python"), TimestampPayloadCodec.DEFAULT));
+            }
+        }
+    }
+}
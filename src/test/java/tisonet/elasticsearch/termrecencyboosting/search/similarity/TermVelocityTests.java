@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TermHistogram;
+import tisonet.elasticsearch.termrecencyboosting.index.analysis.TimestampPayloadCodec;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TermVelocityTests extends LuceneTestCase {
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long NOW = TimeUnit.HOURS.toMillis(428190);
+
+    public void testSteadyTermIsNeutral() {
+        assertEquals(1.0f, velocity(4, 0, 1, 2, 3), 1e-6);
+    }
+
+    public void testRisingTermIsAboveNeutral() {
+        // (2 + 1) / (1 / 3 + 1)
+        assertEquals(2.25f, velocity(4, 0, 0, 1), 1e-6);
+    }
+
+    public void testFadingTermIsBelowNeutral() {
+        // The histogram is shifted by an hour at the reference time: (0 + 1) / (3 / 3 + 1)
+        assertEquals(0.5f, velocity(4, 1, 2, 3), 1e-6);
+        // Occurrences shifted out of the histogram are not counted any more.
+        assertEquals(1.0f / (2.0f / 3 + 1), velocity(4, 2, 3, 6), 1e-6);
+    }
+
+    public void testSingleOccurrenceIsNeutral() {
+        assertEquals(TermVelocity.NEUTRAL, velocity(4, 0), 0);
+        assertEquals(TermVelocity.NEUTRAL, velocity(4, 3), 0);
+        // Older occurrences outside the histogram don't count either.
+        assertEquals(TermVelocity.NEUTRAL, velocity(4, 0, 10, 20), 0);
+    }
+
+    public void testTermsWithoutHistogramAreNeutral() {
+        TermHistogram histogram = new TermHistogram();
+        histogram.read(TimestampPayloadCodec.DEFAULT.encode(428190), TimestampPayloadCodec.DEFAULT);
+        assertEquals(TermVelocity.NEUTRAL, TermVelocity.of(histogram, NOW, NOW), 0);
+        // A single bucket has nothing to compare with.
+        assertEquals(TermVelocity.NEUTRAL, velocity(1, 0, 0, 0), 0);
+    }
+
+    public void testTimestampsAfterReferenceTime() {
+        assertEquals(3.0f, velocity(4, -1, -1), 1e-6);
+    }
+
+    /**
+     * Returns the velocity of occurrences the given number of hours before the reference time, in hour buckets.
+     */
+    private static float velocity(int buckets, int... hoursAgo) {
+        long[] timestamps = new long[hoursAgo.length];
+        long latestTimestamp = Long.MIN_VALUE;
+        for (int i = 0; i < hoursAgo.length; i++) {
+            timestamps[i] = NOW - hoursAgo[i] * HOUR;
+            latestTimestamp = Math.max(latestTimestamp, timestamps[i]);
+        }
+
+        TimestampPayloadCodec codec = TimestampPayloadCodec.DEFAULT;
+        TermHistogram histogram = new TermHistogram();
+        assertTrue(histogram.read(TermHistogram.append(codec.encode(latestTimestamp / HOUR), timestamps, timestamps.length,
+                buckets, HOUR), codec));
+        return TermVelocity.of(histogram, latestTimestamp, NOW);
+    }
+}
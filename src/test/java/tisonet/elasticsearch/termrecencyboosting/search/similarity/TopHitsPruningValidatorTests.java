@@ -0,0 +1,49 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tisonet.elasticsearch.termrecencyboosting.search.similarity;
+
+import java.util.Arrays;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TopHitsPruningValidatorTests extends LuceneTestCase {
+
+    public void testScoringTopKIsFoundInNestedQueries() {
+        TermRecencyBoosting similarity = new TermRecencyBoosting(new BM25Similarity());
+        Query topK = new TermRecencyQuery(new Term("web_kw", "java"), similarity, 0, 20);
+        Query all = new TermRecencyQuery(new Term("web_kw", "java"), similarity, 0);
+        Query other = new TermQuery(new Term("web_kw", "auto"));
+
+        assertTrue(TopHitsPruningValidator.hasScoringTopK(topK));
+        assertFalse(TopHitsPruningValidator.hasScoringTopK(all));
+        assertTrue(TopHitsPruningValidator.hasScoringTopK(new BoostQuery(topK, 2)));
+        assertTrue(TopHitsPruningValidator.hasScoringTopK(new BooleanQuery.Builder()
+                .add(other, BooleanClause.Occur.SHOULD).add(topK, BooleanClause.Occur.MUST).build()));
+        assertTrue(TopHitsPruningValidator.hasScoringTopK(new DisjunctionMaxQuery(Arrays.asList(other, topK), 0)));
+
+        // Filters don't need scores, so nothing is skipped.
+        assertFalse(TopHitsPruningValidator.hasScoringTopK(new BooleanQuery.Builder()
+                .add(other, BooleanClause.Occur.MUST).add(topK, BooleanClause.Occur.FILTER).build()));
+        assertFalse(TopHitsPruningValidator.hasScoringTopK(new BooleanQuery.Builder()
+                .add(all, BooleanClause.Occur.MUST).add(other, BooleanClause.Occur.SHOULD).build()));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tisonet.elasticsearch.termrecencyboosting.search.stats;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+public class RecencyMetricsTests extends LuceneTestCase {
+
+    public void testFieldCounters() throws Exception {
+        RecencyMetrics metrics = new RecencyMetrics();
+        FieldRecencyMetrics field = metrics.forIndex("news").forField("title");
+        field.onBoostedSegment();
+        field.onStaleSegment();
+        field.onStaleSegment();
+        field.onTermVectorRead();
+        field.onDocValuesRead();
+        field.onDocValuesRead();
+        field.onMissingTimestamp();
+        field.onReadError(new IOException("broken term vectors"));
+        field.onReadError(new IOException("broken term vectors"));
+
+        Map<String, Object> stats = fieldStats(toMap(metrics, ToXContent.EMPTY_PARAMS), "news", "title");
+
+        assertEquals(1, stats.get("boosted_segments"));
+        assertEquals(2, stats.get("stale_segments"));
+        assertEquals(3, stats.get("timestamp_reads"));
+        assertEquals(1, stats.get("term_vector_reads"));
+        assertEquals(2, stats.get("doc_values_reads"));
+        assertEquals(1, stats.get("missing_timestamps"));
+        assertEquals(2, stats.get("read_errors"));
+    }
+
+    public void testLatencyPercentilesAreBucketUpperBounds() throws Exception {
+        RecencyMetrics metrics = new RecencyMetrics();
+        FieldRecencyMetrics field = metrics.forIndex("news").forField("title");
+        for (int i = 0; i < 98; i++) {
+            field.onSampledScore(100, 10);
+        }
+        field.onSampledScore(1000, 10);
+        field.onSampledScore(5000, 10);
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> similarityTime = (Map<String, Object>) fieldStats(toMap(metrics, ToXContent.EMPTY_PARAMS),
+                "news", "title").get("similarity_time");
+
+        assertEquals(100, similarityTime.get("count"));
+        assertEquals(158, similarityTime.get("avg_nanos"));
+        assertEquals(127, similarityTime.get("p50_nanos"));
+        assertEquals(127, similarityTime.get("p90_nanos"));
+        assertEquals(1023, similarityTime.get("p99_nanos"));
+    }
+
+    public void testIndexFilter() throws Exception {
+        RecencyMetrics metrics = new RecencyMetrics();
+        metrics.forIndex("news-2018").forField("title");
+        metrics.forIndex("news-2019").forField("title");
+        metrics.forIndex("blogs").forField("title");
+        metrics.removeIndex("news-2019");
+
+        Map<String, Object> all = toMap(metrics, ToXContent.EMPTY_PARAMS);
+        Map<String, Object> news = toMap(metrics,
+                new ToXContent.MapParams(Collections.singletonMap(RecencyMetrics.INDEX_PARAM, "news-*")));
+
+        assertEquals(2, indices(all).size());
+        assertEquals(Collections.singleton("news-2018"), indices(news).keySet());
+    }
+
+    private static Map<String, Object> toMap(RecencyMetrics metrics, ToXContent.Params params) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject();
+        metrics.toXContent(builder, params);
+        builder.endObject();
+
+        return XContentHelper.convertToMap(builder.bytes(), false, XContentType.JSON).v2();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> indices(Map<String, Object> stats) {
+        return (Map<String, Object>) stats.get("indices");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> fieldStats(Map<String, Object> stats, String index, String field) {
+        Map<String, Object> fields = (Map<String, Object>) ((Map<String, Object>) indices(stats).get(index)).get("fields");
+        return (Map<String, Object>) fields.get(field);
+    }
+}